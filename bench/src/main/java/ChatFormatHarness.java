@@ -0,0 +1,33 @@
+import java.text.SimpleDateFormat;
+import java.util.*;
+
+/**
+ * FormatBenchmark的测试夹具
+ */
+public class ChatFormatHarness implements bench.ChatFormat {
+
+    /**
+     * 与TCPChatServer原来的getCurrentTime()相同，每次创建SimpleDateFormat，作为对比的基线
+     */
+    @Override
+    public String simpleDateFormat() {
+        return new SimpleDateFormat("HH:mm:ss").format(new Date());
+    }
+
+    @Override
+    public String chatClock() {
+        return ChatClock.currentTime();
+    }
+
+    @Override
+    public Object encodeLine(String username, String message) {
+        String text = "[" + ChatClock.currentTime() + "] " + username + ": " + message;
+        return EncodedMessage.of(ChatFrame.CHAT, 42, text).asLine();
+    }
+
+    @Override
+    public Object encodeFrame(String username, String message) {
+        String text = "[" + ChatClock.currentTime() + "] " + username + ": " + message;
+        return EncodedMessage.of(ChatFrame.CHAT, 42, text).asFrame();
+    }
+}
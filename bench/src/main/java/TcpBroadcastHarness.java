@@ -0,0 +1,82 @@
+import java.nio.*;
+import java.util.*;
+
+/**
+ * TcpBroadcastBenchmark的测试夹具
+ * 服务器只创建不启动，会话都是内存中的假会话，通过addClient()加入默认房间
+ */
+public class TcpBroadcastHarness implements bench.TcpBroadcast {
+
+    /**
+     * 假会话：与ClientHandler一样把消息放入待发送队列，再像写线程一样立即取出
+     */
+    private static final class FakeSession implements ChatSession {
+        private final int sessionId;
+        private final String username;
+        private final boolean binary;
+        private final OutboundQueue<ByteBuffer> queue;
+
+        FakeSession(TCPChatServer server, String username, boolean binary) {
+            this.sessionId = server.nextSessionId();
+            this.username = username;
+            this.binary = binary;
+            this.queue = server.newOutboundQueue();
+        }
+
+        @Override
+        public int getSessionId() {
+            return sessionId;
+        }
+
+        @Override
+        public String getUsername() {
+            return username;
+        }
+
+        @Override
+        public boolean send(EncodedMessage message) {
+            if (!queue.offer(binary ? message.asFrame() : message.asLine())) {
+                return false;
+            }
+            queue.poll();
+            return true;
+        }
+
+        @Override
+        public void close() {
+            queue.close();
+        }
+    }
+
+    private TCPChatServer server;
+    private final List<FakeSession> sessions = new ArrayList<>();
+    private RoomIndex.Room<ChatSession> lobby;
+
+    @Override
+    public void open(int members, boolean binary, String[] options) {
+        List<String> args = new ArrayList<>(List.of("--port=0", "--mode=pool", "--idle-timeout-seconds=0"));
+        args.addAll(Arrays.asList(options));
+        server = new TCPChatServer(ServerOptions.parse(args.toArray(new String[0])));
+        for (int i = 0; i < members; i++) {
+            FakeSession session = new FakeSession(server, "user" + i, binary);
+            sessions.add(session);
+            server.addClient(session.getUsername(), session);
+        }
+        lobby = server.roomOf(sessions.get(0));
+    }
+
+    @Override
+    public void broadcastChat(byte[] message) {
+        server.broadcastChat(sessions.get(0), message);
+    }
+
+    @Override
+    public void broadcastSystem(String message) {
+        server.broadcastMessage(lobby, "系统消息", message);
+    }
+
+    @Override
+    public void close() {
+        server.stop();
+    }
+}
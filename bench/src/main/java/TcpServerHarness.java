@@ -0,0 +1,41 @@
+import java.io.*;
+import java.net.*;
+
+/**
+ * LoopbackBenchmark的TCP服务器
+ */
+public class TcpServerHarness implements bench.ChatServer {
+    private TCPChatServer server;
+
+    @Override
+    public void start(String[] options) throws Exception {
+        ServerOptions parsed = ServerOptions.parse(options);
+        server = new TCPChatServer(parsed);
+        Thread thread = new Thread(server::start, "tcp-chat-server");
+        thread.setDaemon(true);
+        thread.start();
+        awaitListening(parsed.getInt("port", 0));
+    }
+
+    /**
+     * 等待端口可以连接，NIO模式的Reactor在start()中才开始接受连接
+     */
+    static void awaitListening(int port) throws Exception {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (true) {
+            try (Socket probe = new Socket("127.0.0.1", port)) {
+                return;
+            } catch (ConnectException e) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw e;
+                }
+                Thread.sleep(10);
+            }
+        }
+    }
+
+    @Override
+    public void stop() {
+        server.stop();
+    }
+}
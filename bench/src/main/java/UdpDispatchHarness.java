@@ -0,0 +1,84 @@
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * UdpDispatchBenchmark的测试夹具
+ * 服务器只创建不启动，另外创建一个不启动的分片，由调用线程直接调用handleMessage()。
+ * 每个客户端对应本机上一个只绑定、从不读取的套接字，接收缓冲区满后内核直接丢弃，发送不会失败。
+ */
+public class UdpDispatchHarness implements bench.UdpDispatch {
+    private UDPChatServer server;
+    private UdpShard shard;
+    private final List<DatagramChannel> sinks = new ArrayList<>();
+    private InetSocketAddress first;
+    private ByteBuffer heartbeat;
+    private ByteBuffer chat;
+    private ByteBuffer command;
+
+    @Override
+    public void open(int members, String[] options) throws IOException {
+        List<String> args = new ArrayList<>(List.of("--port=0", "--shards=1", "--idle-timeout-seconds=0"));
+        args.addAll(Arrays.asList(options));
+        args.add("--pack=false");
+        server = new UDPChatServer(ServerOptions.parse(args.toArray(new String[0])));
+        shard = new UdpShard(server, 0, 0, false, UdpFragments.DEFAULT_MTU, 0);
+        for (int i = 0; i < members; i++) {
+            DatagramChannel sink = DatagramChannel.open(StandardProtocolFamily.INET);
+            sink.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            sinks.add(sink);
+            InetSocketAddress address = (InetSocketAddress) sink.getLocalAddress();
+            server.handleMessage(shard, datagram("REGISTER:user" + i), address);
+        }
+        first = (InetSocketAddress) sinks.get(0).getLocalAddress();
+        heartbeat = datagram("HEARTBEAT:");
+        chat = datagram("MESSAGE:今天晚上八点一起看比赛吗？ see you there");
+        command = datagram("COMMAND:/rooms");
+    }
+
+    private static ByteBuffer datagram(String text) {
+        byte[] data = text.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(data.length);
+        buffer.put(data).flip();
+        return buffer;
+    }
+
+    /**
+     * handleMessage()会移动position和limit，每次调用前恢复
+     */
+    private void dispatch(ByteBuffer data) {
+        data.limit(data.capacity()).position(0);
+        server.handleMessage(shard, data, first);
+    }
+
+    @Override
+    public void heartbeat() {
+        dispatch(heartbeat);
+    }
+
+    @Override
+    public void chat() {
+        dispatch(chat);
+    }
+
+    @Override
+    public void command() {
+        dispatch(command);
+    }
+
+    @Override
+    public void close() {
+        shard.stop();
+        server.stop();
+        for (DatagramChannel sink : sinks) {
+            try {
+                sink.close();
+            } catch (IOException e) {
+                // 忽略
+            }
+        }
+    }
+}
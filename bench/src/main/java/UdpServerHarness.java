@@ -0,0 +1,19 @@
+/**
+ * LoopbackBenchmark的UDP服务器
+ */
+public class UdpServerHarness implements bench.ChatServer {
+    private UDPChatServer server;
+
+    @Override
+    public void start(String[] options) {
+        server = new UDPChatServer(ServerOptions.parse(options));
+        Thread thread = new Thread(server::start, "udp-chat-server");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void stop() {
+        server.stop();
+    }
+}
@@ -0,0 +1,14 @@
+package bench;
+
+/**
+ * 消息格式化，由默认包的ChatFormatHarness实现
+ */
+public interface ChatFormat {
+    String simpleDateFormat();
+
+    String chatClock();
+
+    Object encodeLine(String username, String message);
+
+    Object encodeFrame(String username, String message);
+}
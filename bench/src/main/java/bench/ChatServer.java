@@ -0,0 +1,13 @@
+package bench;
+
+/**
+ * 在后台线程运行的聊天服务器，由默认包的TcpServerHarness和UdpServerHarness实现
+ */
+public interface ChatServer {
+    /**
+     * 创建并启动服务器，返回时已经开始接受连接
+     */
+    void start(String[] options) throws Exception;
+
+    void stop();
+}
@@ -0,0 +1,46 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * 消息格式化
+ * 对比每次创建SimpleDateFormat（TCP服务器原来的做法）和ChatClock按秒缓存的时间戳，
+ * 以及一条消息从拼接到两种协议编码的完整过程。
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms1g", "-Xmx1g", "-XX:+AlwaysPreTouch"})
+@State(Scope.Thread)
+public class FormatBenchmark {
+    private ChatFormat format;
+    private final String username = "用户42";
+    private final String message = "今天晚上八点一起看比赛吗？ see you there";
+
+    @Setup
+    public void setup() {
+        format = Harness.load("ChatFormatHarness", ChatFormat.class);
+    }
+
+    @Benchmark
+    public String simpleDateFormat() {
+        return format.simpleDateFormat();
+    }
+
+    @Benchmark
+    public String chatClock() {
+        return format.chatClock();
+    }
+
+    @Benchmark
+    public Object encodeLine() {
+        return format.encodeLine(username, message);
+    }
+
+    @Benchmark
+    public Object encodeFrame() {
+        return format.encodeFrame(username, message);
+    }
+}
@@ -0,0 +1,28 @@
+package bench;
+
+/**
+ * 加载默认包中的测试夹具
+ * 服务器代码都在默认包中，无法从有包名的类直接引用；JMH又要求基准测试类必须有包名。
+ * 因此访问服务器的代码放在默认包的*Harness类中，实现本包定义的接口，
+ * 基准测试在@Setup中按类名加载一次，测量过程中只有接口调用。
+ */
+final class Harness {
+    private Harness() {
+    }
+
+    static <T> T load(String className, Class<T> type) {
+        try {
+            return type.cast(Class.forName(className).getDeclaredConstructor().newInstance());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("无法加载测试夹具: " + className, e);
+        }
+    }
+
+    /**
+     * 把空格分隔的参数拆成数组，用于 -p options=... 传入额外的服务器参数
+     */
+    static String[] split(String options) {
+        String trimmed = options.trim();
+        return trimmed.isEmpty() ? new String[0] : trimmed.split("\\s+");
+    }
+}
@@ -0,0 +1,192 @@
+package bench;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * 本机回环上的端到端往返
+ * 在同一个JVM中启动真实的服务器，客户端发送一条聊天消息，直到收到服务器广播回来的这条消息为止，
+ * 包括系统调用、服务器的读写线程或事件循环、格式化和广播的全部代价。
+ * 使用SampleTime模式，结果中带有p50、p99、p99.9等分位数。
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 2, jvmArgsAppend = {"-Xms1g", "-Xmx1g", "-XX:+AlwaysPreTouch"})
+public class LoopbackBenchmark {
+
+    /**
+     * TCP文本协议的客户端
+     */
+    @State(Scope.Benchmark)
+    public static class Tcp {
+        @Param({"pool", "virtual", "nio", "sharded"})
+        public String mode;
+
+        @Param({""})
+        public String options;
+
+        ChatServer server;
+        Socket socket;
+        OutputStream out;
+        InputStream in;
+        final byte[] readBuffer = new byte[64 * 1024];
+        int readStart = 0;
+        int readEnd = 0;
+        long sequence = 0;
+
+        @Setup(Level.Trial)
+        public void setup() throws Exception {
+            int port = freePort();
+            server = Harness.load("TcpServerHarness", ChatServer.class);
+            // 定期输出的运行指标会混进JMH的输出，默认关闭
+            server.start(concat(new String[] {"--port=" + port, "--mode=" + mode, "--stats-interval-seconds=0"},
+                    Harness.split(options)));
+            socket = new Socket("127.0.0.1", port);
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(5000);
+            out = socket.getOutputStream();
+            in = socket.getInputStream();
+            out.write("bench\n".getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            // 收到自己的加入通知，说明登录完成
+            awaitLine("bench 加入了聊天室");
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            socket.close();
+            server.stop();
+        }
+
+        /**
+         * 读取直到某一行包含expected
+         */
+        void awaitLine(String expected) throws IOException {
+            byte[] target = expected.getBytes(StandardCharsets.UTF_8);
+            while (true) {
+                for (int i = readStart; i < readEnd; i++) {
+                    if (readBuffer[i] == '\n') {
+                        boolean found = indexOf(readBuffer, readStart, i, target) >= 0;
+                        readStart = i + 1;
+                        if (found) {
+                            return;
+                        }
+                    }
+                }
+                if (readStart == readEnd) {
+                    readStart = readEnd = 0;
+                } else if (readEnd == readBuffer.length) {
+                    System.arraycopy(readBuffer, readStart, readBuffer, 0, readEnd - readStart);
+                    readEnd -= readStart;
+                    readStart = 0;
+                }
+                int n = in.read(readBuffer, readEnd, readBuffer.length - readEnd);
+                if (n < 0) {
+                    throw new EOFException("服务器关闭了连接");
+                }
+                readEnd += n;
+            }
+        }
+    }
+
+    /**
+     * UDP客户端
+     */
+    @State(Scope.Benchmark)
+    public static class Udp {
+        @Param({"1", "2"})
+        public int shards;
+
+        @Param({""})
+        public String options;
+
+        ChatServer server;
+        DatagramSocket socket;
+        final DatagramPacket packet = new DatagramPacket(new byte[64 * 1024], 64 * 1024);
+        long sequence = 0;
+
+        @Setup(Level.Trial)
+        public void setup() throws Exception {
+            int port = freePort();
+            server = Harness.load("UdpServerHarness", ChatServer.class);
+            server.start(concat(new String[] {"--port=" + port, "--shards=" + shards, "--stats-interval-seconds=0"},
+                    Harness.split(options)));
+            socket = new DatagramSocket();
+            socket.connect(new InetSocketAddress("127.0.0.1", port));
+            socket.setSoTimeout(5000);
+            send("REGISTER:bench");
+            await("SUCCESS:");
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            socket.close();
+            server.stop();
+        }
+
+        void send(String text) throws IOException {
+            byte[] data = text.getBytes(StandardCharsets.UTF_8);
+            socket.send(new DatagramPacket(data, data.length));
+        }
+
+        /**
+         * 接收直到某个数据报包含expected，打包发送时一个数据报中可能有多条消息
+         */
+        void await(String expected) throws IOException {
+            byte[] target = expected.getBytes(StandardCharsets.UTF_8);
+            while (true) {
+                packet.setLength(packet.getData().length);
+                socket.receive(packet);
+                if (indexOf(packet.getData(), 0, packet.getLength(), target) >= 0) {
+                    return;
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    public void tcpRoundTrip(Tcp tcp) throws IOException {
+        String text = "ping-" + tcp.sequence++;
+        tcp.out.write((text + "\n").getBytes(StandardCharsets.UTF_8));
+        tcp.out.flush();
+        tcp.awaitLine(": " + text);
+    }
+
+    @Benchmark
+    public void udpRoundTrip(Udp udp) throws IOException {
+        String text = "ping-" + udp.sequence++;
+        udp.send("MESSAGE:" + text);
+        udp.await(": " + text);
+    }
+
+    static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    static String[] concat(String[] first, String[] second) {
+        String[] result = new String[first.length + second.length];
+        System.arraycopy(first, 0, result, 0, first.length);
+        System.arraycopy(second, 0, result, first.length, second.length);
+        return result;
+    }
+
+    static int indexOf(byte[] data, int from, int to, byte[] target) {
+        outer:
+        for (int i = from; i <= to - target.length; i++) {
+            for (int j = 0; j < target.length; j++) {
+                if (data[i + j] != target[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,25 @@
+package bench;
+
+/**
+ * 一个未启动的TCPChatServer和若干内存中的假会话，由默认包的TcpBroadcastHarness实现
+ */
+public interface TcpBroadcast {
+    /**
+     * @param members 默认房间中的会话数
+     * @param binary 假会话是否使用二进制协议
+     * @param options 额外的服务器参数
+     */
+    void open(int members, boolean binary, String[] options) throws Exception;
+
+    /**
+     * 第一个会话发送一条聊天消息
+     */
+    void broadcastChat(byte[] message);
+
+    /**
+     * 向默认房间广播一条系统消息
+     */
+    void broadcastSystem(String message);
+
+    void close();
+}
@@ -0,0 +1,53 @@
+package bench;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * TCP服务器的广播扇出
+ * 房间中有members个内存中的假会话，每个会话把收到的消息放入自己的待发送队列后立即取出，
+ * 测量的是格式化、写历史和日志、编码一次以及逐个入队的代价，不包括网络写。
+ * 默认使用服务器的默认参数，可以用 -p options="--search=false --history=0" 对比各项开销；
+ * 20000人时超过并行扇出的默认阈值，用 -p options="--parallel-fanout-threshold=0" 对比顺序扇出。
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms1g", "-Xmx1g", "-XX:+AlwaysPreTouch"})
+@State(Scope.Benchmark)
+public class TcpBroadcastBenchmark {
+    @Param({"1", "10", "100", "1000", "20000"})
+    public int members;
+
+    @Param({"false", "true"})
+    public boolean binary;
+
+    @Param({""})
+    public String options;
+
+    private TcpBroadcast broadcast;
+    private final byte[] message = "今天晚上八点一起看比赛吗？ see you there".getBytes(StandardCharsets.UTF_8);
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        broadcast = Harness.load("TcpBroadcastHarness", TcpBroadcast.class);
+        broadcast.open(members, binary, Harness.split(options));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        broadcast.close();
+    }
+
+    @Benchmark
+    public void broadcastChat() {
+        broadcast.broadcastChat(message);
+    }
+
+    @Benchmark
+    public void broadcastSystem() {
+        broadcast.broadcastSystem("有用户加入了聊天室");
+    }
+}
@@ -0,0 +1,30 @@
+package bench;
+
+/**
+ * 一个未启动的UDPChatServer和一个由调用线程驱动的分片，由默认包的UdpDispatchHarness实现
+ * 数据报不经过网络接收，直接交给UDPChatServer.handleMessage()；发出的数据报发往本机上不读取的套接字
+ */
+public interface UdpDispatch {
+    /**
+     * @param members 注册到默认房间的客户端数
+     * @param options 额外的服务器参数
+     */
+    void open(int members, String[] options) throws Exception;
+
+    /**
+     * 第一个客户端发来一个心跳
+     */
+    void heartbeat();
+
+    /**
+     * 第一个客户端发来一条聊天消息，转发给房间中的所有客户端
+     */
+    void chat();
+
+    /**
+     * 第一个客户端发来一条命令
+     */
+    void command();
+
+    void close();
+}
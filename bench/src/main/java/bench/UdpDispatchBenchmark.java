@@ -0,0 +1,52 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * UDP服务器的数据报处理
+ * 在调用线程上直接执行UDPChatServer.handleMessage()：心跳只有前缀解析和查表，
+ * 聊天消息还包括拼接和向members个客户端各发送一个数据报，命令包括解码和回复。
+ * 分片的事件循环没有运行，打包发送需要事件循环结束时刷出，所以这里总是使用 --pack=false。
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms1g", "-Xmx1g", "-XX:+AlwaysPreTouch"})
+@State(Scope.Thread)
+public class UdpDispatchBenchmark {
+    @Param({"1", "10", "100"})
+    public int members;
+
+    @Param({""})
+    public String options;
+
+    private UdpDispatch dispatch;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        dispatch = Harness.load("UdpDispatchHarness", UdpDispatch.class);
+        dispatch.open(members, Harness.split(options));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        dispatch.close();
+    }
+
+    @Benchmark
+    public void heartbeat() {
+        dispatch.heartbeat();
+    }
+
+    @Benchmark
+    public void chat() {
+        dispatch.chat();
+    }
+
+    @Benchmark
+    public void command() {
+        dispatch.command();
+    }
+}
@@ -0,0 +1,53 @@
+import java.nio.charset.StandardCharsets;
+import java.time.*;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * 聊天消息时间戳
+ * 时间戳精确到秒，同一秒内的所有消息共用同一个格式化结果，
+ * 避免每条消息都创建SimpleDateFormat和格式化字符串。
+ */
+public class ChatClock {
+    private static final DateTimeFormatter FORMAT = DateTimeFormatter.ofPattern("HH:mm:ss");
+    
+    /**
+     * 某一秒的格式化结果
+     */
+    private static class Snapshot {
+        final long second;
+        final String text;
+        final byte[] bytes;
+        
+        Snapshot(long second) {
+            this.second = second;
+            this.text = LocalTime.ofInstant(Instant.ofEpochSecond(second), ZoneId.systemDefault()).format(FORMAT);
+            this.bytes = text.getBytes(StandardCharsets.UTF_8);
+        }
+    }
+    
+    private static volatile Snapshot current = new Snapshot(System.currentTimeMillis() / 1000);
+    
+    private static Snapshot snapshot() {
+        long second = System.currentTimeMillis() / 1000;
+        Snapshot snapshot = current;
+        if (snapshot.second != second) {
+            snapshot = new Snapshot(second);
+            current = snapshot;
+        }
+        return snapshot;
+    }
+    
+    /**
+     * 获取当前时间字符串，格式为HH:mm:ss
+     */
+    public static String currentTime() {
+        return snapshot().text;
+    }
+    
+    /**
+     * 获取当前时间的UTF-8编码，返回的数组是共享的，调用方不得修改
+     */
+    public static byte[] currentTimeBytes() {
+        return snapshot().bytes;
+    }
+}
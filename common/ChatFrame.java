@@ -0,0 +1,143 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * TCP二进制协议的消息帧
+ * 帧格式（大端字节序）：
+ *   int    length    后续字节数，即 1 + 4 + payload长度
+ *   byte   opcode    操作码
+ *   int    senderId  发送者的会话编号，服务器自身发出的为0
+ *   byte[] payload   UTF-8编码的消息内容
+ *
+ * 协议协商：客户端收到文本欢迎消息后，发送一行HANDSHAKE代替用户名，
+ * 服务器回复一行HANDSHAKE_OK，此后双方都只发送二进制帧，登录通过LOGIN帧完成。
+ * 不发送HANDSHAKE的旧客户端继续使用按行分隔的文本协议。
+ * 两种协议的客户端互相收发消息，帧的内容同样不能包含换行符（见containsLineBreak），
+ * 否则转发给文本协议的客户端时会被拆成多行。
+ */
+public class ChatFrame {
+    public static final String HANDSHAKE = "CHAT-BINARY/1";
+    public static final String HANDSHAKE_OK = "OK CHAT-BINARY/1";
+    
+    // 操作码
+    public static final byte LOGIN = 1;    // 客户端：请求登录；服务器：登录成功，senderId为分配的会话编号
+    public static final byte CHAT = 2;     // 聊天消息
+    public static final byte COMMAND = 3;  // 客户端命令，例如 /users
+    public static final byte SYSTEM = 4;   // 系统消息
+    public static final byte ERROR = 5;    // 错误消息
+    
+    public static final int HEADER_LENGTH = 5;             // opcode + senderId
+    public static final int MAX_FRAME_LENGTH = 64 * 1024;  // length字段允许的最大值
+    
+    public final byte opcode;
+    public final int senderId;
+    public final byte[] payload;
+    
+    public ChatFrame(byte opcode, int senderId, byte[] payload) {
+        this.opcode = opcode;
+        this.senderId = senderId;
+        this.payload = payload;
+    }
+    
+    /**
+     * 以字符串形式获取消息内容
+     */
+    public String text() {
+        return new String(payload, StandardCharsets.UTF_8);
+    }
+    
+    /**
+     * 编码一个完整的帧（包含length字段）
+     */
+    public static byte[] encode(byte opcode, int senderId, byte[] payload) {
+        byte[] frame = new byte[4 + HEADER_LENGTH + payload.length];
+        writeHeader(frame, opcode, senderId, payload.length);
+        System.arraycopy(payload, 0, frame, 4 + HEADER_LENGTH, payload.length);
+        return frame;
+    }
+    
+    /**
+     * 在frame开头写入length、opcode和senderId，共9个字节
+     */
+    public static void writeHeader(byte[] frame, byte opcode, int senderId, int payloadLength) {
+        putInt(frame, 0, HEADER_LENGTH + payloadLength);
+        frame[4] = opcode;
+        putInt(frame, 5, senderId);
+    }
+    
+    /**
+     * 写出一个帧
+     */
+    public static void write(DataOutputStream out, byte opcode, int senderId, String text) throws IOException {
+        out.write(encode(opcode, senderId, text.getBytes(StandardCharsets.UTF_8)));
+        out.flush();
+    }
+    
+    /**
+     * 读取一个完整的帧
+     * @throws EOFException 连接已关闭
+     */
+    public static ChatFrame read(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        checkLength(length);
+        byte opcode = in.readByte();
+        int senderId = in.readInt();
+        byte[] payload = new byte[length - HEADER_LENGTH];
+        in.readFully(payload);
+        return new ChatFrame(opcode, senderId, payload);
+    }
+    
+    /**
+     * 校验length字段
+     */
+    public static void checkLength(int length) throws IOException {
+        if (length < HEADER_LENGTH || length > MAX_FRAME_LENGTH) {
+            throw new IOException("非法的帧长度: " + length);
+        }
+    }
+    
+    /**
+     * 从字节流中读取一行UTF-8文本，用于协商阶段，不会多读换行符之后的数据
+     * @return 连接已关闭时返回null
+     */
+    public static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') {
+            if (line.size() >= MAX_FRAME_LENGTH) {
+                throw new IOException("行过长");
+            }
+            line.write(b);
+        }
+        if (b == -1 && line.size() == 0) {
+            return null;
+        }
+        String text = line.toString(StandardCharsets.UTF_8);
+        return text.endsWith("\r") ? text.substring(0, text.length() - 1) : text;
+    }
+    
+    /**
+     * 判断内容中是否有CR或LF
+     * 文本协议按行分隔，按行读到的内容不会包含换行符，二进制帧的内容也必须满足这一点
+     */
+    public static boolean containsLineBreak(byte[] data) {
+        for (byte b : data) {
+            if (b == '\n' || b == '\r') {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    public static int getInt(byte[] data, int offset) {
+        return ((data[offset] & 0xff) << 24) | ((data[offset + 1] & 0xff) << 16)
+                | ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
+    }
+    
+    public static void putInt(byte[] data, int offset, int value) {
+        data[offset] = (byte) (value >>> 24);
+        data[offset + 1] = (byte) (value >>> 16);
+        data[offset + 2] = (byte) (value >>> 8);
+        data[offset + 3] = (byte) value;
+    }
+}
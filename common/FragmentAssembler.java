@@ -0,0 +1,163 @@
+import java.net.*;
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * UDP分片重组器
+ * 按 (来源地址, 消息编号) 收集分片，每个分片的内容直接复制到最终的数据报数组中，
+ * 全部到齐后返回完整的数据报。
+ *
+ * 内存有上限：同时重组的消息数和它们占用的总字节数都有限制，
+ * 超出时丢弃最早开始重组的消息；超过timeout仍未收齐的消息也会被丢弃。
+ * 不是线程安全的，每个接收线程使用自己的实例。
+ */
+public class FragmentAssembler {
+    private final int maxPendingMessages;
+    private final long maxPendingBytes;
+    private final long timeoutNanos;
+    
+    // 按开始重组的先后排列，最早的在前面
+    private final LinkedHashMap<Key, Partial> pending = new LinkedHashMap<>();
+    private long pendingBytes = 0;
+    
+    private long completedCount;
+    private long expiredCount;
+    private long invalidCount;
+    
+    private record Key(SocketAddress source, int msgId) {
+    }
+    
+    /**
+     * 正在重组的消息
+     */
+    private static class Partial {
+        final byte[] data;
+        final boolean[] received;
+        final long startedAt;
+        int receivedCount;
+        
+        Partial(int total, int count, long startedAt) {
+            this.data = new byte[total];
+            this.received = new boolean[count];
+            this.startedAt = startedAt;
+        }
+    }
+    
+    public FragmentAssembler(int maxPendingMessages, long maxPendingBytes, long timeout, TimeUnit unit) {
+        this.maxPendingMessages = maxPendingMessages;
+        this.maxPendingBytes = maxPendingBytes;
+        this.timeoutNanos = unit.toNanos(timeout);
+    }
+    
+    /**
+     * 收下一个分片
+     * @param fragment 以分片头开始的数据报，调用后可以立即复用
+     * @return 消息全部到齐时返回完整的数据报，否则返回null
+     */
+    public ByteBuffer add(SocketAddress source, ByteBuffer fragment, long now) {
+        expire(now);
+        
+        int start = fragment.position();
+        int length = fragment.remaining() - UdpFragments.HEADER_LENGTH;
+        if (length <= 0) {
+            invalidCount++;
+            return null;
+        }
+        int msgId = fragment.getInt(start + 1);
+        int index = Short.toUnsignedInt(fragment.getShort(start + 5));
+        int count = Short.toUnsignedInt(fragment.getShort(start + 7));
+        int total = fragment.getInt(start + 9);
+        
+        // 除最后一个分片外内容长度都相同，由此算出分片在原数据报中的位置
+        int offset = index == count - 1 ? total - length : index * length;
+        if (index >= count || total <= 0 || total > UdpFragments.MAX_MESSAGE_SIZE
+                || offset < 0 || offset + length > total || (count == 1 && length != total)) {
+            invalidCount++;
+            return null;
+        }
+        
+        Key key = new Key(source, msgId);
+        Partial partial = pending.get(key);
+        if (partial == null) {
+            if (total > maxPendingBytes) {
+                invalidCount++;
+                return null;
+            }
+            // 腾出空间，丢弃最早开始重组的消息
+            while (!pending.isEmpty()
+                    && (pending.size() >= maxPendingMessages || pendingBytes + total > maxPendingBytes)) {
+                removeEldest();
+            }
+            partial = new Partial(total, count, now);
+            pending.put(key, partial);
+            pendingBytes += total;
+        } else if (partial.data.length != total || partial.received.length != count) {
+            invalidCount++;
+            return null;
+        }
+        
+        if (partial.received[index]) {
+            // 重复的分片
+            return null;
+        }
+        fragment.get(start + UdpFragments.HEADER_LENGTH, partial.data, offset, length);
+        partial.received[index] = true;
+        partial.receivedCount++;
+        if (partial.receivedCount < count) {
+            return null;
+        }
+        
+        pending.remove(key);
+        pendingBytes -= total;
+        completedCount++;
+        return ByteBuffer.wrap(partial.data);
+    }
+    
+    /**
+     * 丢弃超时未收齐的消息
+     */
+    public void expire(long now) {
+        Iterator<Partial> iterator = pending.values().iterator();
+        while (iterator.hasNext()) {
+            Partial partial = iterator.next();
+            if (now - partial.startedAt < timeoutNanos) {
+                break;
+            }
+            iterator.remove();
+            pendingBytes -= partial.data.length;
+            expiredCount++;
+        }
+    }
+    
+    private void removeEldest() {
+        Iterator<Partial> iterator = pending.values().iterator();
+        Partial eldest = iterator.next();
+        iterator.remove();
+        pendingBytes -= eldest.data.length;
+        expiredCount++;
+    }
+    
+    public int getPendingCount() {
+        return pending.size();
+    }
+    
+    public long getPendingBytes() {
+        return pendingBytes;
+    }
+    
+    public long getCompletedCount() {
+        return completedCount;
+    }
+    
+    /**
+     * 因超时或超出内存上限而丢弃的消息数
+     */
+    public long getExpiredCount() {
+        return expiredCount;
+    }
+    
+    public long getInvalidCount() {
+        return invalidCount;
+    }
+}
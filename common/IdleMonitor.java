@@ -0,0 +1,136 @@
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * 空闲会话检测
+ * 每个会话登记一个Entry，收到数据时调用touch()记录最后活动时间，只是一次volatile写。
+ * 监视线程用分层时间轮为每个会话安排一个在 最后活动时间 + 超时时间 到期的定时任务；
+ * 到期时如果会话在此期间有过活动，就按新的最后活动时间重新安排，否则调用会话的onIdle。
+ * 因此既不需要每条消息都调整定时任务，也不需要定期扫描全部会话。
+ *
+ * TCP服务器和UDP服务器共用这一机制，客户端定期发送心跳保持活动。
+ */
+public class IdleMonitor implements Runnable {
+    private final long timeoutNanos;
+    private final long tickNanos;
+    private final TimingWheel wheel;
+    private final Thread thread;
+    private volatile boolean isRunning = true;
+
+    // 其他线程登记的会话，由监视线程放入时间轮
+    private final Queue<Entry> registrations = new ConcurrentLinkedQueue<>();
+
+    /**
+     * 一个被监视的会话
+     */
+    public static final class Entry extends TimingWheel.Timeout {
+        private final IdleMonitor monitor;
+        private final Runnable onIdle;
+        private volatile long lastActivity = System.nanoTime();
+        private volatile boolean cancelled = false;
+
+        private Entry(IdleMonitor monitor, Runnable onIdle) {
+            this.monitor = monitor;
+            this.onIdle = onIdle;
+        }
+
+        /**
+         * 记录一次活动
+         */
+        public void touch() {
+            lastActivity = System.nanoTime();
+        }
+
+        /**
+         * 会话已经关闭，不再监视
+         * 定时任务留在时间轮中，到期时直接丢弃
+         */
+        public void cancel() {
+            cancelled = true;
+        }
+
+        @Override
+        protected void onExpire(long now) {
+            monitor.check(this, now);
+        }
+    }
+
+    public IdleMonitor(String name, long timeout, TimeUnit unit) {
+        this.timeoutNanos = unit.toNanos(timeout);
+        // 检测精度为超时时间的1/16，至少10毫秒
+        this.tickNanos = Math.max(timeoutNanos / 16, TimeUnit.MILLISECONDS.toNanos(10));
+        this.wheel = new TimingWheel(tickNanos, System.nanoTime());
+        this.thread = new Thread(this, name);
+        this.thread.setDaemon(true);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    /**
+     * 创建一个不被监视的Entry，用于关闭了空闲检测的服务器，touch和cancel都不产生任何效果
+     */
+    public static Entry unwatched() {
+        return new Entry(null, null);
+    }
+    
+    /**
+     * 登记一个会话，从现在开始计算空闲时间
+     * @param onIdle 会话空闲超时时在监视线程上调用，应尽快返回
+     */
+    public Entry register(Runnable onIdle) {
+        Entry entry = new Entry(this, onIdle);
+        registrations.add(entry);
+        return entry;
+    }
+
+    @Override
+    public void run() {
+        while (isRunning) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(tickNanos);
+            } catch (InterruptedException e) {
+                break;
+            }
+            long now = System.nanoTime();
+            Entry entry;
+            while ((entry = registrations.poll()) != null) {
+                if (!entry.cancelled) {
+                    wheel.schedule(entry, entry.lastActivity + timeoutNanos);
+                }
+            }
+            wheel.advance(now);
+        }
+    }
+
+    private void check(Entry entry, long now) {
+        if (entry.cancelled) {
+            return;
+        }
+        long lastActivity = entry.lastActivity;
+        if (now - lastActivity < timeoutNanos) {
+            // 期间有过活动，按最后活动时间重新安排
+            wheel.schedule(entry, lastActivity + timeoutNanos);
+            return;
+        }
+        entry.cancelled = true;
+        try {
+            entry.onIdle.run();
+        } catch (RuntimeException e) {
+            System.err.println("处理空闲会话时出错: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 当前监视的会话数
+     */
+    public int size() {
+        return wheel.size() + registrations.size();
+    }
+
+    public void stop() {
+        isRunning = false;
+        thread.interrupt();
+    }
+}
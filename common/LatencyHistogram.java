@@ -0,0 +1,155 @@
+import java.util.concurrent.atomic.*;
+
+/**
+ * 线程安全的延迟直方图
+ * 对数线性分桶：小于128的值每个值一个桶，之后每个2的幂区间分为64个桶，相对误差不超过1/64。
+ * 固定3712个桶覆盖全部long范围，记录时只有几次原子加，不加锁、不分配内存，可以由大量线程同时记录。
+ * 除了延迟，也可以用来记录队列长度、广播人数等非负整数的分布。
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int SUB_BUCKET_HALF = SUB_BUCKET_COUNT / 2;
+    private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS) * SUB_BUCKET_HALF + SUB_BUCKET_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final LongAdder total = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * 某一时刻直方图的副本，不再变化，可以计算两个副本之间新增的部分
+     */
+    public static final class Snapshot {
+        private final long[] counts;
+        private final long total;
+        private final long sum;
+        private final long max;
+
+        private Snapshot(long[] counts, long total, long sum, long max) {
+            this.counts = counts;
+            this.total = total;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        public long count() {
+            return total;
+        }
+
+        public long max() {
+            return max;
+        }
+
+        public double mean() {
+            return total == 0 ? 0 : (double) sum / total;
+        }
+
+        /**
+         * @param percentile 0到100之间
+         * @return 不小于percentile%的记录值的最小值（按桶上界），没有记录时返回0
+         */
+        public long valueAt(double percentile) {
+            if (total == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+            long seen = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(highestValueOf(i), max);
+                }
+            }
+            return max;
+        }
+
+        /**
+         * 从earlier到这个副本之间记录的部分
+         * 区间内的最大值按最高的非空桶的上界估计
+         */
+        public Snapshot since(Snapshot earlier) {
+            long[] delta = new long[BUCKET_COUNT];
+            long deltaTotal = 0;
+            int highest = -1;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                delta[i] = Math.max(0, counts[i] - earlier.counts[i]);
+                deltaTotal += delta[i];
+                if (delta[i] > 0) {
+                    highest = i;
+                }
+            }
+            long deltaMax = highest < 0 ? 0 : Math.min(highestValueOf(highest), max);
+            return new Snapshot(delta, deltaTotal, Math.max(0, sum - earlier.sum), deltaMax);
+        }
+    }
+
+    /**
+     * 记录一个值，负数按0记录
+     */
+    public void record(long value) {
+        long v = Math.max(0, value);
+        counts.incrementAndGet(indexOf(v));
+        total.increment();
+        sum.add(v);
+        long current;
+        while (v > (current = max.get()) && !max.compareAndSet(current, v)) {
+            // 重试
+        }
+    }
+
+    private static int indexOf(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return shift * SUB_BUCKET_HALF + (int) (value >>> shift);
+    }
+
+    /**
+     * 桶中的最大值，百分位数按桶的上界报告，不会低估
+     */
+    private static long highestValueOf(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = index / SUB_BUCKET_HALF - 1;
+        long sub = index - shift * SUB_BUCKET_HALF;
+        return ((sub + 1) << shift) - 1;
+    }
+
+    public long count() {
+        return total.sum();
+    }
+
+    public long max() {
+        return max.get();
+    }
+
+    public double mean() {
+        long n = total.sum();
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    /**
+     * @param percentile 0到100之间
+     * @return 不小于percentile%的记录值的最小值（按桶上界），没有记录时返回0
+     */
+    public long valueAt(double percentile) {
+        return snapshot().valueAt(percentile);
+    }
+
+    /**
+     * 复制当前的计数，记录可以同时进行
+     * 总数按复制到的各桶计数求和，与百分位数保持一致
+     */
+    public Snapshot snapshot() {
+        long[] copy = new long[BUCKET_COUNT];
+        long copiedTotal = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            copy[i] = counts.get(i);
+            copiedTotal += copy[i];
+        }
+        return new Snapshot(copy, copiedTotal, sum.sum(), max.get());
+    }
+}
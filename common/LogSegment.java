@@ -0,0 +1,333 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.zip.*;
+
+/**
+ * 消息日志的一个分段
+ * 数据文件和索引文件都按固定大小映射到内存（MappedByteBuffer），写入只是内存复制，
+ * 由MessageLog的刷盘线程统一调用force()。
+ * 文件名为该分段第一条消息的序号，例如 00000000000000012345.log 和 00000000000000012345.index。
+ *
+ * 记录格式（大端字节序）：
+ *   int    length     后续字节数
+ *   int    crc        CRC32，覆盖crc之后的全部内容
+ *   long   timestamp  写入时间（毫秒）
+ *   byte   opcode     消息类型，与ChatFrame相同
+ *   int    senderId   发送者会话编号
+ *   byte   roomLength 房间名长度
+ *   byte[] room       UTF-8编码的房间名
+ *   byte[] text       UTF-8编码的消息
+ * length为0表示分段中的数据到此为止，crc不符说明写入时进程崩溃，之后的数据都丢弃。
+ *
+ * 索引是稀疏的，数据每增长indexInterval字节记录一项：
+ *   int relativeOffset（相对分段起始序号） + int position + long timestamp，共16字节，
+ * timestamp为0的项表示索引到此为止。
+ * 不是线程安全的，写入由MessageLog加锁串行化；读取只使用duplicate()和绝对位置，可以与写入并发。
+ */
+class LogSegment {
+    static final int RECORD_HEADER_LENGTH = 22;
+    private static final int INDEX_ENTRY_LENGTH = 16;
+
+    final long baseOffset;
+    private final Path logPath;
+    private final Path indexPath;
+    private final FileChannel logChannel;
+    private final FileChannel indexChannel;
+    private final MappedByteBuffer log;
+    private final MappedByteBuffer index;
+    private final int indexInterval;
+    private final CRC32 crc = new CRC32();
+    // 计算CRC用的视图，只由写入者使用，避免每条记录都创建新的缓冲区对象
+    private final ByteBuffer crcView;
+
+    // 已写入的字节数和下一条消息的序号，读取者先读size再读取size之前的数据
+    private volatile int size = 0;
+    private volatile long nextOffset;
+    private volatile long maxTimestamp = 0;
+    private volatile int indexEntries = 0;
+    private int lastIndexedPosition = -1;
+    private volatile boolean dirty = false;
+
+    private LogSegment(Path dir, long baseOffset, int capacity, int indexInterval) throws IOException {
+        this.baseOffset = baseOffset;
+        this.nextOffset = baseOffset;
+        this.indexInterval = indexInterval;
+        this.logPath = dir.resolve(fileName(baseOffset, ".log"));
+        this.indexPath = dir.resolve(fileName(baseOffset, ".index"));
+        this.logChannel = FileChannel.open(logPath, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        this.indexChannel = FileChannel.open(indexPath, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        int logSize = (int) Math.max(capacity, logChannel.size());
+        int indexSize = (int) Math.max((logSize / indexInterval + 2) * (long) INDEX_ENTRY_LENGTH, indexChannel.size());
+        this.log = logChannel.map(FileChannel.MapMode.READ_WRITE, 0, logSize);
+        this.index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, indexSize);
+        this.crcView = log.duplicate();
+    }
+
+    static String fileName(long baseOffset, String suffix) {
+        return String.format("%020d%s", baseOffset, suffix);
+    }
+
+    /**
+     * 创建新的空分段
+     */
+    static LogSegment create(Path dir, long baseOffset, int capacity, int indexInterval) throws IOException {
+        return new LogSegment(dir, baseOffset, capacity, indexInterval);
+    }
+
+    /**
+     * 打开已有的分段，从最后一个有效的索引项开始扫描，找到数据的末尾
+     * 进程崩溃时数据页和索引页可能只有一部分写回磁盘，指向无效记录的索引项会被丢弃
+     */
+    static LogSegment open(Path dir, long baseOffset, int capacity, int indexInterval) throws IOException {
+        LogSegment segment = new LogSegment(dir, baseOffset, capacity, indexInterval);
+        segment.recover();
+        return segment;
+    }
+
+    private void recover() {
+        int maxEntries = index.capacity() / INDEX_ENTRY_LENGTH;
+        while (indexEntries < maxEntries && index.getLong(indexEntries * INDEX_ENTRY_LENGTH + 8) != 0) {
+            indexEntries++;
+        }
+        while (indexEntries > 0) {
+            int entry = (indexEntries - 1) * INDEX_ENTRY_LENGTH;
+            int position = index.getInt(entry + 4);
+            if (position >= 0 && position < log.capacity() && recordLength(position) > 0) {
+                break;
+            }
+            index.putLong(entry + 8, 0);
+            indexEntries--;
+        }
+
+        int position = 0;
+        long offset = baseOffset;
+        if (indexEntries > 0) {
+            int entry = (indexEntries - 1) * INDEX_ENTRY_LENGTH;
+            offset = baseOffset + index.getInt(entry);
+            position = index.getInt(entry + 4);
+            lastIndexedPosition = position;
+        }
+        int length;
+        while ((length = recordLength(position)) > 0) {
+            maxTimestamp = Math.max(maxTimestamp, log.getLong(position + 8));
+            position += length;
+            offset++;
+        }
+        // 把崩溃时写了一半的记录清掉，之后从这里继续写
+        for (int i = position; i < Math.min(position + RECORD_HEADER_LENGTH, log.capacity()); i++) {
+            log.put(i, (byte) 0);
+        }
+        size = position;
+        nextOffset = offset;
+    }
+
+    /**
+     * 检查position处的记录，有效时返回记录的总长度，否则返回0
+     */
+    private int recordLength(int position) {
+        if (position + RECORD_HEADER_LENGTH > log.capacity()) {
+            return 0;
+        }
+        int length = log.getInt(position);
+        if (length < RECORD_HEADER_LENGTH - 4 || position + 4 + length > log.capacity()) {
+            return 0;
+        }
+        if (checksum(position, length) != log.getInt(position + 4)) {
+            return 0;
+        }
+        return 4 + length;
+    }
+
+    /**
+     * 分段剩余空间是否能容纳指定长度的记录，末尾还要留出表示结束的4字节
+     */
+    boolean hasRoom(int recordLength) {
+        return size + recordLength + 4 <= log.capacity();
+    }
+
+    /**
+     * 追加一条记录，调用方需要先用hasRoom()检查空间
+     * @return 这条记录的序号
+     */
+    long append(long timestamp, byte opcode, int senderId, byte[] room, ByteBuffer text) {
+        int position = size;
+        int length = RECORD_HEADER_LENGTH - 4 + room.length + text.remaining();
+        log.putLong(position + 8, timestamp);
+        log.put(position + 16, opcode);
+        log.putInt(position + 17, senderId);
+        log.put(position + 21, (byte) room.length);
+        log.put(position + RECORD_HEADER_LENGTH, room);
+        log.put(position + RECORD_HEADER_LENGTH + room.length, text, text.position(), text.remaining());
+        log.putInt(position + 4, checksum(position, length));
+        log.putInt(position, length);
+
+        long offset = nextOffset;
+        if (lastIndexedPosition < 0 || position - lastIndexedPosition >= indexInterval) {
+            int entry = indexEntries * INDEX_ENTRY_LENGTH;
+            index.putInt(entry, (int) (offset - baseOffset));
+            index.putInt(entry + 4, position);
+            index.putLong(entry + 8, timestamp);
+            indexEntries++;
+            lastIndexedPosition = position;
+        }
+        maxTimestamp = Math.max(maxTimestamp, timestamp);
+        dirty = true;
+        nextOffset = offset + 1;
+        size = position + 4 + length;
+        return offset;
+    }
+
+    /**
+     * 计算position处记录中crc之后全部内容的CRC32
+     */
+    private int checksum(int position, int length) {
+        crcView.limit(position + 4 + length).position(position + 8);
+        crc.reset();
+        crc.update(crcView);
+        return (int) crc.getValue();
+    }
+
+    long nextOffset() {
+        return nextOffset;
+    }
+
+    long maxTimestamp() {
+        return maxTimestamp;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * 把已写入的数据和索引写回磁盘
+     * @return 是否有数据需要写回
+     */
+    boolean force() {
+        if (!dirty) {
+            return false;
+        }
+        dirty = false;
+        log.force();
+        index.force();
+        return true;
+    }
+
+    /**
+     * 在索引中查找序号不大于offset的最后一项，返回其记录位置和序号
+     * @param end 只使用指向end之前的索引项，与写入并发时索引可能比读到的size更新
+     * @return {position, offset}
+     */
+    long[] seekOffset(long offset, int end) {
+        int low = 0;
+        int high = indexEntries - 1;
+        while (high >= 0 && index.getInt(high * INDEX_ENTRY_LENGTH + 4) >= end) {
+            high--;
+        }
+        int found = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (baseOffset + index.getInt(mid * INDEX_ENTRY_LENGTH) <= offset) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        if (found < 0) {
+            return new long[] {0, baseOffset};
+        }
+        int entry = found * INDEX_ENTRY_LENGTH;
+        return new long[] {index.getInt(entry + 4), baseOffset + index.getInt(entry)};
+    }
+
+    /**
+     * 在索引中查找时间戳不小于timestamp的第一项的序号，都更早时返回分段末尾的序号
+     * 索引是稀疏的，返回的序号之前可能还有少量符合条件的记录
+     */
+    long offsetForTime(long timestamp) {
+        int low = 0;
+        int high = indexEntries - 1;
+        int found = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (index.getLong(mid * INDEX_ENTRY_LENGTH + 8) >= timestamp) {
+                found = mid;
+                high = mid - 1;
+            } else {
+                low = mid + 1;
+            }
+        }
+        if (found <= 0) {
+            return found == 0 ? baseOffset : nextOffset;
+        }
+        // 从前一项开始，不漏掉两个索引项之间的记录
+        return baseOffset + index.getInt((found - 1) * INDEX_ENTRY_LENGTH);
+    }
+
+    /**
+     * 从fromOffset开始按顺序读取记录，直到分段末尾或visitor返回false
+     * @return visitor要求停止时返回false
+     */
+    boolean read(long fromOffset, MessageLog.Visitor visitor) {
+        int end = size;
+        long[] start = seekOffset(fromOffset, end);
+        int position = (int) start[0];
+        long offset = start[1];
+        ByteBuffer view = log.duplicate();
+        while (position + 4 <= end) {
+            int length = view.getInt(position);
+            if (length <= 0) {
+                break;
+            }
+            if (offset >= fromOffset) {
+                int roomLength = view.get(position + 21) & 0xFF;
+                byte[] room = new byte[roomLength];
+                view.get(position + RECORD_HEADER_LENGTH, room);
+                byte[] text = new byte[length - (RECORD_HEADER_LENGTH - 4) - roomLength];
+                view.get(position + RECORD_HEADER_LENGTH + roomLength, text);
+                MessageLog.Record record = new MessageLog.Record(offset, view.getLong(position + 8),
+                        view.get(position + 16), view.getInt(position + 17),
+                        new String(room, StandardCharsets.UTF_8), text);
+                if (!visitor.visit(record)) {
+                    return false;
+                }
+            }
+            position += 4 + length;
+            offset++;
+        }
+        return true;
+    }
+
+    /**
+     * 关闭文件，映射的内存在被回收之前仍然有效
+     */
+    void close() {
+        try {
+            logChannel.close();
+            indexChannel.close();
+        } catch (IOException e) {
+            System.err.println("关闭日志分段时出错: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 关闭并删除分段的文件
+     * Windows上文件在映射被回收之前无法删除，删除失败时返回false，稍后再试
+     */
+    boolean delete() {
+        close();
+        try {
+            Files.deleteIfExists(indexPath);
+            Files.deleteIfExists(logPath);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,359 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+import java.util.stream.*;
+
+/**
+ * 只追加的消息日志
+ * 由若干个LogSegment组成，每个分段写满后新建下一个，消息按写入顺序编号（序号）。
+ *
+ * 写入只是在持有锁的情况下把记录复制到映射内存，不做任何磁盘同步；
+ * 后台刷盘线程每隔flushInterval把这段时间内写入的所有记录一起force()到磁盘（组提交），
+ * 广播线程不会因为fsync而阻塞。进程崩溃时最多丢失最后一个刷盘间隔内的消息，
+ * 写了一半的记录在重新打开时通过CRC识别并丢弃。
+ *
+ * 刷盘线程同时负责按总大小和时间删除最早的分段，当前分段不会被删除。
+ */
+public class MessageLog implements Closeable {
+    // 稀疏索引的间隔
+    private static final int INDEX_INTERVAL = 4096;
+
+    /**
+     * 读出的一条记录
+     */
+    public static final class Record {
+        public final long offset;
+        public final long timestamp;
+        public final byte opcode;
+        public final int senderId;
+        public final String room;
+        public final byte[] text;
+
+        Record(long offset, long timestamp, byte opcode, int senderId, String room, byte[] text) {
+            this.offset = offset;
+            this.timestamp = timestamp;
+            this.opcode = opcode;
+            this.senderId = senderId;
+            this.room = room;
+            this.text = text;
+        }
+    }
+
+    /**
+     * 按顺序接收读出的记录
+     */
+    public interface Visitor {
+        /**
+         * @return 返回false时停止读取
+         */
+        boolean visit(Record record);
+    }
+
+    private final Path dir;
+    private final int segmentBytes;
+    private final long flushIntervalMillis;
+    private final long retentionBytes;
+    private final long retentionMillis;
+
+    // 分段列表按序号排列，最后一个是当前写入的分段，修改时持有lock
+    private final ReentrantLock lock = new ReentrantLock();
+    private volatile List<LogSegment> segments;
+    private LogSegment active;
+
+    // 已经写满、等待刷盘线程最后一次force()的分段
+    private final Queue<LogSegment> rolled = new ConcurrentLinkedQueue<>();
+
+    // 删除失败、等待重试的分段，只由刷盘线程访问
+    private final List<LogSegment> undeleted = new ArrayList<>();
+
+    private final Thread flusher;
+    private volatile boolean isRunning = true;
+
+    /**
+     * 打开或创建日志目录
+     * @param segmentBytes 每个分段的大小
+     * @param flushIntervalMillis 组提交的间隔
+     * @param retentionBytes 所有分段的总大小上限，0表示不限制
+     * @param retentionMillis 分段中最新一条消息超过这个时间后删除该分段，0表示不限制
+     */
+    public MessageLog(Path dir, int segmentBytes, long flushIntervalMillis,
+                      long retentionBytes, long retentionMillis) throws IOException {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.flushIntervalMillis = flushIntervalMillis;
+        this.retentionBytes = retentionBytes;
+        this.retentionMillis = retentionMillis;
+        Files.createDirectories(dir);
+
+        List<Long> baseOffsets;
+        try (Stream<Path> files = Files.list(dir)) {
+            baseOffsets = files.map(path -> path.getFileName().toString())
+                    .filter(name -> name.matches("\\d{20}\\.log"))
+                    .map(name -> Long.parseLong(name.substring(0, 20)))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+        List<LogSegment> opened = new ArrayList<>();
+        for (long baseOffset : baseOffsets) {
+            opened.add(LogSegment.open(dir, baseOffset, segmentBytes, INDEX_INTERVAL));
+        }
+        if (opened.isEmpty()) {
+            opened.add(LogSegment.create(dir, 0, segmentBytes, INDEX_INTERVAL));
+        }
+        for (int i = 0; i < opened.size() - 1; i++) {
+            opened.get(i).close();
+        }
+        this.active = opened.get(opened.size() - 1);
+        this.segments = Collections.unmodifiableList(opened);
+
+        this.flusher = new Thread(this::flushLoop, "message-log-flusher");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    /**
+     * 按服务器参数打开日志目录，TCP和UDP服务器共用
+     * 参数：--log-segment-mb、--log-flush-ms、--log-retention-mb、--log-retention-hours
+     */
+    public static MessageLog open(Path dir, ServerOptions options) throws IOException {
+        int segmentMegabytes = options.getInt("log-segment-mb", 64);
+        if (segmentMegabytes < 1 || segmentMegabytes > 1024) {
+            throw new IllegalArgumentException("参数 --log-segment-mb 需要在 1 到 1024 之间: " + segmentMegabytes);
+        }
+        int segmentBytes = segmentMegabytes * 1024 * 1024;
+        long flushMillis = options.getLong("log-flush-ms", 100);
+        long retentionBytes = options.getLong("log-retention-mb", 1024) * 1024 * 1024;
+        long retentionMillis = TimeUnit.HOURS.toMillis(options.getLong("log-retention-hours", 168));
+        return new MessageLog(dir, segmentBytes, flushMillis, retentionBytes, retentionMillis);
+    }
+
+    /**
+     * 追加一条消息
+     * @return 消息的序号
+     */
+    public long append(long timestamp, byte opcode, int senderId, byte[] room, byte[] text, int offset, int length) {
+        return append(timestamp, opcode, senderId, room, ByteBuffer.wrap(text, offset, length));
+    }
+
+    /**
+     * 追加一条消息，内容为text中position到limit之间的字节，不改变text的position
+     * @return 消息的序号，消息过长时返回-1
+     */
+    public long append(long timestamp, byte opcode, int senderId, byte[] room, ByteBuffer text) {
+        int recordLength = LogSegment.RECORD_HEADER_LENGTH + room.length + text.remaining();
+        if (room.length > 255 || recordLength + 4 > segmentBytes) {
+            return -1;
+        }
+        lock.lock();
+        try {
+            if (!active.hasRoom(recordLength)) {
+                roll();
+            }
+            return active.append(timestamp, opcode, senderId, room, text);
+        } catch (IOException e) {
+            System.err.println("写入消息日志失败: " + e.getMessage());
+            return -1;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 新建分段，写满的分段交给刷盘线程做最后一次force()
+     */
+    private void roll() throws IOException {
+        LogSegment next = LogSegment.create(dir, active.nextOffset(), segmentBytes, INDEX_INTERVAL);
+        rolled.add(active);
+        List<LogSegment> updated = new ArrayList<>(segments);
+        updated.add(next);
+        segments = Collections.unmodifiableList(updated);
+        active = next;
+    }
+
+    /**
+     * 下一条消息的序号
+     */
+    public long nextOffset() {
+        lock.lock();
+        try {
+            return active.nextOffset();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 最早仍然保留的消息的序号
+     */
+    public long firstOffset() {
+        return segments.get(0).baseOffset;
+    }
+
+    /**
+     * 查找不早于timestamp写入的第一条消息的大致序号，
+     * 由于索引是稀疏的，返回的序号之前可能还有少量符合条件的消息
+     */
+    public long offsetForTime(long timestamp) {
+        List<LogSegment> current = segments;
+        for (LogSegment segment : current) {
+            if (segment.maxTimestamp() >= timestamp) {
+                return segment.offsetForTime(timestamp);
+            }
+        }
+        return current.get(current.size() - 1).nextOffset();
+    }
+
+    /**
+     * 从fromOffset开始按顺序读取已写入的消息，可以与写入并发
+     */
+    public void read(long fromOffset, Visitor visitor) {
+        List<LogSegment> current = segments;
+        for (int i = 0; i < current.size(); i++) {
+            LogSegment segment = current.get(i);
+            if (i + 1 < current.size() && current.get(i + 1).baseOffset <= fromOffset) {
+                continue;
+            }
+            if (!segment.read(fromOffset, visitor)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * 读取最近的消息，用于重启后恢复历史
+     * 先用时间索引定位到sinceTimestamp，再限制最多maxRecords条，只读取日志末尾的一小段
+     */
+    public void readRecent(long sinceTimestamp, int maxRecords, Visitor visitor) {
+        long from = Math.max(offsetForTime(sinceTimestamp), nextOffset() - maxRecords);
+        read(Math.max(from, firstOffset()), record -> record.timestamp < sinceTimestamp || visitor.visit(record));
+    }
+
+    /**
+     * 从日志末尾读取最近的聊天消息，放回各房间的历史并重新建立检索索引，用于服务器启动
+     * 只读取 --log-load-hours 之内、最多 --log-load-max 条消息，启动时间与日志总大小无关
+     * @param rooms 放回最近消息的房间索引，为null时不恢复历史
+     * @param searchIndex 重新建立的检索索引，为null时不建立
+     * @return 恢复的聊天消息条数
+     */
+    public int restoreRecent(ServerOptions options, RoomIndex<?> rooms, SearchIndex searchIndex) {
+        long since = System.currentTimeMillis() - TimeUnit.HOURS.toMillis(options.getLong("log-load-hours", 24));
+        int maxRecords = options.getInt("log-load-max", 10000);
+        int[] restored = {0};
+        readRecent(since, maxRecords, record -> {
+            if (record.opcode == ChatFrame.CHAT) {
+                if (rooms != null) {
+                    MessageRing history = rooms.openHistory(record.room);
+                    if (history != null) {
+                        history.append(record.opcode, record.senderId, record.text, 0, record.text.length);
+                    }
+                }
+                if (searchIndex != null) {
+                    searchIndex.add(record.room, record.text);
+                }
+                restored[0]++;
+            }
+            return true;
+        });
+        return restored[0];
+    }
+
+    /**
+     * 刷盘线程：定期把新写入的数据写回磁盘，并删除超出保留范围的分段
+     */
+    private void flushLoop() {
+        while (isRunning) {
+            try {
+                TimeUnit.MILLISECONDS.sleep(flushIntervalMillis);
+            } catch (InterruptedException e) {
+                break;
+            }
+            flush();
+            applyRetention();
+        }
+        flush();
+    }
+
+    /**
+     * 组提交：一次force()覆盖上次刷盘以来写入的所有消息
+     * 不持有写入锁，写入和刷盘可以同时进行
+     */
+    private void flush() {
+        LogSegment segment;
+        while ((segment = rolled.poll()) != null) {
+            segment.force();
+            segment.close();
+        }
+        LogSegment current;
+        lock.lock();
+        try {
+            current = active;
+        } finally {
+            lock.unlock();
+        }
+        current.force();
+    }
+
+    /**
+     * 删除超出总大小或时间限制的最早分段
+     */
+    private void applyRetention() {
+        undeleted.removeIf(LogSegment::delete);
+        if (retentionBytes <= 0 && retentionMillis <= 0) {
+            return;
+        }
+        List<LogSegment> current = segments;
+        long total = 0;
+        for (LogSegment segment : current) {
+            total += segment.size();
+        }
+        long now = System.currentTimeMillis();
+        int expired = 0;
+        while (expired < current.size() - 1) {
+            LogSegment oldest = current.get(expired);
+            boolean overSize = retentionBytes > 0 && total > retentionBytes;
+            boolean tooOld = retentionMillis > 0 && now - oldest.maxTimestamp() > retentionMillis;
+            if (!overSize && !tooOld) {
+                break;
+            }
+            total -= oldest.size();
+            expired++;
+        }
+        if (expired == 0) {
+            return;
+        }
+        lock.lock();
+        try {
+            List<LogSegment> updated = new ArrayList<>(segments);
+            List<LogSegment> removed = new ArrayList<>(updated.subList(0, expired));
+            updated.subList(0, expired).clear();
+            segments = Collections.unmodifiableList(updated);
+            for (LogSegment segment : removed) {
+                if (!segment.delete()) {
+                    undeleted.add(segment);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        isRunning = false;
+        flusher.interrupt();
+        try {
+            flusher.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        lock.lock();
+        try {
+            active.close();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
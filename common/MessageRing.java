@@ -0,0 +1,178 @@
+import java.lang.invoke.VarHandle;
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * 最近消息的环形缓冲区
+ * 创建时一次性分配 capacity × slotSize 字节（可以放在堆外），之后不再分配，
+ * 无论消息量多大内存都固定；写满后覆盖最早的消息，超过槽位大小的消息被截断。
+ *
+ * 同一时间只有一个写入者（多个线程写入时用锁串行化），读取不加锁：
+ * 每个槽位有一个版本号，写入前置为WRITING，写完后置为消息序号，
+ * 读取者复制内容前后各读一次版本号，不一致说明读取期间被覆盖，丢弃这条消息。
+ *
+ * 槽位格式：opcode(1字节) + senderId(4字节) + 长度(4字节) + UTF-8编码的消息
+ */
+public class MessageRing {
+    private static final int SLOT_HEADER_LENGTH = 9;
+    private static final long EMPTY = -1;
+    private static final long WRITING = -2;
+
+    /**
+     * 读出的一条消息
+     */
+    public static final class Entry {
+        public final byte opcode;
+        public final int senderId;
+        public final byte[] text;
+
+        private Entry(byte opcode, int senderId, byte[] text) {
+            this.opcode = opcode;
+            this.senderId = senderId;
+            this.text = text;
+        }
+    }
+
+    private final int capacity;
+    private final int slotSize;
+    private final ByteBuffer slots;
+    private final AtomicLongArray versions;
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    // 下一条消息的序号，只在持有写锁时修改
+    private volatile long tail = 0;
+
+    /**
+     * @param capacity 最多保留的消息条数
+     * @param slotSize 每个槽位的字节数，包括9字节的头部
+     * @param offHeap 是否使用堆外内存
+     */
+    public MessageRing(int capacity, int slotSize, boolean offHeap) {
+        if (capacity <= 0 || slotSize <= SLOT_HEADER_LENGTH) {
+            throw new IllegalArgumentException("历史消息容量和槽位大小必须为正数");
+        }
+        if ((long) capacity * slotSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("历史消息缓冲区过大: " + capacity + " × " + slotSize);
+        }
+        this.capacity = capacity;
+        this.slotSize = slotSize;
+        this.slots = offHeap ? ByteBuffer.allocateDirect(capacity * slotSize) : ByteBuffer.allocate(capacity * slotSize);
+        this.versions = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            versions.set(i, EMPTY);
+        }
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * 追加一条消息
+     */
+    public void append(byte opcode, int senderId, byte[] text, int offset, int length) {
+        writeLock.lock();
+        try {
+            long sequence = tail;
+            int base = beginWrite(sequence, opcode, senderId);
+            int stored = truncatedLength(text, offset, length);
+            slots.putInt(base + 5, stored);
+            slots.put(base + SLOT_HEADER_LENGTH, text, offset, stored);
+            endWrite(sequence);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * 追加一条消息，内容为text中position到limit之间的字节，不改变text的position
+     */
+    public void append(byte opcode, int senderId, ByteBuffer text) {
+        writeLock.lock();
+        try {
+            long sequence = tail;
+            int base = beginWrite(sequence, opcode, senderId);
+            int stored = truncatedLength(text, text.position(), text.remaining());
+            slots.putInt(base + 5, stored);
+            slots.put(base + SLOT_HEADER_LENGTH, text, text.position(), stored);
+            endWrite(sequence);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * 读取最近的消息，按时间从早到晚排列
+     * 读取期间被覆盖的消息会被跳过，所以返回的条数可能少于n
+     */
+    public List<Entry> recent(int n) {
+        long end = tail;
+        long start = Math.max(0, end - Math.min(n, capacity));
+        List<Entry> result = new ArrayList<>((int) (end - start));
+        for (long sequence = start; sequence < end; sequence++) {
+            int slot = (int) (sequence % capacity);
+            if (versions.get(slot) != sequence) {
+                continue;
+            }
+            int base = slot * slotSize;
+            byte opcode = slots.get(base);
+            int senderId = slots.getInt(base + 1);
+            int length = Math.min(slots.getInt(base + 5), slotSize - SLOT_HEADER_LENGTH);
+            byte[] text = new byte[Math.max(length, 0)];
+            slots.get(base + SLOT_HEADER_LENGTH, text);
+
+            // 复制的内容必须在再次读取版本号之前完成
+            VarHandle.acquireFence();
+            if (versions.get(slot) == sequence) {
+                result.add(new Entry(opcode, senderId, text));
+            }
+        }
+        return result;
+    }
+
+    private int beginWrite(long sequence, byte opcode, int senderId) {
+        int slot = (int) (sequence % capacity);
+        versions.set(slot, WRITING);
+        // 版本号必须在槽位内容之前改变，读取者才能发现内容正在被覆盖
+        VarHandle.storeStoreFence();
+        int base = slot * slotSize;
+        slots.put(base, opcode);
+        slots.putInt(base + 1, senderId);
+        return base;
+    }
+
+    private void endWrite(long sequence) {
+        // volatile写保证读取者看到版本号时槽位内容已经写完
+        versions.set((int) (sequence % capacity), sequence);
+        tail = sequence + 1;
+    }
+
+    /**
+     * 超过槽位大小时截断，并退回到UTF-8字符的边界
+     */
+    private int truncatedLength(byte[] text, int offset, int length) {
+        int max = slotSize - SLOT_HEADER_LENGTH;
+        if (length <= max) {
+            return length;
+        }
+        int cut = max;
+        while (cut > 0 && (text[offset + cut] & 0xC0) == 0x80) {
+            cut--;
+        }
+        return cut;
+    }
+
+    private int truncatedLength(ByteBuffer text, int offset, int length) {
+        int max = slotSize - SLOT_HEADER_LENGTH;
+        if (length <= max) {
+            return length;
+        }
+        int cut = max;
+        while (cut > 0 && (text.get(offset + cut) & 0xC0) == 0x80) {
+            cut--;
+        }
+        return cut;
+    }
+}
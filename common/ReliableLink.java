@@ -0,0 +1,408 @@
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * UDP可靠传输链路
+ * 一个链路对应一个远端地址，同时负责两个方向：
+ * 发送方向为每条消息分配序号，放入大小为WINDOW_SIZE的滑动窗口，
+ * 按RTT估算的超时时间重传未确认的消息；
+ * 接收方向按序号去重、重排后按顺序交给上层，并回复累积确认和选择确认。
+ *
+ * 每个链路的窗口和序号互相独立，一个客户端丢包只会让它自己的消息等待重传，
+ * 不会阻塞其他客户端。
+ *
+ * 每个链路创建时随机生成一个会话编号，放在发出的每个DATA中。接收方记住对方的会话编号，
+ * 对方重启后换了会话编号，序号重新从1开始，不会被当作旧会话的重复消息；
+ * 旧会话延迟到达的DATA直接丢弃。
+ *
+ * 数据报格式（大端字节序），首字节不是可打印字符，与文本协议不会混淆：
+ * DATA: 0x01 | 会话编号(4字节) | seq(4字节) | payload
+ * ACK:  0x02 | 累积确认序号(4字节) | 选择确认位图(8字节)
+ * 位图第i位表示序号 累积确认序号+2+i 的消息已收到。
+ */
+public class ReliableLink {
+    public static final byte DATA = 0x01;
+    public static final byte ACK = 0x02;
+    public static final int DATA_HEADER_LENGTH = 9;
+    public static final int ACK_LENGTH = 13;
+    
+    // 窗口大小，必须是2的幂，且不超过位图能表示的范围
+    public static final int WINDOW_SIZE = 64;
+    private static final int MASK = WINDOW_SIZE - 1;
+    
+    // 窗口已满时最多排队的消息数，超过后丢弃新消息
+    private static final int MAX_BACKLOG = 1024;
+    // 同一条消息连续重传超过该次数后认为对方已不可达
+    private static final int MAX_RETRIES = 8;
+    
+    private static final long INITIAL_RTO = TimeUnit.MILLISECONDS.toNanos(200);
+    private static final long MIN_RTO = TimeUnit.MILLISECONDS.toNanos(20);
+    private static final long MAX_RTO = TimeUnit.SECONDS.toNanos(2);
+    
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+    
+    /**
+     * 把组装好的数据报发给远端，header之后紧跟payload
+     */
+    public interface Transport {
+        void transmit(ReliableLink link, ByteBuffer header, ByteBuffer payload) throws IOException;
+    }
+    
+    /**
+     * 按顺序接收消息
+     */
+    public interface Receiver {
+        void onDelivered(ReliableLink link, ByteBuffer payload);
+    }
+    
+    private final InetSocketAddress remote;
+    private final Transport transport;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ByteBuffer header = ByteBuffer.allocate(ACK_LENGTH);
+    
+    // 本端的会话编号，非0
+    private final int epoch;
+    // 对方的会话编号，收到第一个DATA之前为0
+    private int remoteEpoch = 0;
+    
+    // 发送方向：sendBase为最小的未确认序号，nextSeq为下一个要分配的序号
+    private int sendBase = 1;
+    private int nextSeq = 1;
+    private final ByteBuffer[] unacked = new ByteBuffer[WINDOW_SIZE];
+    private final long[] sentAt = new long[WINDOW_SIZE];
+    private final long[] deadline = new long[WINDOW_SIZE];
+    private final int[] retries = new int[WINDOW_SIZE];
+    private final ArrayDeque<ByteBuffer> backlog = new ArrayDeque<>();
+    
+    // RTT估算（Jacobson/Karels算法），单位纳秒
+    private long smoothedRtt = -1;
+    private long rttVariance;
+    private long rto = INITIAL_RTO;
+    private boolean lost = false;
+    
+    // 接收方向：receivedUpTo及之前的消息都已按顺序交给上层
+    private int receivedUpTo = 0;
+    private final ByteBuffer[] reorder = new ByteBuffer[WINDOW_SIZE];
+    
+    private long retransmitCount;
+    private long droppedCount;
+    private long duplicateCount;
+    
+    public ReliableLink(InetSocketAddress remote, Transport transport) {
+        this.remote = remote;
+        this.transport = transport;
+        int random;
+        do {
+            random = ThreadLocalRandom.current().nextInt();
+        } while (random == 0);
+        this.epoch = random;
+    }
+    
+    /**
+     * 判断数据报是否属于可靠传输协议
+     */
+    public static boolean isReliable(ByteBuffer datagram) {
+        if (!datagram.hasRemaining()) {
+            return false;
+        }
+        byte type = datagram.get(datagram.position());
+        return type == DATA || type == ACK;
+    }
+    
+    /**
+     * 判断数据报是否为一个会话的第一条消息（seq为1的DATA）
+     * 只有这样的数据报才应该为尚未建立链路的地址创建链路
+     */
+    public static boolean opensSession(ByteBuffer datagram) {
+        int start = datagram.position();
+        return datagram.remaining() >= DATA_HEADER_LENGTH && datagram.get(start) == DATA
+            && datagram.getInt(start + 5) == 1;
+    }
+    
+    /**
+     * 判断数据报是否为对方重启后新会话的第一条消息，此时应丢弃本链路，为新会话创建新的链路
+     */
+    public boolean isRestart(ByteBuffer datagram) {
+        if (!opensSession(datagram)) {
+            return false;
+        }
+        lock.lock();
+        try {
+            return remoteEpoch != 0 && datagram.getInt(datagram.position() + 1) != remoteEpoch;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    public InetSocketAddress getRemote() {
+        return remote;
+    }
+    
+    /**
+     * 可靠地发送一条消息
+     * payload在确认之前会被保留用于重传，调用方之后不能再修改其内容
+     * @return 消息已发出或已排队返回true，排队已满或对方已不可达返回false
+     */
+    public boolean send(ByteBuffer payload) {
+        lock.lock();
+        try {
+            if (lost) {
+                return false;
+            }
+            if (backlog.isEmpty() && nextSeq - sendBase < WINDOW_SIZE) {
+                transmitNew(payload);
+                return true;
+            }
+            if (backlog.size() >= MAX_BACKLOG) {
+                droppedCount++;
+                return false;
+            }
+            backlog.add(payload);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * 处理收到的DATA或ACK数据报
+     * 按顺序到达的消息直接以datagram本身交给receiver，提前到达的消息复制一份缓存起来。
+     * receiver在持有链路锁时被调用，可以在回调中调用本链路的send。
+     */
+    public void receive(ByteBuffer datagram, Receiver receiver) {
+        lock.lock();
+        try {
+            int start = datagram.position();
+            byte type = datagram.get(start);
+            if (type == ACK) {
+                if (datagram.remaining() >= ACK_LENGTH) {
+                    onAck(datagram.getInt(start + 1), datagram.getLong(start + 5));
+                }
+                return;
+            }
+            if (type != DATA || datagram.remaining() < DATA_HEADER_LENGTH) {
+                return;
+            }
+            int dataEpoch = datagram.getInt(start + 1);
+            if (remoteEpoch == 0) {
+                remoteEpoch = dataEpoch;
+            } else if (dataEpoch != remoteEpoch) {
+                // 其他会话的消息，不确认也不交付
+                return;
+            }
+            int seq = datagram.getInt(start + 5);
+            datagram.position(start + DATA_HEADER_LENGTH);
+            onData(seq, datagram, receiver);
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * 重传超时的消息
+     * @return 对方已不可达时返回false
+     */
+    public boolean onTimer(long now) {
+        lock.lock();
+        try {
+            if (lost) {
+                return false;
+            }
+            for (int seq = sendBase; seq != nextSeq; seq++) {
+                int slot = seq & MASK;
+                if (unacked[slot] == null || deadline[slot] - now > 0) {
+                    continue;
+                }
+                if (retries[slot] >= MAX_RETRIES) {
+                    markLost();
+                    return false;
+                }
+                retries[slot]++;
+                retransmitCount++;
+                // 每重传一次超时时间加倍
+                deadline[slot] = now + Math.min(rto << retries[slot], MAX_RTO);
+                transmitData(seq, unacked[slot]);
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * 是否还有已发送但未确认或正在排队的消息
+     */
+    public boolean hasUnacked() {
+        lock.lock();
+        try {
+            return !lost && (sendBase != nextSeq || !backlog.isEmpty());
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    public boolean isLost() {
+        lock.lock();
+        try {
+            return lost;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    public long getRetransmitCount() {
+        lock.lock();
+        try {
+            return retransmitCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    public long getDroppedCount() {
+        lock.lock();
+        try {
+            return droppedCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    public long getDuplicateCount() {
+        lock.lock();
+        try {
+            return duplicateCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    private void onData(int seq, ByteBuffer payload, Receiver receiver) {
+        int offset = seq - receivedUpTo;
+        if (offset <= 0) {
+            // 已经交付过的消息，说明之前的确认丢失了，重新确认
+            duplicateCount++;
+        } else if (offset == 1) {
+            receivedUpTo = seq;
+            receiver.onDelivered(this, payload);
+            
+            // 之前提前到达的后续消息现在可以按顺序交付
+            ByteBuffer buffered;
+            while ((buffered = reorder[(receivedUpTo + 1) & MASK]) != null) {
+                reorder[(receivedUpTo + 1) & MASK] = null;
+                receivedUpTo++;
+                receiver.onDelivered(this, buffered);
+            }
+        } else if (offset <= WINDOW_SIZE) {
+            int slot = seq & MASK;
+            if (reorder[slot] == null) {
+                ByteBuffer copy = ByteBuffer.allocate(payload.remaining());
+                copy.put(payload).flip();
+                reorder[slot] = copy;
+            } else {
+                duplicateCount++;
+            }
+        }
+        // 超出窗口的消息直接丢弃，对方会在收到确认后重传
+        sendAck();
+    }
+    
+    private void onAck(int cumulative, long selective) {
+        if (cumulative - nextSeq >= 0) {
+            // 确认了从未发送过的序号，忽略
+            return;
+        }
+        long now = System.nanoTime();
+        for (int seq = sendBase; seq != nextSeq && seq - cumulative <= 0; seq++) {
+            release(seq, now);
+        }
+        for (int i = 0; selective != 0 && i < WINDOW_SIZE - 1; i++, selective >>>= 1) {
+            int seq = cumulative + 2 + i;
+            if ((selective & 1) != 0 && seq - sendBase >= 0 && seq - nextSeq < 0) {
+                release(seq, now);
+            }
+        }
+        
+        // 窗口前沿的消息都确认后向前滑动，再从排队的消息中补满窗口
+        while (sendBase != nextSeq && unacked[sendBase & MASK] == null) {
+            sendBase++;
+        }
+        while (!backlog.isEmpty() && nextSeq - sendBase < WINDOW_SIZE) {
+            transmitNew(backlog.poll());
+        }
+    }
+    
+    /**
+     * 释放已确认的消息，未重传过的消息用于更新RTT估算（Karn算法）
+     */
+    private void release(int seq, long now) {
+        int slot = seq & MASK;
+        if (unacked[slot] == null) {
+            return;
+        }
+        if (retries[slot] == 0) {
+            updateRto(now - sentAt[slot]);
+        }
+        unacked[slot] = null;
+    }
+    
+    private void updateRto(long sample) {
+        if (smoothedRtt < 0) {
+            smoothedRtt = sample;
+            rttVariance = sample / 2;
+        } else {
+            rttVariance = (3 * rttVariance + Math.abs(smoothedRtt - sample)) / 4;
+            smoothedRtt = (7 * smoothedRtt + sample) / 8;
+        }
+        rto = Math.max(MIN_RTO, Math.min(MAX_RTO, smoothedRtt + 4 * rttVariance));
+    }
+    
+    private void transmitNew(ByteBuffer payload) {
+        int seq = nextSeq++;
+        int slot = seq & MASK;
+        long now = System.nanoTime();
+        unacked[slot] = payload;
+        retries[slot] = 0;
+        sentAt[slot] = now;
+        deadline[slot] = now + rto;
+        transmitData(seq, payload);
+    }
+    
+    private void transmitData(int seq, ByteBuffer payload) {
+        header.clear();
+        header.put(DATA).putInt(epoch).putInt(seq).flip();
+        transmit(payload.duplicate());
+    }
+    
+    private void sendAck() {
+        long selective = 0;
+        for (int i = 0; i < WINDOW_SIZE - 1; i++) {
+            if (reorder[(receivedUpTo + 2 + i) & MASK] != null) {
+                selective |= 1L << i;
+            }
+        }
+        header.clear();
+        header.put(ACK).putInt(receivedUpTo).putLong(selective).flip();
+        transmit(EMPTY);
+    }
+    
+    private void transmit(ByteBuffer payload) {
+        try {
+            transport.transmit(this, header, payload);
+        } catch (IOException e) {
+            // 发送失败与丢包同样处理，由重传负责恢复
+        }
+    }
+    
+    private void markLost() {
+        lost = true;
+        Arrays.fill(unacked, null);
+        Arrays.fill(reorder, null);
+        backlog.clear();
+        sendBase = nextSeq;
+    }
+}
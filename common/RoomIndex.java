@@ -0,0 +1,295 @@
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+
+/**
+ * 聊天房间索引
+ * 维护 房间 → 成员 和 成员 → 所在房间 两份索引，TCP服务器和UDP服务器共用。
+ * 每个成员同一时间只在一个房间中，登录时进入默认房间。
+ *
+ * 每个房间的成员列表是写时复制的不可变列表，广播时只读取一次volatile引用，
+ * 之后按下标遍历，不加锁也不产生新对象；加入和离开时复制一份新列表，代价与房间人数成正比。
+ * 同一成员的加入和离开通过ConcurrentHashMap.compute在该成员所在的桶上串行执行，
+ * 不同成员之间互不影响。
+ * 可以为每个房间配一个最近消息的环形缓冲区（见MessageRing），房间收到第一条消息时才创建，
+ * 随房间删除；同时拥有缓冲区的房间数有上限，超过上限的房间不保留历史，
+ * 客户端随意创建房间时历史占用的内存也不会超过 上限 × 每个缓冲区的大小。
+ */
+public class RoomIndex<M> {
+    // 房间名的最大长度
+    public static final int MAX_NAME_LENGTH = 32;
+
+    /**
+     * 一个房间
+     */
+    public static final class Room<M> {
+        private final String name;
+        private final byte[] nameBytes;
+        private final boolean permanent;
+        // 收到第一条消息时创建，只在持有房间的锁时赋值
+        private volatile MessageRing history;
+        private volatile List<M> members = Collections.emptyList();
+        // 房间变空后从索引中移除，之后不能再加入，需要重新创建
+        private boolean removed = false;
+
+        private Room(String name, boolean permanent) {
+            this.name = name;
+            this.nameBytes = name.getBytes(StandardCharsets.UTF_8);
+            this.permanent = permanent;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * UTF-8编码的房间名，不得修改
+         */
+        public byte[] getNameBytes() {
+            return nameBytes;
+        }
+
+        /**
+         * 房间的最近消息，未启用、房间还没有消息或超过上限时返回null
+         */
+        public MessageRing getHistory() {
+            return history;
+        }
+
+        /**
+         * 当前成员的快照，不可修改，之后的加入和离开不影响已取得的快照
+         */
+        public List<M> members() {
+            return members;
+        }
+
+        public int size() {
+            return members.size();
+        }
+
+        /**
+         * 加入成员
+         * @return 房间已被移除时返回false
+         */
+        private synchronized boolean add(M member) {
+            if (removed) {
+                return false;
+            }
+            List<M> current = members;
+            List<M> updated = new ArrayList<>(current.size() + 1);
+            updated.addAll(current);
+            updated.add(member);
+            members = Collections.unmodifiableList(updated);
+            return true;
+        }
+
+        /**
+         * 移除成员
+         * @return 房间变空并且可以删除时返回true
+         */
+        private synchronized boolean remove(M member) {
+            List<M> current = members;
+            int index = current.indexOf(member);
+            if (index >= 0) {
+                List<M> updated = new ArrayList<>(current);
+                updated.remove(index);
+                members = updated.isEmpty() ? Collections.emptyList() : Collections.unmodifiableList(updated);
+            }
+            if (members.isEmpty() && !permanent) {
+                removed = true;
+                return true;
+            }
+            return false;
+        }
+    }
+
+    private final String defaultRoom;
+    private final Supplier<MessageRing> historyFactory;
+    private final int maxHistoryRooms;
+    // 已创建最近消息缓冲区的房间数
+    private final AtomicInteger historyRooms = new AtomicInteger();
+    private final ConcurrentHashMap<String, Room<M>> rooms = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<M, Room<M>> memberRooms = new ConcurrentHashMap<>();
+
+    /**
+     * @param defaultRoom 默认房间，总是存在，没有成员时也不删除
+     */
+    public RoomIndex(String defaultRoom) {
+        this(defaultRoom, null, 0);
+    }
+
+    /**
+     * @param defaultRoom 默认房间，总是存在，没有成员时也不删除
+     * @param historyFactory 房间收到第一条消息时为它创建最近消息缓冲区，为null时不保留历史
+     * @param maxHistoryRooms 同时拥有缓冲区的房间数上限
+     */
+    public RoomIndex(String defaultRoom, Supplier<MessageRing> historyFactory, int maxHistoryRooms) {
+        if (historyFactory != null && maxHistoryRooms < 1) {
+            throw new IllegalArgumentException("保留历史的房间数需要大于0: " + maxHistoryRooms);
+        }
+        this.defaultRoom = defaultRoom;
+        this.historyFactory = historyFactory;
+        this.maxHistoryRooms = maxHistoryRooms;
+        rooms.put(defaultRoom, newRoom(defaultRoom, true));
+    }
+
+    public String getDefaultRoom() {
+        return defaultRoom;
+    }
+
+    /**
+     * 检查房间名，合法时返回去掉首尾空白后的名字，否则返回null
+     */
+    public static String normalizeName(String name) {
+        if (name == null) {
+            return null;
+        }
+        String trimmed = name.trim();
+        if (trimmed.isEmpty() || trimmed.length() > MAX_NAME_LENGTH) {
+            return null;
+        }
+        for (int i = 0; i < trimmed.length(); i++) {
+            if (Character.isWhitespace(trimmed.charAt(i))) {
+                return null;
+            }
+        }
+        return trimmed;
+    }
+
+    /**
+     * 进入房间，成员原来在其他房间时先离开原房间，房间不存在时创建
+     * @return 原来所在的房间，原来不在任何房间或已在目标房间时返回null
+     */
+    public Room<M> join(M member, String roomName) {
+        Room<M>[] previous = newRoomArray();
+        memberRooms.compute(member, (key, current) -> {
+            if (current != null && current.getName().equals(roomName)) {
+                return current;
+            }
+            if (current != null) {
+                removeFrom(current, member);
+                previous[0] = current;
+            }
+            while (true) {
+                Room<M> room = rooms.computeIfAbsent(roomName, name -> newRoom(name, false));
+                if (room.add(member)) {
+                    return room;
+                }
+                // 房间刚好变空被移除，重新创建
+                rooms.remove(roomName, room);
+            }
+        });
+        return previous[0];
+    }
+
+    /**
+     * 离开当前房间，不再属于任何房间，用于会话断开
+     * @return 原来所在的房间，不在任何房间时返回null
+     */
+    public Room<M> leave(M member) {
+        Room<M>[] previous = newRoomArray();
+        memberRooms.computeIfPresent(member, (key, current) -> {
+            removeFrom(current, member);
+            previous[0] = current;
+            return null;
+        });
+        return previous[0];
+    }
+
+    /**
+     * 成员当前所在的房间，不在任何房间时返回null
+     */
+    public Room<M> roomOf(M member) {
+        return memberRooms.get(member);
+    }
+
+    /**
+     * 写入房间消息前取得房间的最近消息缓冲区，第一次调用时创建
+     * @return 未启用历史、房间已被删除或保留历史的房间数已达上限时返回null
+     */
+    public MessageRing historyFor(Room<M> room) {
+        MessageRing history = room.history;
+        if (history != null || historyFactory == null) {
+            return history;
+        }
+        synchronized (room) {
+            if (room.history == null && !room.removed && reserveHistory()) {
+                room.history = historyFactory.get();
+            }
+            return room.history;
+        }
+    }
+
+    /**
+     * 按名字取得房间的最近消息缓冲区，用于从消息日志恢复历史
+     * 房间不存在时创建一个没有成员的房间，它在有人进入并全部离开之后才会被删除；
+     * 保留历史的房间数已达上限时不再创建房间，返回null
+     */
+    public MessageRing openHistory(String roomName) {
+        while (true) {
+            Room<M> room = rooms.get(roomName);
+            if (room == null) {
+                if (historyFactory == null || historyRooms.get() >= maxHistoryRooms) {
+                    return null;
+                }
+                room = rooms.computeIfAbsent(roomName, name -> newRoom(name, false));
+            }
+            MessageRing history = historyFor(room);
+            synchronized (room) {
+                if (!room.removed) {
+                    return history;
+                }
+            }
+            rooms.remove(roomName, room);
+        }
+    }
+
+    /**
+     * 按名字查找房间
+     */
+    public Room<M> find(String roomName) {
+        return rooms.get(roomName);
+    }
+
+    /**
+     * 所有房间，按名字排序，默认房间在最前
+     */
+    public List<Room<M>> rooms() {
+        List<Room<M>> result = new ArrayList<>(rooms.values());
+        result.sort(Comparator.comparing((Room<M> room) -> !room.permanent).thenComparing(Room::getName));
+        return result;
+    }
+
+    private Room<M> newRoom(String name, boolean permanent) {
+        return new Room<>(name, permanent);
+    }
+
+    private boolean reserveHistory() {
+        while (true) {
+            int count = historyRooms.get();
+            if (count >= maxHistoryRooms) {
+                return false;
+            }
+            if (historyRooms.compareAndSet(count, count + 1)) {
+                return true;
+            }
+        }
+    }
+
+    private void removeFrom(Room<M> room, M member) {
+        if (room.remove(member)) {
+            rooms.remove(room.getName(), room);
+            // 房间已标记为删除，之后不会再创建缓冲区
+            if (room.history != null) {
+                historyRooms.decrementAndGet();
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <M> Room<M>[] newRoomArray() {
+        return (Room<M>[]) new Room<?>[1];
+    }
+}
@@ -0,0 +1,334 @@
+import java.nio.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * 聊天消息的全文检索
+ * 增量维护的倒排索引：每个词对应一个按消息编号递增排列的int数组（倒排表），
+ * 查询时从最短的倒排表开始，按编号从新到旧在其他倒排表中二分查找，找到足够的结果就停止。
+ *
+ * 分词：英文字母和数字按连续的单词切分并转为小写；中文、日文、韩文等没有空格分隔的文字
+ * 按相邻两个字切分（二元分词）。索引时每个字也单独索引一次，这样只查一个字时也能找到；
+ * 查询时一段文字有两个以上的字时只使用二元词，倒排表更短。
+ * 二元分词的交集可能包含并不连续出现的结果，最后再用原文做一次子串匹配过滤掉。
+ *
+ * 索引和查询都在一个后台线程上执行，不需要加锁；广播线程只把消息放入有界队列，
+ * 队列满时丢弃这条消息的索引，不会阻塞广播。最多保留maxDocuments条消息，
+ * 更早的消息在查询时跳过，并定期从倒排表中清除，内存不会无限增长。
+ */
+public class SearchIndex implements Runnable {
+
+    /**
+     * 一条查询结果
+     */
+    public static final class Hit {
+        public final String room;
+        public final String text;
+
+        private Hit(String room, String text) {
+            this.room = room;
+            this.text = text;
+        }
+    }
+
+    /**
+     * 接收查询结果，在索引线程上调用，应尽快返回
+     */
+    public interface Callback {
+        void onResult(List<Hit> hits, long elapsedNanos);
+    }
+
+    /**
+     * 按编号递增的倒排表
+     */
+    private static final class Postings {
+        int[] ids = new int[4];
+        int size = 0;
+
+        void add(int id) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            ids[size++] = id;
+        }
+
+        boolean contains(int id) {
+            return Arrays.binarySearch(ids, 0, size, id) >= 0;
+        }
+
+        /**
+         * 删除编号小于minId的部分
+         */
+        void trim(int minId) {
+            int index = Arrays.binarySearch(ids, 0, size, minId);
+            int start = index >= 0 ? index : -index - 1;
+            if (start == 0) {
+                return;
+            }
+            System.arraycopy(ids, start, ids, 0, size - start);
+            size -= start;
+            if (size < ids.length / 4 && ids.length > 4) {
+                ids = Arrays.copyOf(ids, Math.max(4, size * 2));
+            }
+        }
+    }
+
+    // 默认最多保留的消息条数；每条消息连同倒排表约占350字节堆内存，100万条约330MB
+    public static final int DEFAULT_MAX_DOCUMENTS = 1000000;
+
+    private final int maxDocuments;
+    private final BlockingQueue<Runnable> tasks;
+    private final Thread thread;
+    private volatile boolean isRunning = true;
+
+    // 以下字段只由索引线程访问
+    private final Map<String, Postings> terms = new HashMap<>();
+    private final byte[][] texts;
+    private final String[] rooms;
+    private int nextId = 0;
+    private int addedSinceSweep = 0;
+
+    /**
+     * @param maxDocuments 最多保留的消息条数
+     * @param queueCapacity 等待索引的消息和查询的最大数量
+     */
+    public SearchIndex(int maxDocuments, int queueCapacity) {
+        this.maxDocuments = maxDocuments;
+        this.texts = new byte[maxDocuments][];
+        this.rooms = new String[maxDocuments];
+        this.tasks = new ArrayBlockingQueue<>(queueCapacity);
+        this.thread = new Thread(this, "search-indexer");
+        this.thread.setDaemon(true);
+    }
+
+    /**
+     * 按服务器参数创建并启动检索索引，TCP和UDP服务器共用，--search=false时返回null
+     * 参数：--search-max-docs、--search-queue
+     */
+    public static SearchIndex open(ServerOptions options) {
+        if (!options.getBoolean("search", true)) {
+            return null;
+        }
+        int maxDocuments = options.getInt("search-max-docs", DEFAULT_MAX_DOCUMENTS);
+        if (maxDocuments < 1) {
+            throw new IllegalArgumentException("参数 --search-max-docs 需要大于0: " + maxDocuments);
+        }
+        SearchIndex index = new SearchIndex(maxDocuments, options.getInt("search-queue", 65536));
+        index.start();
+        return index;
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    public void stop() {
+        isRunning = false;
+        thread.interrupt();
+    }
+
+    /**
+     * 提交一条消息等待索引，不阻塞
+     * @param text UTF-8编码的消息，调用方之后不得修改
+     * @return 队列已满时返回false，这条消息不会被索引
+     */
+    public boolean add(String room, byte[] text) {
+        return tasks.offer(() -> index(room, text));
+    }
+
+    /**
+     * 提交一条消息等待索引，复制text中position到limit之间的字节，不改变text的position
+     */
+    public boolean add(String room, ByteBuffer text) {
+        byte[] copy = new byte[text.remaining()];
+        text.duplicate().get(copy);
+        return add(room, copy);
+    }
+
+    /**
+     * 提交一个查询，按时间从新到旧最多返回limit条结果
+     * @return 队列已满时返回false，callback不会被调用
+     */
+    public boolean search(String query, int limit, Callback callback) {
+        return tasks.offer(() -> {
+            long start = System.nanoTime();
+            List<Hit> hits = find(query, limit);
+            callback.onResult(hits, System.nanoTime() - start);
+        });
+    }
+
+    @Override
+    public void run() {
+        while (isRunning) {
+            try {
+                tasks.take().run();
+            } catch (InterruptedException e) {
+                break;
+            } catch (RuntimeException e) {
+                System.err.println("检索索引出错: " + e.getMessage());
+            }
+        }
+    }
+
+    private void index(String room, byte[] text) {
+        int id = nextId++;
+        int slot = id % maxDocuments;
+        texts[slot] = text;
+        rooms[slot] = room;
+        // 消息开头的 "[时间] " 不参与索引，否则每条消息都会出现在时间数字的倒排表中
+        String content = new String(text, StandardCharsets.UTF_8);
+        if (content.startsWith("[")) {
+            int end = content.indexOf("] ");
+            if (end > 0) {
+                content = content.substring(end + 2);
+            }
+        }
+        for (String term : new HashSet<>(tokenize(content, true))) {
+            terms.computeIfAbsent(term, key -> new Postings()).add(id);
+        }
+
+        // 每新增四分之一容量的消息，清除一次倒排表中已被覆盖的编号
+        if (++addedSinceSweep >= Math.max(1, maxDocuments / 4)) {
+            addedSinceSweep = 0;
+            int minId = firstValidId();
+            Iterator<Postings> iterator = terms.values().iterator();
+            while (iterator.hasNext()) {
+                Postings postings = iterator.next();
+                postings.trim(minId);
+                if (postings.size == 0) {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    private int firstValidId() {
+        return Math.max(0, nextId - maxDocuments);
+    }
+
+    private List<Hit> find(String query, int limit) {
+        List<Hit> hits = new ArrayList<>();
+        Set<String> queryTerms = new HashSet<>(tokenize(query, false));
+        if (queryTerms.isEmpty()) {
+            return hits;
+        }
+        List<Postings> lists = new ArrayList<>(queryTerms.size());
+        for (String term : queryTerms) {
+            Postings postings = terms.get(term);
+            if (postings == null) {
+                return hits;
+            }
+            lists.add(postings);
+        }
+        lists.sort(Comparator.comparingInt(postings -> postings.size));
+
+        // 查询中每一段连续的文字都要在原文中出现，过滤二元分词带来的误匹配
+        List<String> phrases = phrases(query);
+        int minId = firstValidId();
+        Postings shortest = lists.get(0);
+        for (int i = shortest.size - 1; i >= 0 && hits.size() < limit; i--) {
+            int id = shortest.ids[i];
+            if (id < minId) {
+                break;
+            }
+            boolean matched = true;
+            for (int j = 1; j < lists.size() && matched; j++) {
+                matched = lists.get(j).contains(id);
+            }
+            if (!matched) {
+                continue;
+            }
+            int slot = id % maxDocuments;
+            String text = new String(texts[slot], StandardCharsets.UTF_8);
+            String lower = text.toLowerCase(Locale.ROOT);
+            for (String phrase : phrases) {
+                if (!lower.contains(phrase)) {
+                    matched = false;
+                    break;
+                }
+            }
+            if (matched) {
+                hits.add(new Hit(rooms[slot], text));
+            }
+        }
+        return hits;
+    }
+
+    /**
+     * 分词，结果可能有重复
+     * @param forIndex 是否用于建立索引，索引时中日韩文字的每个字也作为一个词
+     */
+    static List<String> tokenize(String text, boolean forIndex) {
+        List<String> tokens = new ArrayList<>();
+        int length = text.length();
+        int i = 0;
+        while (i < length) {
+            int codePoint = text.codePointAt(i);
+            if (isCjk(codePoint)) {
+                // 一段连续的中日韩文字，按相邻两个字切分
+                int start = i;
+                int count = 0;
+                int previous = -1;
+                while (i < length && isCjk(text.codePointAt(i))) {
+                    int next = i + Character.charCount(text.codePointAt(i));
+                    if (previous >= 0) {
+                        tokens.add(text.substring(previous, next));
+                    }
+                    if (forIndex) {
+                        tokens.add(text.substring(i, next));
+                    }
+                    previous = i;
+                    i = next;
+                    count++;
+                }
+                if (count == 1 && !forIndex) {
+                    tokens.add(text.substring(start, i));
+                }
+            } else if (Character.isLetterOrDigit(codePoint)) {
+                int start = i;
+                while (i < length) {
+                    int next = text.codePointAt(i);
+                    if (!Character.isLetterOrDigit(next) || isCjk(next)) {
+                        break;
+                    }
+                    i += Character.charCount(next);
+                }
+                tokens.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+            } else {
+                i += Character.charCount(codePoint);
+            }
+        }
+        return tokens;
+    }
+
+    /**
+     * 把查询切成连续的字母、数字和文字段，转为小写
+     */
+    private static List<String> phrases(String query) {
+        List<String> phrases = new ArrayList<>();
+        StringBuilder current = new StringBuilder();
+        for (int i = 0; i < query.length(); ) {
+            int codePoint = query.codePointAt(i);
+            if (Character.isLetterOrDigit(codePoint)) {
+                current.appendCodePoint(codePoint);
+            } else if (current.length() > 0) {
+                phrases.add(current.toString().toLowerCase(Locale.ROOT));
+                current.setLength(0);
+            }
+            i += Character.charCount(codePoint);
+        }
+        if (current.length() > 0) {
+            phrases.add(current.toString().toLowerCase(Locale.ROOT));
+        }
+        return phrases;
+    }
+
+    private static boolean isCjk(int codePoint) {
+        Character.UnicodeScript script = Character.UnicodeScript.of(codePoint);
+        return script == Character.UnicodeScript.HAN
+                || script == Character.UnicodeScript.HIRAGANA
+                || script == Character.UnicodeScript.KATAKANA
+                || script == Character.UnicodeScript.HANGUL;
+    }
+}
@@ -0,0 +1,356 @@
+import java.lang.management.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+import javax.management.*;
+
+/**
+ * 服务器运行指标
+ * 收发的消息数和字节数、广播次数、发送失败和丢弃的消息数用LongAdder计数，
+ * 处理耗时、广播耗时、广播人数和客户端待发送队列的长度记录在LatencyHistogram中。
+ * 记录只是几次原子加，不加锁、不分配内存，可以直接在读线程、事件循环和广播路径上调用。
+ *
+ * 后台线程每秒计算一次收发速率，并每隔dumpIntervalSeconds把这段时间的指标输出到标准输出。
+ * 同样的数据通过JMX（ChatServer:type=Metrics）和管理员的 /stats 命令查看。
+ */
+public class ServerMetrics implements ServerMetricsMXBean, Runnable {
+    private final String protocol;
+    private final int port;
+    private final long dumpIntervalSeconds;
+    private final LongSupplier connections;
+
+    private final LongAdder messagesIn = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder messagesOut = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder broadcasts = new LongAdder();
+    private final LongAdder sendFailures = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    // 处理一条收到的消息的耗时和一次广播的耗时（纳秒）
+    private final LatencyHistogram processing = new LatencyHistogram();
+    private final LatencyHistogram fanout = new LatencyHistogram();
+    // 一次广播的接收人数，以及消息入队后该客户端待发送队列中的消息数
+    private final LatencyHistogram fanoutSize = new LatencyHistogram();
+    private final LatencyHistogram queueDepth = new LatencyHistogram();
+
+    private final Sample started;
+    private final Thread thread;
+    private volatile boolean isRunning = true;
+    private ObjectName objectName;
+
+    // 最近一秒的速率，依次为收到的消息数、字节数和发出的消息数、字节数
+    private volatile long[] rates = new long[4];
+
+    /**
+     * 某一时刻的全部指标
+     */
+    private final class Sample {
+        final long nanoTime = System.nanoTime();
+        final long[] counters = {
+            messagesIn.sum(), bytesIn.sum(), messagesOut.sum(), bytesOut.sum(),
+            broadcasts.sum(), sendFailures.sum(), dropped.sum()
+        };
+        final LatencyHistogram.Snapshot processing = ServerMetrics.this.processing.snapshot();
+        final LatencyHistogram.Snapshot fanout = ServerMetrics.this.fanout.snapshot();
+        final LatencyHistogram.Snapshot fanoutSize = ServerMetrics.this.fanoutSize.snapshot();
+        final LatencyHistogram.Snapshot queueDepth = ServerMetrics.this.queueDepth.snapshot();
+    }
+
+    /**
+     * @param protocol 服务器类型，例如 tcp，用于输出和JMX名称
+     * @param dumpIntervalSeconds 定期输出的间隔，0表示不输出
+     * @param connections 当前在线人数
+     */
+    public ServerMetrics(String protocol, int port, long dumpIntervalSeconds, LongSupplier connections) {
+        this.protocol = protocol;
+        this.port = port;
+        this.dumpIntervalSeconds = dumpIntervalSeconds;
+        this.connections = connections;
+        this.started = new Sample();
+        this.thread = new Thread(this, protocol + "-metrics");
+        this.thread.setDaemon(true);
+    }
+
+    /**
+     * 启动后台线程并注册到JMX
+     */
+    public void start() {
+        thread.start();
+        try {
+            ObjectName name = new ObjectName("ChatServer:type=Metrics,protocol=" + protocol + ",port=" + port);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+            objectName = name;
+        } catch (JMException e) {
+            System.err.println("注册JMX指标失败: " + e.getMessage());
+        }
+    }
+
+    public void stop() {
+        isRunning = false;
+        thread.interrupt();
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (JMException e) {
+                // 忽略
+            }
+        }
+    }
+
+    /**
+     * 收到一条消息（TCP为一行或一帧，UDP为一个完整的数据报）
+     */
+    public void onMessageIn() {
+        messagesIn.increment();
+    }
+
+    /**
+     * 从网络读到的字节数
+     */
+    public void onBytesIn(long bytes) {
+        bytesIn.add(bytes);
+    }
+
+    /**
+     * 写出的消息数和字节数
+     */
+    public void onSent(int messages, long bytes) {
+        messagesOut.add(messages);
+        bytesOut.add(bytes);
+    }
+
+    /**
+     * 处理完一条收到的消息
+     * @param startNanos 开始处理时的System.nanoTime()
+     */
+    public void onProcessed(long startNanos) {
+        processing.record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * 完成一次广播
+     * @param startNanos 开始广播时的System.nanoTime()
+     * @param recipients 接收人数
+     */
+    public void onBroadcast(long startNanos, int recipients) {
+        fanout.record(System.nanoTime() - startNanos);
+        fanoutSize.record(recipients);
+        broadcasts.increment();
+    }
+
+    /**
+     * 一条消息入队后客户端待发送队列中的消息数
+     */
+    public void onQueueDepth(int depth) {
+        queueDepth.record(depth);
+    }
+
+    /**
+     * 写出失败，或客户端接收过慢被断开
+     */
+    public void onSendFailure() {
+        sendFailures.increment();
+    }
+
+    /**
+     * 队列满或发送缓冲区满而丢弃了一条消息
+     */
+    public void onDropped() {
+        dropped.increment();
+    }
+
+    @Override
+    public void run() {
+        long[] previous = counters();
+        Sample lastDump = started;
+        long seconds = 0;
+        while (isRunning) {
+            try {
+                TimeUnit.SECONDS.sleep(1);
+            } catch (InterruptedException e) {
+                break;
+            }
+            long[] current = counters();
+            long[] perSecond = new long[current.length];
+            for (int i = 0; i < current.length; i++) {
+                perSecond[i] = current[i] - previous[i];
+            }
+            rates = perSecond;
+            previous = current;
+
+            if (dumpIntervalSeconds > 0 && ++seconds % dumpIntervalSeconds == 0) {
+                Sample now = new Sample();
+                for (String line : describe("最近 " + dumpIntervalSeconds + " 秒", lastDump, now)) {
+                    System.out.println(line);
+                }
+                lastDump = now;
+            }
+        }
+    }
+
+    private long[] counters() {
+        return new long[] {messagesIn.sum(), bytesIn.sum(), messagesOut.sum(), bytesOut.sum()};
+    }
+
+    /**
+     * 启动以来的指标和最近一秒的速率，用于 /stats 命令
+     */
+    public List<String> report() {
+        Sample now = new Sample();
+        long uptime = TimeUnit.NANOSECONDS.toSeconds(now.nanoTime - started.nanoTime);
+        List<String> lines = describe("运行 " + uptime + " 秒", started, now);
+        long[] perSecond = rates;
+        lines.add(1, String.format("最近一秒: 收到 %d 条 %s，发出 %d 条 %s",
+                perSecond[0], formatBytes(perSecond[1]), perSecond[2], formatBytes(perSecond[3])));
+        return lines;
+    }
+
+    /**
+     * 描述from到to之间的指标
+     */
+    private List<String> describe(String period, Sample from, Sample to) {
+        double seconds = Math.max(1e-9, (to.nanoTime - from.nanoTime) / 1e9);
+        long[] delta = new long[to.counters.length];
+        for (int i = 0; i < delta.length; i++) {
+            delta[i] = to.counters[i] - from.counters[i];
+        }
+        LatencyHistogram.Snapshot processed = to.processing.since(from.processing);
+        LatencyHistogram.Snapshot fanoutTime = to.fanout.since(from.fanout);
+        LatencyHistogram.Snapshot recipients = to.fanoutSize.since(from.fanoutSize);
+        LatencyHistogram.Snapshot depth = to.queueDepth.since(from.queueDepth);
+
+        List<String> lines = new ArrayList<>();
+        lines.add(String.format("=== %s服务器运行指标（%s）在线 %d 人 ===",
+                protocol.toUpperCase(Locale.ROOT), period, connections.getAsLong()));
+        lines.add(String.format("收到: %d 条 %s，平均 %.1f 条/秒 %s/秒",
+                delta[0], formatBytes(delta[1]), delta[0] / seconds, formatBytes((long) (delta[1] / seconds))));
+        lines.add(String.format("发出: %d 条 %s，平均 %.1f 条/秒 %s/秒",
+                delta[2], formatBytes(delta[3]), delta[2] / seconds, formatBytes((long) (delta[3] / seconds))));
+        lines.add(String.format("处理耗时: %s", formatMicros(processed)));
+        lines.add(String.format("广播: %d 次，接收人数 p50 %d  p99 %d  最大 %d", delta[4],
+                recipients.valueAt(50), recipients.valueAt(99), recipients.max()));
+        lines.add(String.format("广播耗时: %s", formatMicros(fanoutTime)));
+        lines.add(String.format("待发送队列长度（入队时）: p50 %d  p99 %d  最大 %d",
+                depth.valueAt(50), depth.valueAt(99), depth.max()));
+        lines.add(String.format("发送失败: %d，丢弃: %d", delta[5], delta[6]));
+        return lines;
+    }
+
+    private static String formatMicros(LatencyHistogram.Snapshot snapshot) {
+        return String.format("p50 %.1f  p99 %.1f  p99.9 %.1f  最大 %.1f 微秒（%d 次）",
+                snapshot.valueAt(50) / 1e3, snapshot.valueAt(99) / 1e3, snapshot.valueAt(99.9) / 1e3,
+                snapshot.max() / 1e3, snapshot.count());
+    }
+
+    private static String formatBytes(long bytes) {
+        if (bytes < 1024) {
+            return bytes + " B";
+        }
+        if (bytes < 1024 * 1024) {
+            return String.format("%.1f KB", bytes / 1024.0);
+        }
+        return String.format("%.1f MB", bytes / (1024.0 * 1024));
+    }
+
+    @Override
+    public long getConnections() {
+        return connections.getAsLong();
+    }
+
+    @Override
+    public long getMessagesIn() {
+        return messagesIn.sum();
+    }
+
+    @Override
+    public long getMessagesOut() {
+        return messagesOut.sum();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public long getMessagesInPerSecond() {
+        return rates[0];
+    }
+
+    @Override
+    public long getBytesInPerSecond() {
+        return rates[1];
+    }
+
+    @Override
+    public long getMessagesOutPerSecond() {
+        return rates[2];
+    }
+
+    @Override
+    public long getBytesOutPerSecond() {
+        return rates[3];
+    }
+
+    @Override
+    public long getBroadcasts() {
+        return broadcasts.sum();
+    }
+
+    @Override
+    public long getSendFailures() {
+        return sendFailures.sum();
+    }
+
+    @Override
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    @Override
+    public double getFanoutP50Micros() {
+        return fanout.valueAt(50) / 1e3;
+    }
+
+    @Override
+    public double getFanoutP99Micros() {
+        return fanout.valueAt(99) / 1e3;
+    }
+
+    @Override
+    public double getFanoutMaxMicros() {
+        return fanout.max() / 1e3;
+    }
+
+    @Override
+    public double getProcessingP50Micros() {
+        return processing.valueAt(50) / 1e3;
+    }
+
+    @Override
+    public double getProcessingP99Micros() {
+        return processing.valueAt(99) / 1e3;
+    }
+
+    @Override
+    public long getQueueDepthP99() {
+        return queueDepth.valueAt(99);
+    }
+
+    @Override
+    public long getQueueDepthMax() {
+        return queueDepth.max();
+    }
+
+    @Override
+    public String getReport() {
+        return String.join("\n", report());
+    }
+}
@@ -0,0 +1,48 @@
+/**
+ * 通过JMX公开的服务器运行指标，见ServerMetrics
+ * 速率为最近一秒的值，耗时的单位为微秒，百分位数为服务器启动以来的分布
+ */
+public interface ServerMetricsMXBean {
+    long getConnections();
+
+    long getMessagesIn();
+
+    long getMessagesOut();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    long getMessagesInPerSecond();
+
+    long getMessagesOutPerSecond();
+
+    long getBytesInPerSecond();
+
+    long getBytesOutPerSecond();
+
+    long getBroadcasts();
+
+    long getSendFailures();
+
+    long getDropped();
+
+    double getFanoutP50Micros();
+
+    double getFanoutP99Micros();
+
+    double getFanoutMaxMicros();
+
+    double getProcessingP50Micros();
+
+    double getProcessingP99Micros();
+
+    long getQueueDepthP99();
+
+    long getQueueDepthMax();
+
+    /**
+     * 与 /stats 命令相同的文字报告
+     */
+    String getReport();
+}
@@ -0,0 +1,86 @@
+import java.util.*;
+
+/**
+ * 服务器启动参数
+ * 支持两种形式的命令行参数：
+ * 1. --key=value  例如 --mode=nio
+ * 2. --flag       等价于 --flag=true
+ */
+public class ServerOptions {
+    private final Map<String, String> values = new HashMap<>();
+    
+    /**
+     * 解析命令行参数
+     * @throws IllegalArgumentException 参数格式错误时抛出
+     */
+    public static ServerOptions parse(String[] args) {
+        ServerOptions options = new ServerOptions();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || arg.length() == 2) {
+                throw new IllegalArgumentException("无法识别的参数: " + arg);
+            }
+            int eq = arg.indexOf('=');
+            if (eq < 0) {
+                options.values.put(arg.substring(2), "true");
+            } else {
+                options.values.put(arg.substring(2, eq), arg.substring(eq + 1));
+            }
+        }
+        return options;
+    }
+    
+    /**
+     * 是否指定了某个参数
+     */
+    public boolean has(String key) {
+        return values.containsKey(key);
+    }
+    
+    /**
+     * 获取字符串参数
+     */
+    public String get(String key, String defaultValue) {
+        return values.getOrDefault(key, defaultValue);
+    }
+    
+    /**
+     * 获取整数参数
+     */
+    public int getInt(String key, int defaultValue) {
+        String value = values.get(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("参数 --" + key + " 需要整数: " + value);
+        }
+    }
+    
+    /**
+     * 获取长整数参数
+     */
+    public long getLong(String key, long defaultValue) {
+        String value = values.get(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("参数 --" + key + " 需要整数: " + value);
+        }
+    }
+    
+    /**
+     * 获取布尔参数
+     */
+    public boolean getBoolean(String key, boolean defaultValue) {
+        String value = values.get(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        return Boolean.parseBoolean(value);
+    }
+}
@@ -0,0 +1,188 @@
+import java.util.*;
+
+/**
+ * 分层时间轮
+ * 第0层每个槽位代表一个刻度，第L层每个槽位代表 WHEEL_SIZE^L 个刻度，
+ * 超出当前各层范围的定时任务放到更高层，需要时再自动增加一层。
+ * 时间推进到高层槽位的边界时，把该槽位中的任务重新放入低层。
+ *
+ * 添加和取消定时任务都是O(1)，推进时间的代价与经过的刻度数和到期的任务数成正比，
+ * 与任务总数无关。
+ * 不是线程安全的，只能由一个线程使用。
+ */
+public class TimingWheel {
+    private static final int WHEEL_BITS = 6;
+    private static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+    // long类型的刻度数最多需要这么多层
+    private static final int MAX_LEVELS = (Long.SIZE + WHEEL_BITS - 1) / WHEEL_BITS;
+
+    /**
+     * 定时任务，同一个对象同一时间只能在一个时间轮中
+     * 槽位中的任务用双向链表连接，取消时直接从链表中摘除
+     */
+    public abstract static class Timeout {
+        long deadlineTick;
+        Timeout prev;
+        Timeout next;
+
+        /**
+         * 到期时在推进时间的线程上调用
+         * @param now 当前时间（纳秒）
+         */
+        protected abstract void onExpire(long now);
+
+        public boolean isScheduled() {
+            return next != null;
+        }
+    }
+
+    /**
+     * 槽位链表的哨兵节点
+     */
+    private static class Slot extends Timeout {
+        Slot() {
+            clear();
+        }
+
+        void clear() {
+            prev = this;
+            next = this;
+        }
+
+        @Override
+        protected void onExpire(long now) {
+        }
+    }
+
+    private final long tickNanos;
+    private final long origin;
+    private long currentTick = 0;
+    private Slot[][] levels = new Slot[0][];
+    private int size = 0;
+
+    public TimingWheel(long tickNanos, long now) {
+        this.tickNanos = tickNanos;
+        this.origin = now;
+        addLevel();
+    }
+
+    /**
+     * 添加定时任务，到期时间已过的任务在下一个刻度触发
+     * @param deadline 到期时间（纳秒，与System.nanoTime()同一基准）
+     */
+    public void schedule(Timeout timeout, long deadline) {
+        if (timeout.isScheduled()) {
+            cancel(timeout);
+        }
+        long tick = Math.max(deadline - origin, 0) / tickNanos;
+        // 刚好在当前刻度或已过期的任务，当前刻度的槽位已经处理过，放到下一个刻度
+        timeout.deadlineTick = Math.max(tick, currentTick + 1);
+        insert(timeout);
+        size++;
+    }
+
+    /**
+     * 取消定时任务，任务不在时间轮中时什么也不做
+     */
+    public void cancel(Timeout timeout) {
+        if (!timeout.isScheduled()) {
+            return;
+        }
+        unlink(timeout);
+        size--;
+    }
+
+    /**
+     * 推进时间，依次触发到期的任务
+     * 任务的onExpire中可以再次添加或取消定时任务
+     */
+    public void advance(long now) {
+        long targetTick = (now - origin) / tickNanos;
+        while (currentTick < targetTick) {
+            currentTick++;
+            cascade();
+            Slot slot = levels[0][(int) (currentTick & WHEEL_MASK)];
+            Timeout timeout;
+            while ((timeout = slot.next) != slot) {
+                unlink(timeout);
+                size--;
+                timeout.onExpire(now);
+            }
+        }
+    }
+
+    /**
+     * 时间轮中的任务数
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * 当前刻度跨过高层槽位的边界时，把该槽位的任务重新放入低层
+     */
+    private void cascade() {
+        // 跨过高层边界时一定也跨过了所有更低层的边界，从最高层开始向下处理，
+        // 这样从高层降下来的任务还能赶上低层本轮的处理
+        int top = 0;
+        while (top + 1 < levels.length && (currentTick & ((1L << ((top + 1) * WHEEL_BITS)) - 1)) == 0) {
+            top++;
+        }
+        for (int level = top; level >= 1; level--) {
+            int shift = level * WHEEL_BITS;
+            Slot slot = levels[level][(int) ((currentTick >>> shift) & WHEEL_MASK)];
+            Timeout timeout = slot.next;
+            slot.clear();
+            while (timeout != slot) {
+                Timeout next = timeout.next;
+                timeout.prev = null;
+                timeout.next = null;
+                insert(timeout);
+                timeout = next;
+            }
+        }
+    }
+
+    /**
+     * 放入能容纳其到期时间的最低一层
+     */
+    private void insert(Timeout timeout) {
+        int level = 0;
+        while (true) {
+            int shift = level * WHEEL_BITS;
+            if ((timeout.deadlineTick >>> shift) - (currentTick >>> shift) < WHEEL_SIZE) {
+                break;
+            }
+            level++;
+        }
+        while (level >= levels.length) {
+            addLevel();
+        }
+        Slot slot = levels[level][(int) ((timeout.deadlineTick >>> (level * WHEEL_BITS)) & WHEEL_MASK)];
+        timeout.prev = slot.prev;
+        timeout.next = slot;
+        slot.prev.next = timeout;
+        slot.prev = timeout;
+    }
+
+    private void addLevel() {
+        if (levels.length >= MAX_LEVELS) {
+            throw new IllegalStateException("时间轮层数超出上限");
+        }
+        Slot[][] grown = Arrays.copyOf(levels, levels.length + 1);
+        Slot[] slots = new Slot[WHEEL_SIZE];
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            slots[i] = new Slot();
+        }
+        grown[levels.length] = slots;
+        levels = grown;
+    }
+
+    private static void unlink(Timeout timeout) {
+        timeout.prev.next = timeout.next;
+        timeout.next.prev = timeout.prev;
+        timeout.prev = null;
+        timeout.next = null;
+    }
+}
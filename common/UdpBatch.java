@@ -0,0 +1,70 @@
+import java.nio.*;
+
+/**
+ * UDP打包协议
+ * 发给同一客户端的多条短消息打包成一个数据报，减少系统调用次数和数据报数量。
+ *
+ * 格式（大端字节序），首字节不是可打印字符，与文本协议、可靠传输协议和分片都不会混淆：
+ * 0x04 | 长度(2字节) | 消息 | 长度(2字节) | 消息 | ...
+ * 打包后的数据报可以直接发送，也可以作为可靠传输的DATA内容发送。
+ */
+public class UdpBatch {
+    public static final byte BATCH = 0x04;
+    public static final int HEADER_LENGTH = 1;
+    public static final int RECORD_HEADER_LENGTH = 2;
+    
+    /**
+     * 逐条处理打包数据报中的消息
+     */
+    public interface Handler {
+        void onMessage(ByteBuffer message);
+    }
+    
+    /**
+     * 判断数据报是否为打包数据报
+     */
+    public static boolean isBatch(ByteBuffer datagram) {
+        return datagram.hasRemaining() && datagram.get(datagram.position()) == BATCH;
+    }
+    
+    /**
+     * 开始一个新的打包数据报
+     */
+    public static void begin(ByteBuffer pack) {
+        pack.clear();
+        pack.put(BATCH);
+    }
+    
+    /**
+     * 判断pack中是否还能放下一条长度为length的消息
+     */
+    public static boolean fits(ByteBuffer pack, int length) {
+        return RECORD_HEADER_LENGTH + length <= pack.remaining();
+    }
+    
+    /**
+     * 把一条消息追加到pack中，调用前需要用fits确认放得下
+     */
+    public static void append(ByteBuffer pack, ByteBuffer message) {
+        pack.putShort((short) message.remaining());
+        pack.put(message);
+    }
+    
+    /**
+     * 拆开打包数据报，按顺序把每条消息交给handler
+     * 每条消息都是datagram的一个视图，不会复制内容；长度不合法时丢弃剩余部分
+     */
+    public static void unpack(ByteBuffer datagram, Handler handler) {
+        int position = datagram.position() + HEADER_LENGTH;
+        int limit = datagram.limit();
+        while (position + RECORD_HEADER_LENGTH <= limit) {
+            int length = Short.toUnsignedInt(datagram.getShort(position));
+            position += RECORD_HEADER_LENGTH;
+            if (position + length > limit) {
+                break;
+            }
+            handler.onMessage(datagram.slice(position, length));
+            position += length;
+        }
+    }
+}
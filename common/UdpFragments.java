@@ -0,0 +1,76 @@
+import java.io.*;
+import java.nio.*;
+
+/**
+ * UDP分片协议
+ * 超过MTU的数据报拆成多个分片发送，每个分片带有消息编号、分片序号和分片总数，
+ * 接收方用FragmentAssembler重新拼成原来的数据报。
+ * 分片位于最底层：可靠传输的DATA数据报和普通文本数据报都可以被分片，
+ * 重组完成后再按原来的方式处理。
+ *
+ * 分片格式（大端字节序），首字节不是可打印字符，与文本协议和可靠传输协议都不会混淆：
+ * 0x03 | 消息编号(4字节) | 分片序号(2字节) | 分片总数(2字节) | 原数据报总长度(4字节) | 分片内容
+ * 除最后一个分片外，每个分片的内容长度相同。
+ */
+public class UdpFragments {
+    public static final byte FRAGMENT = 0x03;
+    public static final int HEADER_LENGTH = 13;
+    
+    // 默认MTU，以太网1500字节减去IP和UDP头部后再留出余量
+    public static final int DEFAULT_MTU = 1400;
+    public static final int MIN_MTU = 256;
+    
+    // 重组后数据报的最大长度，足够容纳最大的UDP数据报加上可靠传输的头部
+    public static final int MAX_MESSAGE_SIZE = 64 * 1024;
+    
+    /**
+     * 发送一个组装好的分片
+     */
+    public interface Sink {
+        void send(ByteBuffer datagram) throws IOException;
+    }
+    
+    /**
+     * 判断数据报是否为分片
+     */
+    public static boolean isFragment(ByteBuffer datagram) {
+        return datagram.hasRemaining() && datagram.get(datagram.position()) == FRAGMENT;
+    }
+    
+    /**
+     * 把 head 和 body 前后相连组成的数据报拆成不超过mtu的分片依次发出
+     * 每个分片的内容直接从head和body复制到scratch中，只复制一次；
+     * head和body的position不会改变。
+     * @param scratch 组装分片用的缓冲区，容量不小于mtu
+     */
+    public static void split(ByteBuffer head, ByteBuffer body, int msgId, int mtu,
+                             ByteBuffer scratch, Sink sink) throws IOException {
+        int total = head.remaining() + body.remaining();
+        if (total > MAX_MESSAGE_SIZE) {
+            throw new IOException("数据报过长: " + total);
+        }
+        int chunk = mtu - HEADER_LENGTH;
+        int count = (total + chunk - 1) / chunk;
+        for (int index = 0; index < count; index++) {
+            int from = index * chunk;
+            int length = Math.min(chunk, total - from);
+            scratch.clear();
+            scratch.put(FRAGMENT).putInt(msgId).putShort((short) index).putShort((short) count).putInt(total);
+            putRange(scratch, head, from, length);
+            putRange(scratch, body, from - head.remaining(), length);
+            scratch.flip();
+            sink.send(scratch);
+        }
+    }
+    
+    /**
+     * 把 source 中相对position偏移为 [from, from + length) 且实际存在的部分复制到dst
+     */
+    private static void putRange(ByteBuffer dst, ByteBuffer source, int from, int length) {
+        int start = Math.max(from, 0);
+        int end = Math.min(from + length, source.remaining());
+        if (start < end) {
+            dst.put(source.slice(source.position() + start, end - start));
+        }
+    }
+}
@@ -0,0 +1,67 @@
+import java.nio.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * UDP组播协议
+ * 服务器开启组播后，房间消息只向组播组发送一次，加入了组播组的客户端按房间名过滤后显示。
+ * 组播数据报带有房间名，所有房间共用一个组播组；房间名为空的组播数据报是服务器的控制消息，
+ * 目前只有确认客户端能否收到组播的探测消息。
+ *
+ * 格式，首字节不是可打印字符，与文本协议、可靠传输协议、分片和打包都不会混淆：
+ * 0x05 | 房间名长度(1字节) | 房间名(UTF-8) | 消息
+ * 超过MTU时与普通数据报一样按UdpFragments拆成分片发送。
+ *
+ * 客户端与服务器之间的协商通过单播的文本消息完成：
+ * 客户端 MULTICAST:JOIN           请求使用组播
+ * 服务器 MULTICAST:GROUP 地址 端口 组播组，客户端加入后回复 MULTICAST:READY
+ * 服务器 组播 MULTICAST:PROBE 用户名 口令，客户端收到后回复 MULTICAST:ACK 口令
+ * 服务器 MULTICAST:ACTIVE 房间名   此后该客户端的房间消息只通过组播发送
+ * 服务器 MULTICAST:ROOM 房间名     切换房间，客户端改为显示新房间的组播消息
+ * 服务器 MULTICAST:UNAVAILABLE 原因 无法使用组播，继续使用单播
+ * 客户端 MULTICAST:LEAVE          退回单播
+ */
+public class UdpMulticast {
+    public static final byte MULTICAST = 0x05;
+    public static final int MAX_ROOM_BYTES = 255;
+
+    // 单播控制消息的前缀
+    public static final String PREFIX = "MULTICAST:";
+
+    /**
+     * 判断数据报是否为组播数据报
+     */
+    public static boolean isMulticast(ByteBuffer datagram) {
+        return datagram.remaining() >= 2 && datagram.get(datagram.position()) == MULTICAST;
+    }
+
+    /**
+     * 写入组播头部
+     * @param room UTF-8编码的房间名，控制消息为空数组
+     */
+    public static void putHeader(ByteBuffer buffer, byte[] room) {
+        if (room.length > MAX_ROOM_BYTES) {
+            throw new IllegalArgumentException("房间名过长: " + room.length);
+        }
+        buffer.put(MULTICAST).put((byte) room.length).put(room);
+    }
+
+    public static int headerLength(byte[] room) {
+        return 2 + room.length;
+    }
+
+    /**
+     * 读取组播数据报中的房间名，之后datagram的position位于消息开头
+     * @return 房间名，控制消息返回空字符串，格式不合法时返回null
+     */
+    public static String readRoom(ByteBuffer datagram) {
+        int position = datagram.position();
+        int length = Byte.toUnsignedInt(datagram.get(position + 1));
+        if (position + 2 + length > datagram.limit()) {
+            return null;
+        }
+        byte[] room = new byte[length];
+        datagram.get(position + 2, room);
+        datagram.position(position + 2 + length);
+        return new String(room, StandardCharsets.UTF_8);
+    }
+}
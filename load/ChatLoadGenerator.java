@@ -0,0 +1,381 @@
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * 无界面的负载生成器
+ * 在一个进程中模拟大量TCP或UDP用户，按设定的总速率和消息大小发送聊天消息，
+ * 统计端到端的投递延迟、吞吐量和丢失的消息。
+ *
+ * 每条消息中带有本次运行的编号、计划发送时间和实际发送时间（System.nanoTime()），
+ * 所有用户在同一个JVM中，接收方可以直接用同一个时钟计算延迟。
+ * 发送方按固定的时间表发送，落后时立即补发，延迟从计划时间起算（修正了协同遗漏）；
+ * 同时给出从实际发送时间起算的延迟，两者相差很大或发送方经常落后时给出警告，
+ * 说明服务器（或负载生成器自身）已经跟不上设定的速率。
+ *
+ * 用户平均分配到若干个本次运行专用的房间中，每条消息应该被房间中的每个用户（包括发送者）收到一次，
+ * 收尾时间结束时仍未收到的算作丢失。
+ */
+public class ChatLoadGenerator {
+    private static final int DEFAULT_TCP_PORT = 8888;
+    private static final int DEFAULT_UDP_PORT = 8889;
+
+    private final ServerOptions options;
+    private final String protocol;
+    private final boolean binary;
+    // UDP用户加入组播组使用的网卡，为null时不使用组播
+    private final String multicastInterface;
+    private final String host;
+    private final int port;
+    // --servers 指定的TCP集群节点，用户轮流连接各节点，同一房间的成员分散在不同节点上
+    private final List<InetSocketAddress> servers;
+    private final int userCount;
+    private final int roomSize;
+    private final double rate;
+    private final int messageSize;
+    private final long warmupNanos;
+    private final long durationNanos;
+    private final long drainNanos;
+
+    // 本次运行的编号，用于区分其他运行留下的历史消息
+    private final String runId = Integer.toHexString(ThreadLocalRandom.current().nextInt(0x100000, 0x1000000));
+    private final String marker = "LT|" + runId + "|";
+
+    // 测量窗口，只统计计划发送时间在窗口内的消息
+    private volatile long measureStart = Long.MAX_VALUE;
+    private volatile long measureEnd = Long.MAX_VALUE;
+
+    private final List<LoadUser> users = new CopyOnWriteArrayList<>();
+    private final Map<String, Integer> roomMembers = new ConcurrentHashMap<>();
+
+    // 测量窗口内的统计
+    private final LatencyHistogram correctedLatency = new LatencyHistogram();
+    private final LatencyHistogram uncorrectedLatency = new LatencyHistogram();
+    private final LatencyHistogram sendLag = new LatencyHistogram();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder lateSends = new LongAdder();
+    private final LongAdder expected = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+
+    // 整个运行期间的计数，用于每秒的进度输出
+    private final LongAdder totalSent = new LongAdder();
+    private final LongAdder totalDelivered = new LongAdder();
+    private final AtomicLong errors = new AtomicLong();
+
+    public ChatLoadGenerator(ServerOptions options) {
+        this.options = options;
+        this.protocol = options.get("protocol", "tcp");
+        if (!protocol.equals("tcp") && !protocol.equals("udp")) {
+            throw new IllegalArgumentException("未知的协议: " + protocol);
+        }
+        this.binary = options.getBoolean("binary", false);
+        this.multicastInterface = options.get("multicast", null);
+        if (multicastInterface != null && !protocol.equals("udp")) {
+            throw new IllegalArgumentException("--multicast 只能用于UDP");
+        }
+        this.host = options.get("host", "localhost");
+        this.port = options.getInt("port", protocol.equals("tcp") ? DEFAULT_TCP_PORT : DEFAULT_UDP_PORT);
+        this.servers = parseServers(options.get("servers", null));
+        if (servers != null && !protocol.equals("tcp")) {
+            throw new IllegalArgumentException("--servers 只能用于TCP");
+        }
+        this.userCount = options.getInt("users", 100);
+        this.roomSize = options.getInt("room-size", 20);
+        this.rate = Double.parseDouble(options.get("rate", "1000"));
+        this.messageSize = options.getInt("size", 100);
+        this.warmupNanos = TimeUnit.SECONDS.toNanos(options.getLong("warmup-seconds", 5));
+        this.durationNanos = TimeUnit.SECONDS.toNanos(options.getLong("duration-seconds", 30));
+        this.drainNanos = TimeUnit.SECONDS.toNanos(options.getLong("drain-seconds", 2));
+        if (userCount <= 0 || roomSize <= 0 || rate <= 0 || durationNanos <= 0) {
+            throw new IllegalArgumentException("--users、--room-size、--rate、--duration-seconds 必须为正数");
+        }
+    }
+
+    /**
+     * 运行一次负载测试并输出结果
+     */
+    public void run() throws InterruptedException {
+        openUsers();
+        if (users.isEmpty()) {
+            System.err.println("没有用户连接成功，测试结束");
+            return;
+        }
+
+        // 每个用户的发送间隔，第一条消息的时间在一个间隔内随机错开，避免所有用户同时发送
+        long intervalNanos = (long) (users.size() * 1e9 / rate);
+        long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+        measureStart = start + warmupNanos;
+        measureEnd = measureStart + durationNanos;
+        long scheduled = 0;
+        Random random = new Random();
+        for (LoadUser user : users) {
+            long firstAt = start + (long) (random.nextDouble() * intervalNanos);
+            scheduled += countScheduled(firstAt, intervalNanos);
+            Thread.ofVirtual().name("load-send-" + user.getUsername())
+                    .start(() -> user.sendLoop(firstAt, intervalNanos, measureEnd));
+        }
+
+        System.out.printf("开始发送：预热 %d 秒，测量 %d 秒，每个用户每 %.1f 毫秒发送一条%n",
+                TimeUnit.NANOSECONDS.toSeconds(warmupNanos), TimeUnit.NANOSECONDS.toSeconds(durationNanos),
+                intervalNanos / 1e6);
+        reportProgress(start, measureEnd + drainNanos);
+
+        for (LoadUser user : users) {
+            user.close();
+        }
+        printSummary(scheduled, intervalNanos);
+    }
+
+    /**
+     * 并发连接所有用户，同时进行的连接数不超过 --connect-concurrency
+     */
+    private void openUsers() throws InterruptedException {
+        int concurrency = options.getInt("connect-concurrency", 64);
+        long timeoutMillis = options.getLong("connect-timeout-ms", 5000);
+        Semaphore permits = new Semaphore(concurrency);
+        CountDownLatch done = new CountDownLatch(userCount);
+        AtomicInteger failed = new AtomicInteger();
+        long begin = System.nanoTime();
+        if (servers != null) {
+            System.out.printf("正在连接 %d 个%s用户到 %d 个集群节点 ...%n", userCount, describeProtocol(), servers.size());
+        } else {
+            System.out.printf("正在连接 %d 个%s用户到 %s:%d ...%n", userCount, describeProtocol(), host, port);
+        }
+
+        for (int i = 0; i < userCount; i++) {
+            String username = "lt" + runId + "-" + i;
+            String room = "load-" + runId + "-" + (i / roomSize);
+            InetSocketAddress server = servers != null ? servers.get(i % servers.size()) : null;
+            LoadUser user = server != null
+                    ? new TcpLoadUser(this, username, room, server.getHostString(), server.getPort(), binary)
+                    : protocol.equals("tcp")
+                    ? new TcpLoadUser(this, username, room, host, port, binary)
+                    : new UdpLoadUser(this, username, room, new InetSocketAddress(host, port), multicastInterface);
+            permits.acquire();
+            Thread.ofVirtual().start(() -> {
+                try {
+                    user.open(timeoutMillis);
+                    users.add(user);
+                    roomMembers.merge(room, 1, Integer::sum);
+                } catch (IOException e) {
+                    user.close();
+                    if (failed.incrementAndGet() <= 5) {
+                        System.err.println("用户 " + username + " 连接失败: " + e.getMessage());
+                    }
+                } catch (InterruptedException e) {
+                    user.close();
+                    Thread.currentThread().interrupt();
+                } finally {
+                    permits.release();
+                    done.countDown();
+                }
+            });
+        }
+        done.await();
+        System.out.printf("已连接 %d 个用户（失败 %d 个），分布在 %d 个房间中，耗时 %.1f 秒%n",
+                users.size(), failed.get(), roomMembers.size(), (System.nanoTime() - begin) / 1e9);
+    }
+
+    /**
+     * 计划时间落在测量窗口内的消息条数
+     */
+    private long countScheduled(long firstAt, long intervalNanos) {
+        long from = Math.max(0, ceilDiv(measureStart - firstAt, intervalNanos));
+        long to = Math.max(0, ceilDiv(measureEnd - firstAt, intervalNanos));
+        return to - from;
+    }
+
+    private static long ceilDiv(long a, long b) {
+        return -Math.floorDiv(-a, b);
+    }
+
+    /**
+     * 每秒输出一次发送和接收的速率，直到deadline
+     */
+    private void reportProgress(long start, long deadline) throws InterruptedException {
+        long lastSent = 0;
+        long lastDelivered = 0;
+        long second = 0;
+        while (System.nanoTime() < deadline) {
+            long wakeAt = start + TimeUnit.SECONDS.toNanos(++second);
+            TimeUnit.NANOSECONDS.sleep(Math.max(0, Math.min(wakeAt, deadline) - System.nanoTime()));
+            long now = System.nanoTime();
+            long sentNow = totalSent.sum();
+            long deliveredNow = totalDelivered.sum();
+            String phase = now < measureStart ? "预热" : now < measureEnd ? "测量" : "收尾";
+            System.out.printf("[%3d秒 %s] 发送 %d 条/秒，收到 %d 条/秒%n",
+                    second, phase, sentNow - lastSent, deliveredNow - lastDelivered);
+            lastSent = sentNow;
+            lastDelivered = deliveredNow;
+        }
+    }
+
+    /**
+     * 生成一条聊天消息：标记、计划时间、实际时间，用 x 补齐到 --size 字节
+     */
+    String payload(LoadUser user, long intendedAt, long sentAt) {
+        StringBuilder text = new StringBuilder(Math.max(messageSize, 64));
+        text.append(marker).append(intendedAt).append('|').append(sentAt).append('|');
+        while (text.length() < messageSize) {
+            text.append('x');
+        }
+        return text.toString();
+    }
+
+    /**
+     * 一条消息已经发出
+     */
+    void onSent(LoadUser user, long intendedAt, long sentAt, long intervalNanos) {
+        totalSent.increment();
+        if (intendedAt < measureStart || intendedAt >= measureEnd) {
+            return;
+        }
+        sent.increment();
+        expected.add(roomMembers.getOrDefault(user.getRoom(), 0));
+        long lag = sentAt - intendedAt;
+        sendLag.record(lag);
+        if (lag > intervalNanos) {
+            lateSends.increment();
+        }
+    }
+
+    /**
+     * 某个用户收到一条消息，只统计本次运行发出的聊天消息
+     */
+    void onMessage(String text) {
+        int index = text.indexOf(marker);
+        if (index < 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        totalDelivered.increment();
+        int from = index + marker.length();
+        int separator = text.indexOf('|', from);
+        int end = separator < 0 ? -1 : text.indexOf('|', separator + 1);
+        if (end < 0) {
+            return;
+        }
+        long intendedAt = Long.parseLong(text, from, separator, 10);
+        long sentAt = Long.parseLong(text, separator + 1, end, 10);
+        if (intendedAt < measureStart || intendedAt >= measureEnd) {
+            return;
+        }
+        delivered.increment();
+        correctedLatency.record(now - intendedAt);
+        uncorrectedLatency.record(now - sentAt);
+    }
+
+    void onError(LoadUser user, IOException e) {
+        if (errors.incrementAndGet() <= 5) {
+            System.err.println("用户 " + user.getUsername() + " 出错: " + e.getMessage());
+        }
+    }
+
+    private String describeProtocol() {
+        if (protocol.equals("udp")) {
+            return multicastInterface != null ? "UDP(组播接收)" : "UDP";
+        }
+        return binary ? "TCP(二进制协议)" : "TCP(文本协议)";
+    }
+
+    private void printSummary(long scheduled, long intervalNanos) {
+        double seconds = durationNanos / 1e9;
+        long sentCount = sent.sum();
+        long expectedCount = expected.sum();
+        long deliveredCount = delivered.sum();
+        long lost = Math.max(0, expectedCount - deliveredCount);
+
+        System.out.println();
+        System.out.println("=== 负载测试结果 ===");
+        System.out.printf("协议: %s，用户: %d，房间: %d 个（每个最多 %d 人），速率: %.0f 条/秒，消息: %d 字节%n",
+                describeProtocol(), users.size(), roomMembers.size(), roomSize, rate, messageSize);
+        System.out.printf("测量时间: %.0f 秒，计划发送 %d 条，实际发送 %d 条%n", seconds, scheduled, sentCount);
+        System.out.printf("吞吐量: 发送 %.1f 条/秒，投递 %.1f 条/秒%n", sentCount / seconds, deliveredCount / seconds);
+        System.out.printf("应收 %d 条，实收 %d 条，丢失 %d 条 (%.4f%%)%n", expectedCount, deliveredCount, lost,
+                expectedCount == 0 ? 0.0 : 100.0 * lost / expectedCount);
+        if (errors.get() > 0) {
+            System.out.println("连接错误: " + errors.get() + " 次");
+        }
+        printLatency("端到端延迟（从计划发送时间起算，已修正协同遗漏）", correctedLatency);
+        printLatency("端到端延迟（从实际发送时间起算，未修正）", uncorrectedLatency);
+        printLatency("发送滞后（实际发送时间 - 计划发送时间）", sendLag);
+
+        // 发送方经常落后于计划，或者修正前后的尾延迟相差很大，说明存在协同遗漏
+        double lateRatio = sentCount == 0 ? 0 : (double) lateSends.sum() / sentCount;
+        long correctedTail = correctedLatency.valueAt(99.9);
+        long uncorrectedTail = uncorrectedLatency.valueAt(99.9);
+        System.out.printf("落后超过一个发送间隔（%.1f 毫秒）的消息: %d 条 (%.2f%%)%n",
+                intervalNanos / 1e6, lateSends.sum(), lateRatio * 100);
+        if (lateRatio > 0.01 || sentCount < scheduled * 0.99 || correctedTail > 2 * uncorrectedTail + 1_000_000) {
+            System.out.println("警告: 检测到协同遗漏：发送方跟不上计划的速率，未修正的延迟明显偏低，应以修正后的结果为准。");
+            System.out.println("      如果服务器CPU并不饱和，可能是负载生成器自身成为瓶颈，可以减少用户数或换一台机器运行。");
+        }
+    }
+
+    private static void printLatency(String title, LatencyHistogram histogram) {
+        System.out.println(title + ":");
+        if (histogram.count() == 0) {
+            System.out.println("  没有数据");
+            return;
+        }
+        System.out.printf("  p50 %.3f  p90 %.3f  p99 %.3f  p99.9 %.3f  最大 %.3f  平均 %.3f 毫秒%n",
+                histogram.valueAt(50) / 1e6, histogram.valueAt(90) / 1e6, histogram.valueAt(99) / 1e6,
+                histogram.valueAt(99.9) / 1e6, histogram.max() / 1e6, histogram.mean() / 1e6);
+    }
+
+    /**
+     * 解析 --servers=地址:端口,地址:端口,... 未指定时返回null
+     */
+    private static List<InetSocketAddress> parseServers(String value) {
+        if (value == null) {
+            return null;
+        }
+        List<InetSocketAddress> result = new ArrayList<>();
+        for (String item : value.split(",")) {
+            int colon = item.lastIndexOf(':');
+            try {
+                result.add(InetSocketAddress.createUnresolved(item.substring(0, colon).trim(),
+                        Integer.parseInt(item.substring(colon + 1).trim())));
+            } catch (RuntimeException e) {
+                throw new IllegalArgumentException("参数 --servers 需要是逗号分隔的 地址:端口 列表: " + value);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 显示使用帮助
+     */
+    private static void showUsage() {
+        System.out.println("负载生成器使用说明（每个模拟用户使用虚拟线程，编译和运行都需要JDK 21或更高版本）:");
+        System.out.println("java ChatLoadGenerator [--protocol=tcp|udp] [--host=地址] [--port=端口号] [--binary]");
+        System.out.println("                       [--multicast=网卡名] [--servers=地址:端口,地址:端口,...]");
+        System.out.println("                       [--users=用户数] [--room-size=每个房间的人数]");
+        System.out.println("                       [--rate=总发送速率(条/秒)] [--size=消息字节数]");
+        System.out.println("                       [--warmup-seconds=秒] [--duration-seconds=秒] [--drain-seconds=秒]");
+        System.out.println("                       [--connect-concurrency=并发连接数] [--connect-timeout-ms=毫秒]");
+        System.out.println("例如:");
+        System.out.println("  java ChatLoadGenerator --users=2000 --rate=5000             # TCP文本协议，2000个用户");
+        System.out.println("  java ChatLoadGenerator --protocol=udp --users=1000 --size=512 # UDP，512字节的消息");
+        System.out.println("  java ChatLoadGenerator --protocol=udp --multicast=lo          # UDP，通过回环组播接收房间消息");
+        System.out.println("  java ChatLoadGenerator --servers=localhost:8881,localhost:8882 # 用户分散到TCP集群的两个节点");
+    }
+
+    /**
+     * 主方法
+     */
+    public static void main(String[] args) throws InterruptedException {
+        ChatLoadGenerator generator;
+        try {
+            generator = new ChatLoadGenerator(ServerOptions.parse(args));
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            showUsage();
+            return;
+        }
+        generator.run();
+        System.exit(0);
+    }
+}
@@ -0,0 +1,119 @@
+import java.io.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * 一个模拟用户
+ * 与交互式客户端使用相同的协议，但没有控制台输入输出：接收线程把每条消息交给ChatLoadGenerator统计，
+ * 发送线程按固定的时间表发送聊天消息。每个用户的接收和发送各占一个虚拟线程，几千个用户也只需要少量平台线程。
+ */
+public abstract class LoadUser {
+    // 心跳间隔，与交互式客户端相同，需要明显小于服务器的空闲超时时间
+    private static final long HEARTBEAT_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+    protected final ChatLoadGenerator generator;
+    protected final String username;
+    protected final String room;
+    private final CountDownLatch joined = new CountDownLatch(1);
+    private final String joinedNotice;
+    protected volatile boolean isRunning = true;
+
+    protected LoadUser(ChatLoadGenerator generator, String username, String room) {
+        this.generator = generator;
+        this.username = username;
+        this.room = room;
+        this.joinedNotice = username + " 进入了房间 " + room;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public String getRoom() {
+        return room;
+    }
+
+    /**
+     * 连接、登录并进入房间，返回时接收线程已经启动，可以开始发送
+     * @throws IOException 连接或登录失败
+     */
+    public void open(long timeoutMillis) throws IOException, InterruptedException {
+        connect(timeoutMillis);
+        sendCommand("/join " + room);
+        if (!joined.await(timeoutMillis, TimeUnit.MILLISECONDS)) {
+            throw new IOException("进入房间超时");
+        }
+    }
+
+    /**
+     * 按时间表发送聊天消息，直到endAt
+     * 每条消息的计划发送时间是固定的，发送被阻塞而落后于计划时立即补发，不跳过，
+     * 消息中带着计划时间，接收方据此计算的延迟包含了落后的时间，不会出现协同遗漏。
+     * @param firstAt 第一条消息的计划时间（System.nanoTime()）
+     * @param intervalNanos 相邻两条消息的间隔
+     */
+    public void sendLoop(long firstAt, long intervalNanos, long endAt) {
+        long next = firstAt;
+        long lastSent = System.nanoTime();
+        try {
+            while (isRunning && next < endAt) {
+                long now = System.nanoTime();
+                if (now < next) {
+                    // 间隔很长时在等待期间发送心跳
+                    if (now - lastSent >= HEARTBEAT_INTERVAL_NANOS) {
+                        sendHeartbeat();
+                        lastSent = now;
+                    }
+                    LockSupport.parkNanos(Math.min(next - now, HEARTBEAT_INTERVAL_NANOS));
+                    continue;
+                }
+                sendChat(generator.payload(this, next, now));
+                generator.onSent(this, next, now, intervalNanos);
+                lastSent = now;
+                next += intervalNanos;
+            }
+        } catch (IOException e) {
+            if (isRunning) {
+                generator.onError(this, e);
+            }
+        }
+    }
+
+    /**
+     * 接收到一条完整的消息
+     */
+    protected void onMessage(String text) {
+        if (joined.getCount() > 0 && text.contains(joinedNotice)) {
+            joined.countDown();
+        }
+        generator.onMessage(text);
+    }
+
+    /**
+     * 建立连接并登录，在合适的时机调用startReceiver()
+     */
+    protected abstract void connect(long timeoutMillis) throws IOException;
+
+    /**
+     * 在虚拟线程上启动接收循环
+     */
+    protected final void startReceiver() {
+        Thread.ofVirtual().name("load-recv-" + username).start(this::receiveLoop);
+    }
+
+    /**
+     * 接收循环，每条消息调用onMessage()，直到连接关闭
+     */
+    protected abstract void receiveLoop();
+
+    protected abstract void sendChat(String text) throws IOException;
+
+    protected abstract void sendCommand(String command) throws IOException;
+
+    protected abstract void sendHeartbeat() throws IOException;
+
+    /**
+     * 断开连接，可重复调用
+     */
+    public abstract void close();
+}
@@ -0,0 +1,148 @@
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.locks.*;
+
+/**
+ * TCP模拟用户，与TCPChatClient相同，可以使用文本协议或二进制帧协议
+ */
+public class TcpLoadUser extends LoadUser {
+    private final String host;
+    private final int port;
+    private final boolean binary;
+    private Socket socket;
+    private InputStream input;
+    private BufferedReader reader;
+    private OutputStream output;
+    private DataInputStream dataInput;
+    private int sessionId;
+
+    // 发送线程和打开阶段的命令都会写入，需要互斥
+    private final ReentrantLock sendLock = new ReentrantLock();
+
+    public TcpLoadUser(ChatLoadGenerator generator, String username, String room,
+                       String host, int port, boolean binary) {
+        super(generator, username, room);
+        this.host = host;
+        this.port = port;
+        this.binary = binary;
+    }
+
+    @Override
+    protected void connect(long timeoutMillis) throws IOException {
+        socket = new Socket();
+        socket.connect(new InetSocketAddress(host, port), (int) timeoutMillis);
+        socket.setTcpNoDelay(true);
+        socket.setSoTimeout((int) timeoutMillis);
+        input = new BufferedInputStream(socket.getInputStream());
+        output = new BufferedOutputStream(socket.getOutputStream());
+
+        // 欢迎消息
+        ChatFrame.readLine(input);
+        if (binary) {
+            writeLine(ChatFrame.HANDSHAKE);
+            if (!ChatFrame.HANDSHAKE_OK.equals(ChatFrame.readLine(input))) {
+                throw new IOException("服务器不支持二进制协议");
+            }
+            dataInput = new DataInputStream(input);
+            writeFrame(ChatFrame.LOGIN, username);
+            ChatFrame response = ChatFrame.read(dataInput);
+            if (response.opcode != ChatFrame.LOGIN) {
+                throw new IOException("登录失败: " + response.text());
+            }
+            sessionId = response.senderId;
+        } else {
+            writeLine(username);
+            String response = ChatFrame.readLine(input);
+            if (response == null || !response.startsWith("SUCCESS:")) {
+                throw new IOException("登录失败: " + response);
+            }
+            reader = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8));
+        }
+        // 登录之后接收线程一直阻塞读取，不再超时
+        socket.setSoTimeout(0);
+        startReceiver();
+    }
+
+    @Override
+    protected void receiveLoop() {
+        try {
+            readMessages();
+        } catch (IOException e) {
+            if (isRunning) {
+                generator.onError(this, e);
+            }
+        }
+    }
+
+    /**
+     * 读取消息直到连接关闭
+     * 循环单独放在一个方法中，异常在调用方处理：JDK 21.0.1的C2对虚拟线程中带异常处理的循环做栈上替换编译后，
+     * 关闭套接字时抛出的异常有时不会进入同一方法中的catch，而是成为未捕获的异常
+     */
+    private void readMessages() throws IOException {
+        if (binary) {
+            while (isRunning) {
+                onMessage(ChatFrame.read(dataInput).text());
+            }
+            return;
+        }
+        String line;
+        while (isRunning && (line = reader.readLine()) != null) {
+            onMessage(line);
+        }
+    }
+
+    @Override
+    protected void sendChat(String text) throws IOException {
+        if (binary) {
+            writeFrame(ChatFrame.CHAT, text);
+        } else {
+            writeLine(text);
+        }
+    }
+
+    @Override
+    protected void sendCommand(String command) throws IOException {
+        if (binary) {
+            writeFrame(ChatFrame.COMMAND, command);
+        } else {
+            writeLine(command);
+        }
+    }
+
+    @Override
+    protected void sendHeartbeat() throws IOException {
+        sendCommand("/ping");
+    }
+
+    private void writeLine(String line) throws IOException {
+        write((line + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void writeFrame(byte opcode, String text) throws IOException {
+        write(ChatFrame.encode(opcode, sessionId, text.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private void write(byte[] data) throws IOException {
+        sendLock.lock();
+        try {
+            output.write(data);
+            output.flush();
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        isRunning = false;
+        try {
+            if (socket != null) {
+                socket.close();
+            }
+        } catch (IOException e) {
+            // 忽略
+        }
+    }
+}
@@ -0,0 +1,286 @@
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * UDP模拟用户，与UDPChatClient相同：超过MTU的消息拆成分片发送，收到的分片重组、打包数据报拆开后逐条处理
+ * 使用阻塞模式的DatagramChannel而不是DatagramSocket：DatagramSocket.receive()会在数据报对象上加锁，
+ * 虚拟线程阻塞时无法让出载体线程，几百个用户就会占满所有载体线程
+ * 指定网卡时与UDPChatClient --multicast 一样协商通过组播接收房间消息（见UdpMulticast），
+ * 同一台主机上每个用户各有一个加入组播组的套接字，内核给每个套接字各复制一份
+ */
+public class UdpLoadUser extends LoadUser {
+    // 接收缓冲区足够容纳任意UDP数据报，不会截断
+    private static final int RECEIVE_BUFFER_SIZE = 65536;
+
+    private final InetSocketAddress server;
+    private DatagramChannel channel;
+    private final FragmentAssembler assembler = new FragmentAssembler(16, 1024 * 1024, 5, TimeUnit.SECONDS);
+    private final ByteBuffer scratch = ByteBuffer.allocate(UdpFragments.DEFAULT_MTU);
+    private int nextFragmentId = 0;
+    private final CountDownLatch registered = new CountDownLatch(1);
+    private volatile String registerError;
+
+    // 发送线程和打开阶段的命令都会发送，分片的缓冲区和编号需要互斥
+    private final ReentrantLock sendLock = new ReentrantLock();
+
+    // 组播接收，multicastInterface为null时不使用
+    private final String multicastInterface;
+    private DatagramChannel multicastChannel;
+    private final FragmentAssembler multicastAssembler = new FragmentAssembler(16, 1024 * 1024, 5, TimeUnit.SECONDS);
+    private final CompletableFuture<InetSocketAddress> multicastGroup = new CompletableFuture<>();
+    private final CountDownLatch multicastConfirmed = new CountDownLatch(1);
+    private volatile String multicastRoom;
+
+    public UdpLoadUser(ChatLoadGenerator generator, String username, String room, InetSocketAddress server,
+                       String multicastInterface) {
+        super(generator, username, room);
+        this.server = server;
+        this.multicastInterface = multicastInterface;
+    }
+
+    /**
+     * 注册的回复也由接收线程处理，所以先启动接收线程再注册
+     */
+    @Override
+    protected void connect(long timeoutMillis) throws IOException {
+        channel = DatagramChannel.open();
+        // 扩大接收缓冲区，突发的广播不至于在客户端被丢弃
+        channel.setOption(StandardSocketOptions.SO_RCVBUF, 1024 * 1024);
+        channel.connect(server);
+        startReceiver();
+        send("REGISTER:" + username);
+        try {
+            if (!registered.await(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                throw new IOException("注册超时");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("注册被中断");
+        }
+        if (registerError != null) {
+            throw new IOException(registerError);
+        }
+        if (multicastInterface != null) {
+            joinMulticast(timeoutMillis);
+        }
+    }
+
+    /**
+     * 协商通过组播接收房间消息，超时内没有得到服务器确认时视为连接失败
+     */
+    private void joinMulticast(long timeoutMillis) throws IOException {
+        NetworkInterface networkInterface = NetworkInterface.getByName(multicastInterface);
+        if (networkInterface == null) {
+            throw new IOException("找不到网卡 " + multicastInterface);
+        }
+        send(UdpMulticast.PREFIX + "JOIN");
+        try {
+            InetSocketAddress group = multicastGroup.get(timeoutMillis, TimeUnit.MILLISECONDS);
+            multicastChannel = DatagramChannel.open(StandardProtocolFamily.INET);
+            multicastChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            multicastChannel.setOption(StandardSocketOptions.SO_RCVBUF, 1024 * 1024);
+            multicastChannel.bind(new InetSocketAddress(group.getPort()));
+            multicastChannel.join(group.getAddress(), networkInterface);
+            Thread.ofVirtual().name("load-mcast-" + username).start(this::multicastLoop);
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            do {
+                send(UdpMulticast.PREFIX + "READY");
+            } while (!multicastConfirmed.await(500, TimeUnit.MILLISECONDS) && System.nanoTime() < deadline);
+            if (multicastConfirmed.getCount() > 0) {
+                throw new IOException("收不到服务器的组播消息");
+            }
+        } catch (ExecutionException e) {
+            throw new IOException("无法使用组播: " + e.getCause().getMessage());
+        } catch (TimeoutException e) {
+            throw new IOException("组播协商超时");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("加入组播组被中断");
+        }
+    }
+
+    private void multicastLoop() {
+        try {
+            receiveMulticast();
+        } catch (IOException e) {
+            if (isRunning) {
+                generator.onError(this, e);
+            }
+        }
+    }
+
+    /**
+     * 接收服务器发出的组播数据报，只处理自己所在房间的消息和发给自己的控制消息
+     */
+    private void receiveMulticast() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(RECEIVE_BUFFER_SIZE);
+        while (isRunning) {
+            buffer.clear();
+            SocketAddress source = multicastChannel.receive(buffer);
+            if (!server.equals(source)) {
+                continue;
+            }
+            ByteBuffer data = buffer.flip();
+            if (UdpFragments.isFragment(data)) {
+                data = multicastAssembler.add(source, data, System.nanoTime());
+                if (data == null) {
+                    continue;
+                }
+            }
+            if (!UdpMulticast.isMulticast(data)) {
+                continue;
+            }
+            String target = UdpMulticast.readRoom(data);
+            if (target == null) {
+                continue;
+            }
+            if (target.isEmpty()) {
+                onMulticastControl(StandardCharsets.UTF_8.decode(data).toString());
+            } else if (target.equals(multicastRoom)) {
+                onMessage(StandardCharsets.UTF_8.decode(data).toString());
+            }
+        }
+    }
+
+    /**
+     * 处理组播中发给自己的探测和房间通知，模拟用户的用户名不含空格
+     */
+    private void onMulticastControl(String text) throws IOException {
+        String[] parts = text.substring(UdpMulticast.PREFIX.length()).split(" ");
+        if (parts.length != 3 || !parts[1].equals(username)) {
+            return;
+        }
+        if (parts[0].equals("PROBE")) {
+            send(UdpMulticast.PREFIX + "ACK " + parts[2]);
+        } else if (parts[0].equals("ROOM")) {
+            multicastRoom = parts[2];
+            multicastConfirmed.countDown();
+        }
+    }
+
+    @Override
+    protected void receiveLoop() {
+        try {
+            receiveDatagrams();
+        } catch (IOException e) {
+            if (isRunning) {
+                generator.onError(this, e);
+            }
+        }
+    }
+
+    /**
+     * 接收数据报直到套接字关闭，与TcpLoadUser.readMessages()一样把循环和异常处理分开
+     */
+    private void receiveDatagrams() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(RECEIVE_BUFFER_SIZE);
+        while (isRunning) {
+            buffer.clear();
+            channel.read(buffer);
+            ByteBuffer data = buffer.flip();
+            if (UdpFragments.isFragment(data)) {
+                data = assembler.add(server, data, System.nanoTime());
+                if (data == null) {
+                    continue;
+                }
+            }
+            if (UdpBatch.isBatch(data)) {
+                UdpBatch.unpack(data, this::deliver);
+            } else {
+                deliver(data);
+            }
+        }
+    }
+
+    private void deliver(ByteBuffer data) {
+        String text = StandardCharsets.UTF_8.decode(data).toString();
+        if (registered.getCount() > 0) {
+            if (text.startsWith("ERROR:")) {
+                registerError = "注册失败: " + text;
+                registered.countDown();
+                return;
+            }
+            if (text.startsWith("SUCCESS:")) {
+                registered.countDown();
+                return;
+            }
+        }
+        if (text.startsWith(UdpMulticast.PREFIX)) {
+            onMulticastReply(text.substring(UdpMulticast.PREFIX.length()));
+            return;
+        }
+        onMessage(text);
+    }
+
+    private void onMulticastReply(String reply) {
+        String[] parts = reply.split(" ");
+        if (parts[0].equals("GROUP") && parts.length == 3) {
+            multicastGroup.complete(new InetSocketAddress(parts[1], Integer.parseInt(parts[2])));
+        } else if (parts[0].equals("UNAVAILABLE")) {
+            multicastGroup.completeExceptionally(new IOException(reply));
+        }
+    }
+
+    @Override
+    protected void sendChat(String text) throws IOException {
+        send("MESSAGE:" + text);
+    }
+
+    @Override
+    protected void sendCommand(String command) throws IOException {
+        send("COMMAND:" + command);
+    }
+
+    @Override
+    protected void sendHeartbeat() throws IOException {
+        send("HEARTBEAT:");
+    }
+
+    /**
+     * 发送一个数据报，超过MTU时拆成分片
+     */
+    private void send(String message) throws IOException {
+        byte[] data = message.getBytes(StandardCharsets.UTF_8);
+        sendLock.lock();
+        try {
+            if (data.length <= UdpFragments.DEFAULT_MTU) {
+                channel.write(ByteBuffer.wrap(data));
+                return;
+            }
+            UdpFragments.split(ByteBuffer.allocate(0), ByteBuffer.wrap(data), nextFragmentId++,
+                UdpFragments.DEFAULT_MTU, scratch,
+                channel::write);
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        isRunning = false;
+        if (channel != null) {
+            try {
+                send("UNREGISTER:" + username);
+            } catch (IOException e) {
+                // 忽略
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // 忽略
+            }
+        }
+        if (multicastChannel != null) {
+            try {
+                multicastChannel.close();
+            } catch (IOException e) {
+                // 忽略
+            }
+        }
+    }
+}
@@ -1,6 +1,8 @@
 import java.io.*;
 import java.net.*;
-import java.util.Scanner;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
 
 /**
  * TCP聊天客户端
@@ -9,22 +11,42 @@ import java.util.Scanner;
  * 2. 发送和接收聊天消息
  * 3. 支持聊天室命令
  * 4. 多线程处理消息接收和发送
+ * 5. 可选使用二进制帧协议（--binary）
+ * 6. 定期发送心跳，避免空闲时被服务器断开
  */
 public class TCPChatClient {
     private static final String DEFAULT_HOST = "localhost";
     private static final int DEFAULT_PORT = 8888;
     
+    // 心跳间隔，需要明显小于服务器的空闲超时时间
+    private static final long HEARTBEAT_INTERVAL_SECONDS = 30;
+    
     private Socket socket;
+    private InputStream input;
     private BufferedReader reader;
     private PrintWriter writer;
     private Scanner scanner;
-    private boolean isConnected = false;
+    private volatile boolean isConnected = false;
     private String username;
     
+    // 二进制协议模式下使用的数据流
+    private final boolean binary;
+    private DataInputStream dataInput;
+    private DataOutputStream dataOutput;
+    private int sessionId;
+    
+    // 用户输入和心跳线程都会发送数据，写入时需要互斥
+    private final ReentrantLock sendLock = new ReentrantLock();
+    
     // 消息接收线程
     private Thread messageReceiver;
     
     public TCPChatClient() {
+        this(false);
+    }
+    
+    public TCPChatClient(boolean binary) {
+        this.binary = binary;
         scanner = new Scanner(System.in);
     }
     
@@ -39,8 +61,14 @@ public class TCPChatClient {
             socket = new Socket(host, port);
             
             // 创建输入输出流
-            reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+            input = new BufferedInputStream(socket.getInputStream());
             writer = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"), true);
+            if (binary) {
+                dataInput = new DataInputStream(input);
+                dataOutput = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            } else {
+                reader = new BufferedReader(new InputStreamReader(input, "UTF-8"));
+            }
             
             isConnected = true;
             System.out.println("连接成功！");
@@ -57,6 +85,9 @@ public class TCPChatClient {
      * 处理登录过程
      */
     public boolean login() {
+        if (binary) {
+            return loginBinary();
+        }
         try {
             // 接收服务器的欢迎消息
             String welcomeMessage = reader.readLine();
@@ -74,11 +105,7 @@ public class TCPChatClient {
             System.out.println(response);
             
             if (response.startsWith("SUCCESS:")) {
-                System.out.println("\n=== 欢迎来到TCP聊天室 ===");
-                System.out.println("输入消息并按回车发送");
-                System.out.println("输入 /help 查看命令帮助");
-                System.out.println("输入 /quit 退出聊天室");
-                System.out.println("========================\n");
+                showWelcomeBanner();
                 return true;
             } else {
                 System.err.println("登录失败，程序将退出");
@@ -91,6 +118,69 @@ public class TCPChatClient {
         }
     }
     
+    /**
+     * 使用二进制协议登录
+     * 先按文本协议收到欢迎消息并协商切换协议，再发送LOGIN帧
+     */
+    private boolean loginBinary() {
+        try {
+            // 接收服务器的欢迎消息
+            System.out.println(ChatFrame.readLine(input));
+            
+            // 输入用户名
+            System.out.print("请输入用户名: ");
+            username = scanner.nextLine().trim();
+            
+            // 请求切换到二进制协议
+            writer.println(ChatFrame.HANDSHAKE);
+            if (!ChatFrame.HANDSHAKE_OK.equals(ChatFrame.readLine(input))) {
+                System.err.println("服务器不支持二进制协议，程序将退出");
+                return false;
+            }
+            
+            // 发送登录帧并接收服务器响应
+            ChatFrame.write(dataOutput, ChatFrame.LOGIN, 0, username);
+            ChatFrame response = ChatFrame.read(dataInput);
+            System.out.println(formatFrame(response));
+            
+            if (response.opcode == ChatFrame.LOGIN) {
+                sessionId = response.senderId;
+                showWelcomeBanner();
+                return true;
+            } else {
+                System.err.println("登录失败，程序将退出");
+                return false;
+            }
+            
+        } catch (IOException e) {
+            System.err.println("登录过程中出错: " + e.getMessage());
+            return false;
+        }
+    }
+    
+    /**
+     * 把服务器发来的帧转换为与文本协议一致的显示内容
+     */
+    private static String formatFrame(ChatFrame frame) {
+        if (frame.opcode == ChatFrame.LOGIN) {
+            return "SUCCESS:" + frame.text();
+        } else if (frame.opcode == ChatFrame.ERROR) {
+            return "ERROR:" + frame.text();
+        }
+        return frame.text();
+    }
+    
+    /**
+     * 显示登录成功后的欢迎信息
+     */
+    private void showWelcomeBanner() {
+        System.out.println("\n=== 欢迎来到TCP聊天室 ===");
+        System.out.println("输入消息并按回车发送");
+        System.out.println("输入 /help 查看命令帮助");
+        System.out.println("输入 /quit 退出聊天室");
+        System.out.println("========================\n");
+    }
+    
     /**
      * 启动客户端
      */
@@ -100,8 +190,9 @@ public class TCPChatClient {
             return;
         }
         
-        // 启动消息接收线程
+        // 启动消息接收线程和心跳线程
         startMessageReceiver();
+        startHeartbeat();
         
         // 主线程处理用户输入
         handleUserInput();
@@ -113,11 +204,20 @@ public class TCPChatClient {
     private void startMessageReceiver() {
         messageReceiver = new Thread(() -> {
             try {
+                if (binary) {
+                    while (isConnected) {
+                        // 显示接收到的消息
+                        System.out.println(formatFrame(ChatFrame.read(dataInput)));
+                    }
+                    return;
+                }
                 String message;
                 while (isConnected && (message = reader.readLine()) != null) {
                     // 显示接收到的消息
                     System.out.println(message);
                 }
+            } catch (EOFException e) {
+                // 服务器关闭了连接
             } catch (IOException e) {
                 if (isConnected) {
                     System.err.println("接收消息时出错: " + e.getMessage());
@@ -129,6 +229,26 @@ public class TCPChatClient {
         messageReceiver.start();
     }
     
+    /**
+     * 启动心跳线程，定期发送 /ping 命令
+     */
+    private void startHeartbeat() {
+        Thread heartbeat = new Thread(() -> {
+            try {
+                while (isConnected) {
+                    TimeUnit.SECONDS.sleep(HEARTBEAT_INTERVAL_SECONDS);
+                    if (isConnected) {
+                        sendToServer("/ping");
+                    }
+                }
+            } catch (InterruptedException e) {
+                // 客户端退出
+            }
+        });
+        heartbeat.setDaemon(true);
+        heartbeat.start();
+    }
+    
     /**
      * 处理用户输入
      */
@@ -142,11 +262,8 @@ public class TCPChatClient {
                     break;
                 }
                 
-                // 发送消息到服务器
-                writer.println(input);
-                
-                // 检查发送是否成功
-                if (writer.checkError()) {
+                // 发送消息到服务器，检查发送是否成功
+                if (!sendToServer(input)) {
                     System.err.println("发送消息失败，连接可能已断开");
                     break;
                 }
@@ -158,19 +275,44 @@ public class TCPChatClient {
         }
     }
     
+    /**
+     * 发送一行用户输入到服务器
+     * 二进制协议下以 / 开头的输入按COMMAND帧发送，其余按CHAT帧发送
+     * @return 发送失败时返回false
+     */
+    private boolean sendToServer(String input) {
+        sendLock.lock();
+        try {
+            if (!binary) {
+                writer.println(input);
+                return !writer.checkError();
+            }
+            byte opcode = input.startsWith("/") ? ChatFrame.COMMAND : ChatFrame.CHAT;
+            ChatFrame.write(dataOutput, opcode, sessionId, input);
+            return true;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            sendLock.unlock();
+        }
+    }
+    
     /**
      * 断开连接
      */
     public void disconnect() {
+        if (!isConnected) {
+            return;
+        }
         isConnected = false;
         
         try {
             if (writer != null) {
-                writer.println("/quit"); // 通知服务器客户端退出
+                sendToServer("/quit"); // 通知服务器客户端退出
                 writer.close();
             }
-            if (reader != null) {
-                reader.close();
+            if (input != null) {
+                input.close();
             }
             if (socket != null && !socket.isClosed()) {
                 socket.close();
@@ -188,11 +330,12 @@ public class TCPChatClient {
      */
     private static void showUsage() {
         System.out.println("TCP聊天客户端使用说明:");
-        System.out.println("java TCPChatClient [服务器地址] [端口号]");
+        System.out.println("java TCPChatClient [服务器地址] [端口号] [--binary]");
         System.out.println("例如:");
         System.out.println("  java TCPChatClient                    # 连接到 localhost:8888");
         System.out.println("  java TCPChatClient 192.168.1.100      # 连接到 192.168.1.100:8888");
         System.out.println("  java TCPChatClient 192.168.1.100 9999 # 连接到 192.168.1.100:9999");
+        System.out.println("  java TCPChatClient --binary           # 使用二进制协议连接到 localhost:8888");
     }
     
     /**
@@ -202,6 +345,11 @@ public class TCPChatClient {
         String host = DEFAULT_HOST;
         int port = DEFAULT_PORT;
         
+        // 取出协议选项，其余为位置参数
+        List<String> argList = new ArrayList<>(Arrays.asList(args));
+        boolean binary = argList.remove("--binary");
+        args = argList.toArray(new String[0]);
+        
         // 解析命令行参数
         if (args.length >= 1) {
             host = args[0];
@@ -222,7 +370,7 @@ public class TCPChatClient {
         }
         
         // 创建并启动客户端
-        TCPChatClient client = new TCPChatClient();
+        TCPChatClient client = new TCPChatClient(binary);
         
         // 添加关闭钩子，确保正常断开连接
         Runtime.getRuntime().addShutdownHook(new Thread(client::disconnect));
@@ -0,0 +1,38 @@
+/**
+ * 聊天会话
+ * 服务器对一个已连接客户端的抽象，阻塞模式下由ClientHandler实现，
+ * NIO模式下由NioClientSession实现
+ */
+public interface ChatSession {
+    
+    /**
+     * 获取会话编号，二进制协议中作为senderId使用
+     */
+    int getSessionId();
+    
+    /**
+     * 获取用户名，登录成功前返回null
+     */
+    String getUsername();
+    
+    /**
+     * 发送已编码好的消息
+     * 实现根据客户端使用的协议选择asLine()或asFrame()，
+     * 得到的是多个会话共享的只读缓冲区，只能通过duplicate()读取
+     * @return 会话已关闭时返回false
+     */
+    boolean send(EncodedMessage message);
+    
+    /**
+     * 向客户端发送一条系统消息
+     * @return 会话已关闭时返回false
+     */
+    default boolean sendMessage(String message) {
+        return send(EncodedMessage.system(message));
+    }
+    
+    /**
+     * 关闭会话，可重复调用
+     */
+    void close();
+}
@@ -1,35 +1,65 @@
 import java.io.*;
 import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
 /**
  * 客户端处理器
- * 每个连接的客户端都有一个对应的ClientHandler线程
- * 负责处理该客户端的所有通信
+ * 每个连接的客户端都有一个对应的ClientHandler线程负责读取，
+ * 另有一个写线程从待发送队列中取出消息写给客户端。
+ * 客户端可以使用按行分隔的文本协议，也可以协商使用二进制帧协议（见ChatFrame）。
  */
-public class ClientHandler implements Runnable {
+public class ClientHandler implements Runnable, ChatSession {
+    // 写线程一次最多合并写出的消息条数
+    private static final int MAX_WRITE_BATCH = 64;
+    
     private Socket clientSocket;
     private TCPChatServer server;
+    private final int sessionId;
+    private InputStream input;
     private BufferedReader reader;
-    private PrintWriter writer;
-    private String username;
-    private boolean isConnected = true;
+    private WritableByteChannel output;
+    private volatile String username;
+    private volatile boolean binary = false;
+    private volatile boolean isConnected = true;
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+    private final IdleMonitor.Entry idle;
+    
+    // 待发送队列及其写线程
+    private final OutboundQueue<ByteBuffer> outbound;
+    private final CountDownLatch writerDone = new CountDownLatch(1);
+    private volatile Thread writerThread;
     
     public ClientHandler(Socket socket, TCPChatServer server) {
         this.clientSocket = socket;
         this.server = server;
+        this.sessionId = server.nextSessionId();
+        this.outbound = server.newOutboundQueue();
+        this.idle = server.watchIdle(this);
         
         try {
-            // 创建输入输出流
-            reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
-            writer = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"), true);
+            // 创建输入输出流，确定协议之后再决定按行读取还是按帧读取
+            input = new BufferedInputStream(new MeteredInputStream(socket.getInputStream(), server.getMetrics()));
+            // 优先直接使用SocketChannel，支持聚集写
+            SocketChannel channel = socket.getChannel();
+            output = channel != null ? channel : Channels.newChannel(socket.getOutputStream());
         } catch (IOException e) {
             System.err.println("创建客户端处理器时出错: " + e.getMessage());
-            closeConnection();
+            close(false);
         }
     }
     
     @Override
     public void run() {
+        if (!isConnected) {
+            return;
+        }
+        server.executeWriter(this::writeLoop);
+        
         try {
             // 首先接收客户端的用户名
             handleLogin();
@@ -40,9 +70,11 @@ public class ClientHandler implements Runnable {
             }
             
         } catch (IOException e) {
-            System.err.println("处理客户端 " + username + " 时出错: " + e.getMessage());
+            if (isConnected) {
+                System.err.println("处理客户端 " + username + " 时出错: " + e.getMessage());
+            }
         } finally {
-            closeConnection();
+            close();
         }
     }
     
@@ -51,28 +83,39 @@ public class ClientHandler implements Runnable {
      */
     private void handleLogin() throws IOException {
         // 发送欢迎消息
-        writer.println("欢迎来到TCP聊天室！请输入您的用户名:");
+        sendMessage("欢迎来到TCP聊天室！请输入您的用户名:");
         
-        // 接收用户名
-        String inputUsername = reader.readLine();
-        if (inputUsername != null && !inputUsername.trim().isEmpty()) {
-            username = inputUsername.trim();
+        // 第一行是用户名，或者是切换到二进制协议的请求
+        String firstLine = ChatFrame.readLine(input);
+        idle.touch();
+        if (ChatFrame.HANDSHAKE.equals(firstLine)) {
+            // 确认消息仍按文本协议发送，之后的消息都按二进制帧发送
+            sendMessage(ChatFrame.HANDSHAKE_OK);
+            binary = true;
+            input = new DataInputStream(input);
             
-            // 检查用户名是否已存在
-            if (server.clients.containsKey(username)) {
-                writer.println("ERROR:用户名已存在，请重新连接并使用其他用户名");
+            ChatFrame frame = ChatFrame.read((DataInputStream) input);
+            idle.touch();
+            if (frame.opcode != ChatFrame.LOGIN) {
+                send(EncodedMessage.error("请先登录"));
                 return;
             }
-            
-            // 登录成功
-            writer.println("SUCCESS:登录成功！欢迎 " + username);
-            server.addClient(username, this);
-            
-            // 发送在线用户列表
-            sendOnlineUsers();
-            
+            onLogin(server.login(this, frame.text()));
         } else {
-            writer.println("ERROR:用户名不能为空");
+            // 接收用户名，校验和注册由服务器统一完成
+            onLogin(server.login(this, firstLine));
+            reader = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8));
+        }
+    }
+    
+    /**
+     * 登录完成，name为null表示登录失败
+     * 登录期间连接可能已被关闭，close时还没有用户名，在这里离开聊天室，否则用户名会一直被占用
+     */
+    private void onLogin(String name) {
+        username = name;
+        if (name != null && closed.get()) {
+            server.removeClient(name, this);
         }
     }
     
@@ -80,92 +123,147 @@ public class ClientHandler implements Runnable {
      * 处理客户端消息
      */
     private void handleMessages() throws IOException {
+        if (binary) {
+            DataInputStream dataInput = (DataInputStream) input;
+            try {
+                while (isConnected) {
+                    ChatFrame frame = ChatFrame.read(dataInput);
+                    idle.touch();
+                    server.handleFrame(this, frame);
+                }
+            } catch (EOFException e) {
+                // 客户端关闭了连接
+            }
+            return;
+        }
+        
         String message;
         while (isConnected && (message = reader.readLine()) != null) {
-            
-            // 处理特殊命令
-            if (message.startsWith("/")) {
-                handleCommand(message);
-            } else {
-                // 普通聊天消息，广播给所有客户端
-                server.broadcastMessage(username, message);
-            }
+            idle.touch();
+            server.handleLine(this, message);
         }
     }
     
     /**
-     * 处理客户端命令
+     * 写线程：取出待发送消息写给客户端，队列中积压的多条消息一次写出
+     * 配置了合并窗口时，收到第一条消息后继续等待窗口内到达的消息再一起写出
      */
-    private void handleCommand(String command) {
-        if (command.equals("/quit") || command.equals("/exit")) {
-            // 客户端主动退出
-            writer.println("再见！");
-            closeConnection();
-        } else if (command.equals("/users")) {
-            // 查看在线用户
-            sendOnlineUsers();
-        } else if (command.equals("/help")) {
-            // 显示帮助信息
-            sendHelpMessage();
-        } else {
-            writer.println("未知命令: " + command + "，输入 /help 查看帮助");
+    private void writeLoop() {
+        writerThread = Thread.currentThread();
+        ByteBuffer[] batch = new ByteBuffer[MAX_WRITE_BATCH];
+        long flushWindow = server.getFlushWindowNanos();
+        try {
+            ByteBuffer frame;
+            while ((frame = outbound.take()) != null) {
+                int count = 0;
+                batch[count++] = frame;
+                long deadline = System.nanoTime() + flushWindow;
+                while (count < batch.length) {
+                    frame = flushWindow > 0
+                            ? outbound.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)
+                            : outbound.poll();
+                    if (frame == null) {
+                        break;
+                    }
+                    batch[count++] = frame;
+                }
+                writeFully(batch, count);
+                Arrays.fill(batch, 0, count, null);
+            }
+        } catch (IOException e) {
+            if (isConnected) {
+                System.err.println("向客户端 " + username + " 发送消息时出错: " + e.getMessage());
+                server.getMetrics().onSendFailure();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            writerDone.countDown();
+            close(false);
         }
     }
     
     /**
-     * 发送在线用户列表
+     * 把batch中前count个缓冲区全部写出，SocketChannel上使用一次聚集写
      */
-    private void sendOnlineUsers() {
-        StringBuilder userList = new StringBuilder("当前在线用户 (");
-        userList.append(server.clients.size()).append("人): ");
-        
-        for (String user : server.clients.keySet()) {
-            userList.append(user).append(" ");
+    private void writeFully(ByteBuffer[] batch, int count) throws IOException {
+        long written = 0;
+        if (output instanceof GatheringByteChannel) {
+            GatheringByteChannel gathering = (GatheringByteChannel) output;
+            while (batch[count - 1].hasRemaining()) {
+                written += gathering.write(batch, 0, count);
+            }
+        } else {
+            for (int i = 0; i < count; i++) {
+                while (batch[i].hasRemaining()) {
+                    written += output.write(batch[i]);
+                }
+            }
         }
-        
-        writer.println("系统消息: " + userList.toString());
+        server.getMetrics().onSent(count, written);
     }
     
     /**
-     * 发送帮助信息
+     * 向客户端发送消息
+     * 消息只是放入待发送队列，由写线程负责写出
      */
-    private void sendHelpMessage() {
-        writer.println("=== 聊天室命令帮助 ===");
-        writer.println("/users - 查看在线用户列表");
-        writer.println("/help - 显示此帮助信息");
-        writer.println("/quit 或 /exit - 退出聊天室");
-        writer.println("直接输入文字即可发送聊天消息");
+    @Override
+    public boolean send(EncodedMessage message) {
+        if (!isConnected) {
+            return false;
+        }
+        ByteBuffer frame = binary ? message.asFrame() : message.asLine();
+        if (!outbound.offer(frame.duplicate())) {
+            // 队列已满且策略为断开连接
+            System.out.println("客户端 " + username + " 接收过慢，断开连接");
+            server.getMetrics().onSendFailure();
+            close(false);
+            return false;
+        }
+        return true;
     }
     
     /**
-     * 向客户端发送消息
+     * 关闭连接，先等待写线程把已排队的消息写完
      */
-    public boolean sendMessage(String message) {
-        if (writer != null && isConnected) {
-            writer.println(message);
-            return !writer.checkError();
-        }
-        return false;
+    @Override
+    public void close() {
+        close(true);
     }
     
     /**
      * 关闭连接
+     * @param graceful 是否等待写线程写完已排队的消息
      */
-    private void closeConnection() {
+    private void close(boolean graceful) {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
         isConnected = false;
+        idle.cancel();
+        outbound.close();
         
         // 从服务器移除此客户端
         if (username != null) {
-            server.removeClient(username);
+            server.removeClient(username, this);
         }
         
-        // 关闭资源
+        // 写线程取完剩余消息后会自行退出，最多等待1秒
+        if (graceful && writerThread != Thread.currentThread()) {
+            try {
+                writerDone.await(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        
+        // 关闭资源，先关闭Socket以唤醒阻塞在读写上的线程
         try {
-            if (reader != null) reader.close();
-            if (writer != null) writer.close();
             if (clientSocket != null && !clientSocket.isClosed()) {
                 clientSocket.close();
             }
+            if (input != null) input.close();
+            if (output != null) output.close();
         } catch (IOException e) {
             System.err.println("关闭客户端连接时出错: " + e.getMessage());
         }
@@ -173,9 +271,45 @@ public class ClientHandler implements Runnable {
         System.out.println("客户端 " + username + " 连接已关闭");
     }
     
+    /**
+     * 统计从Socket读到的字节数，位于缓冲流之下，每次底层读取计数一次
+     */
+    private static class MeteredInputStream extends FilterInputStream {
+        private final ServerMetrics metrics;
+        
+        MeteredInputStream(InputStream in, ServerMetrics metrics) {
+            super(in);
+            this.metrics = metrics;
+        }
+        
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                metrics.onBytesIn(1);
+            }
+            return b;
+        }
+        
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int count = super.read(buffer, offset, length);
+            if (count > 0) {
+                metrics.onBytesIn(count);
+            }
+            return count;
+        }
+    }
+    
+    @Override
+    public int getSessionId() {
+        return sessionId;
+    }
+    
     /**
      * 获取用户名
      */
+    @Override
     public String getUsername() {
         return username;
     }
@@ -0,0 +1,130 @@
+import java.io.*;
+import java.net.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * 集群中两个节点之间的一条持久连接
+ * 帧的格式与客户端的二进制协议相同（见ChatFrame），操作码由ClusterNode定义；
+ * 转发的广播在消息前加上了时间和用户名，允许的帧长度比客户端协议大。
+ * 发送的帧先放入有界队列，由本连接的写线程批量写出，转发广播的线程不会被网络写阻塞；
+ * 队列满说明对方节点处理不过来，断开连接，由ClusterNode清理并重新连接。
+ * 读线程把收到的帧依次交给ClusterNode处理。
+ */
+public class ClusterLink {
+    // 节点之间允许的最大帧长度
+    static final int MAX_FRAME_LENGTH = 1024 * 1024;
+
+    final int peerId;
+    private final ClusterNode node;
+    private final Socket socket;
+    private final DataInputStream input;
+    private final DataOutputStream output;
+    private final OutboundQueue<byte[]> outbound;
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+
+    /**
+     * @param input 握手时已经使用的输入流，可能已缓存了之后的数据
+     */
+    ClusterLink(ClusterNode node, int peerId, Socket socket, DataInputStream input, int queueCapacity)
+            throws IOException {
+        this.node = node;
+        this.peerId = peerId;
+        this.socket = socket;
+        this.input = input;
+        this.output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+        this.outbound = new OutboundQueue<>(queueCapacity, OutboundQueue.OverflowPolicy.DISCONNECT);
+    }
+
+    void start() {
+        Thread reader = new Thread(this::readLoop, "cluster-link-" + peerId + "-reader");
+        reader.setDaemon(true);
+        reader.start();
+        Thread writer = new Thread(this::writeLoop, "cluster-link-" + peerId + "-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * 发送一个编码好的帧，不会阻塞；多个连接可以共享同一个数组，调用方之后不得修改
+     * @return 连接已关闭或队列已满时返回false
+     */
+    boolean send(byte[] frame) {
+        if (!outbound.offer(frame)) {
+            if (!closed.get()) {
+                System.err.println("发往节点 " + peerId + " 的队列已满，断开连接");
+                close();
+            }
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 读取一个帧，长度上限为MAX_FRAME_LENGTH
+     */
+    static ChatFrame readFrame(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < ChatFrame.HEADER_LENGTH || length > MAX_FRAME_LENGTH) {
+            throw new IOException("非法的帧长度: " + length);
+        }
+        byte opcode = in.readByte();
+        int senderId = in.readInt();
+        byte[] payload = new byte[length - ChatFrame.HEADER_LENGTH];
+        in.readFully(payload);
+        return new ChatFrame(opcode, senderId, payload);
+    }
+
+    private void readLoop() {
+        try {
+            while (!closed.get()) {
+                node.onFrame(this, readFrame(input));
+            }
+        } catch (IOException e) {
+            if (!closed.get()) {
+                System.err.println("与节点 " + peerId + " 的连接出错: " + e.getMessage());
+            }
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * 写线程：取出一个帧后把队列中积压的帧一起写入缓冲区，队列空时才刷出
+     */
+    private void writeLoop() {
+        try {
+            byte[] frame;
+            while ((frame = outbound.take()) != null) {
+                output.write(frame);
+                while ((frame = outbound.poll()) != null) {
+                    output.write(frame);
+                }
+                output.flush();
+            }
+        } catch (IOException e) {
+            if (!closed.get()) {
+                System.err.println("向节点 " + peerId + " 发送时出错: " + e.getMessage());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * 关闭连接，可重复调用
+     */
+    void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        outbound.close();
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // 忽略
+        }
+        node.onLinkClosed(this);
+    }
+}
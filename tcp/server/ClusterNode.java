@@ -0,0 +1,649 @@
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+
+/**
+ * 集群节点
+ * 多个TCPChatServer进程组成一个逻辑上的聊天室，每个节点只持有连到自己的客户端：
+ * 1. 节点之间两两之间保持一条持久连接（见ClusterLink），编号较大的节点主动连接编号较小的节点，断开后每秒重试
+ * 2. 用户名目录按用户名的哈希分区，每个分区由一个节点负责，登录时向负责的节点登记，用户名在整个集群中唯一
+ * 3. 房间消息先在本节点投递，再给每个其他节点各转发一次，由对方节点投递给它自己的成员，
+ *    转发的代价与节点数有关，与其他节点上的人数无关
+ * 4. 私聊发给负责接收者用户名的节点，由它转交给接收者所在的节点，最多两跳；
+ *    会话编号的高位是节点编号，送达失败的通知按发送者的会话编号直接回到它所在的节点和会话
+ * 5. /users、/rooms 向所有节点查询后合并
+ *
+ * 与某个节点的连接断开时，本节点负责的分区中登记在该节点上的用户名被清除；
+ * 重新连接后双方各自把对方负责的分区中的本地用户重新登记一次，冲突的用户被断开。
+ * 负责某个分区的节点不可用时，该分区的用户名暂时不能登录，已在线的用户不受影响。
+ */
+public class ClusterNode {
+    // 节点之间的操作码
+    static final byte HELLO = 1;          // 握手，senderId为节点编号，内容为集群口令
+    static final byte CLAIM = 2;          // 登记用户名，senderId为请求编号，0表示重新连接后的补登记
+    static final byte CLAIM_RESULT = 3;   // 登记结果，senderId为请求编号
+    static final byte RELEASE = 4;        // 注销用户名
+    static final byte BROADCAST = 5;      // 房间消息，senderId为发送者的会话编号
+    static final byte DIRECT = 6;         // 私聊
+    static final byte DIRECT_FAILED = 7;  // 私聊的接收者不在线，senderId为发送者的会话编号
+    static final byte QUERY = 8;          // 查询，senderId为请求编号
+    static final byte QUERY_RESULT = 9;   // 查询结果，每行一项
+
+    // 查询的类型
+    static final byte QUERY_USERS = 1;
+    static final byte QUERY_ROOMS = 2;
+
+    static final int MAX_NODES = 128;
+    private static final long CLAIM_TIMEOUT_MILLIS = 2000;
+    private static final long QUERY_TIMEOUT_MILLIS = 1000;
+    private static final long RECONNECT_INTERVAL_MILLIS = 1000;
+    private static final int HANDSHAKE_TIMEOUT_MILLIS = 2000;
+
+    private final TCPChatServer server;
+    private final int nodeId;
+    private final List<InetSocketAddress> nodes;
+    private final byte[] secret;
+    private final int queueCapacity;
+
+    // 到各个节点的连接，下标为节点编号，未连接时为null
+    private final AtomicReferenceArray<ClusterLink> links;
+    // 到各节点的连接是否断开过，只用于减少重复的日志
+    private final boolean[] unreachable;
+
+    // 本节点负责的分区：用户名 → 所在节点
+    private final ConcurrentHashMap<String, Integer> directory = new ConcurrentHashMap<>();
+
+    // 等待结果的登记请求和查询
+    private final ConcurrentHashMap<Integer, PendingClaim> pendingClaims = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, PendingQuery> pendingQueries = new ConcurrentHashMap<>();
+    private final AtomicInteger requestIds = new AtomicInteger();
+
+    private final ScheduledExecutorService timer;
+    private ServerSocket listener;
+    private volatile boolean isRunning = false;
+
+    private static final class PendingClaim {
+        final int owner;
+        final CompletableFuture<Boolean> future = new CompletableFuture<>();
+
+        PendingClaim(int owner) {
+            this.owner = owner;
+        }
+    }
+
+    private static final class PendingQuery {
+        final List<String> lines = new ArrayList<>();
+        final Consumer<List<String>> callback;
+        int remaining;
+        boolean done;
+
+        PendingQuery(int remaining, Consumer<List<String>> callback) {
+            this.remaining = remaining;
+            this.callback = callback;
+        }
+    }
+
+    /**
+     * @param nodes 所有节点用于集群连接的地址，下标为节点编号
+     * @param secret 集群口令，握手时双方必须一致
+     * @param queueCapacity 每条连接的发送队列容量
+     */
+    public ClusterNode(TCPChatServer server, int nodeId, List<InetSocketAddress> nodes, byte[] secret,
+                       int queueCapacity) {
+        if (nodes.size() > MAX_NODES) {
+            throw new IllegalArgumentException("集群最多 " + MAX_NODES + " 个节点: " + nodes.size());
+        }
+        if (nodeId < 0 || nodeId >= nodes.size()) {
+            throw new IllegalArgumentException("参数 --node-id 需要在 0 到 " + (nodes.size() - 1) + " 之间: " + nodeId);
+        }
+        this.server = server;
+        this.nodeId = nodeId;
+        this.nodes = nodes;
+        this.secret = secret;
+        this.queueCapacity = queueCapacity;
+        this.links = new AtomicReferenceArray<>(nodes.size());
+        this.unreachable = new boolean[nodes.size()];
+        this.timer = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "cluster-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * 解析 --cluster=地址:端口,地址:端口,... 未指定时返回null
+     */
+    static List<InetSocketAddress> parseNodes(String value) {
+        if (value == null) {
+            return null;
+        }
+        List<InetSocketAddress> result = new ArrayList<>();
+        for (String item : value.split(",")) {
+            String trimmed = item.trim();
+            int colon = trimmed.lastIndexOf(':');
+            try {
+                if (colon <= 0) {
+                    throw new NumberFormatException();
+                }
+                int nodePort = Integer.parseInt(trimmed.substring(colon + 1));
+                if (nodePort <= 0 || nodePort > 65535) {
+                    throw new NumberFormatException();
+                }
+                result.add(InetSocketAddress.createUnresolved(trimmed.substring(0, colon), nodePort));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("参数 --cluster 需要是逗号分隔的 地址:端口 列表: " + value);
+            }
+        }
+        if (result.size() < 2) {
+            throw new IllegalArgumentException("集群至少需要2个节点: " + value);
+        }
+        return result;
+    }
+
+    public int getNodeId() {
+        return nodeId;
+    }
+
+    public int getNodeCount() {
+        return nodes.size();
+    }
+
+    /**
+     * 开始监听集群连接并连接编号较小的节点
+     */
+    public void start() throws IOException {
+        isRunning = true;
+        listener = new ServerSocket();
+        listener.setReuseAddress(true);
+        listener.bind(new InetSocketAddress(nodes.get(nodeId).getPort()));
+        Thread acceptor = new Thread(this::acceptLoop, "cluster-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        timer.scheduleWithFixedDelay(this::connectMissing, 0, RECONNECT_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        isRunning = false;
+        timer.shutdownNow();
+        try {
+            if (listener != null) {
+                listener.close();
+            }
+        } catch (IOException e) {
+            // 忽略
+        }
+        for (int i = 0; i < links.length(); i++) {
+            ClusterLink link = links.get(i);
+            if (link != null) {
+                link.close();
+            }
+        }
+    }
+
+    /**
+     * 负责该用户名的节点
+     */
+    int ownerOf(String username) {
+        return Math.floorMod(username.hashCode(), nodes.size());
+    }
+
+    /**
+     * 会话编号所属的节点，见TCPChatServer.nextSessionId
+     */
+    static int nodeOf(int sessionId) {
+        return sessionId >>> 24;
+    }
+    
+    /**
+     * 当前已连接的节点数，不含本节点
+     */
+    int connectedCount() {
+        int count = 0;
+        for (int i = 0; i < links.length(); i++) {
+            if (links.get(i) != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 各节点的连接状态，用于 /nodes 命令
+     */
+    List<String> describeNodes() {
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < nodes.size(); i++) {
+            InetSocketAddress address = nodes.get(i);
+            String state = i == nodeId ? "本节点" : links.get(i) != null ? "已连接" : "未连接";
+            lines.add("节点 " + i + " " + address.getHostString() + ":" + address.getPort() + " " + state);
+        }
+        lines.add("本节点负责的用户名: " + directory.size() + " 个");
+        return lines;
+    }
+
+    // ---- 用户名目录 ----
+
+    /**
+     * 在集群中登记用户名
+     * @return 完成时为true表示登记成功，false表示用户名已被占用；负责的节点不可用或超时时异常完成
+     */
+    CompletableFuture<Boolean> claim(String username) {
+        int owner = ownerOf(username);
+        if (owner == nodeId) {
+            return CompletableFuture.completedFuture(directory.putIfAbsent(username, nodeId) == null);
+        }
+        ClusterLink link = links.get(owner);
+        if (link == null) {
+            return CompletableFuture.failedFuture(new IOException("节点 " + owner + " 未连接"));
+        }
+        int requestId = nextRequestId();
+        PendingClaim pending = new PendingClaim(owner);
+        pendingClaims.put(requestId, pending);
+        ScheduledFuture<?> timeout = timer.schedule(() -> {
+            if (pendingClaims.remove(requestId) != null) {
+                pending.future.completeExceptionally(new TimeoutException("节点 " + owner + " 没有响应"));
+            }
+        }, CLAIM_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        pending.future.whenComplete((result, error) -> timeout.cancel(false));
+        if (!link.send(frame(CLAIM, requestId, utf8(username)))) {
+            pendingClaims.remove(requestId);
+            pending.future.completeExceptionally(new IOException("节点 " + owner + " 未连接"));
+        }
+        return pending.future;
+    }
+
+    /**
+     * 注销用户名
+     */
+    void release(String username) {
+        int owner = ownerOf(username);
+        if (owner == nodeId) {
+            directory.remove(username, nodeId);
+            return;
+        }
+        ClusterLink link = links.get(owner);
+        if (link != null) {
+            link.send(frame(RELEASE, 0, utf8(username)));
+        }
+    }
+
+    private void onClaim(ClusterLink link, int requestId, String username) {
+        boolean accepted;
+        if (requestId == 0) {
+            // 补登记：同一节点的重复登记视为成功
+            Integer home = directory.putIfAbsent(username, link.peerId);
+            accepted = home == null || home == link.peerId;
+        } else {
+            accepted = directory.putIfAbsent(username, link.peerId) == null;
+        }
+        byte[] name = utf8(username);
+        byte[] payload = new byte[1 + name.length];
+        payload[0] = (byte) (accepted ? 1 : 0);
+        System.arraycopy(name, 0, payload, 1, name.length);
+        link.send(frame(CLAIM_RESULT, requestId, payload));
+    }
+
+    private void onClaimResult(ClusterLink link, int requestId, byte[] payload) {
+        boolean accepted = payload.length > 0 && payload[0] == 1;
+        String username = new String(payload, 1, payload.length - 1, StandardCharsets.UTF_8);
+        PendingClaim pending = requestId != 0 ? pendingClaims.remove(requestId) : null;
+        if (pending != null) {
+            pending.future.complete(accepted);
+        } else if (requestId != 0 && accepted) {
+            // 请求已超时，登录已经失败，撤销这次登记
+            link.send(frame(RELEASE, 0, payload(username)));
+        } else if (requestId == 0 && !accepted) {
+            server.onClusterConflict(username);
+        }
+    }
+
+    // ---- 房间消息 ----
+
+    /**
+     * 把一条已在本节点投递的房间消息转发给其他每个节点各一次
+     * 帧只编码一次，所有连接共享同一个数组
+     * @param text UTF-8编码的完整消息
+     */
+    void forward(byte[] room, byte opcode, int senderId, byte[] text) {
+        byte[] frame = null;
+        for (int i = 0; i < links.length(); i++) {
+            ClusterLink link = links.get(i);
+            if (link == null) {
+                continue;
+            }
+            if (frame == null) {
+                // 内容为 房间名长度(1字节) | 房间名 | 操作码(1字节) | 消息
+                int payloadLength = 2 + room.length + text.length;
+                frame = new byte[4 + ChatFrame.HEADER_LENGTH + payloadLength];
+                ChatFrame.writeHeader(frame, BROADCAST, senderId, payloadLength);
+                int offset = 4 + ChatFrame.HEADER_LENGTH;
+                frame[offset++] = (byte) room.length;
+                System.arraycopy(room, 0, frame, offset, room.length);
+                offset += room.length;
+                frame[offset++] = opcode;
+                System.arraycopy(text, 0, frame, offset, text.length);
+            }
+            link.send(frame);
+        }
+    }
+
+    private void onBroadcast(int senderId, byte[] payload) {
+        int roomLength = Byte.toUnsignedInt(payload[0]);
+        String room = new String(payload, 1, roomLength, StandardCharsets.UTF_8);
+        byte opcode = payload[1 + roomLength];
+        byte[] text = Arrays.copyOfRange(payload, 2 + roomLength, payload.length);
+        server.deliverRemote(room, opcode, senderId, text);
+    }
+
+    // ---- 私聊 ----
+
+    /**
+     * 把私聊消息发给不在本节点的用户
+     * @param text 接收者看到的完整消息
+     * @return 可以确定接收者不在线时返回false，否则消息已发出，接收者不在线时稍后通知发送者
+     */
+    boolean sendDirect(String sender, int senderId, String target, byte[] text) {
+        int owner = ownerOf(target);
+        int next = owner;
+        if (owner == nodeId) {
+            Integer home = directory.get(target);
+            if (home == null || home == nodeId) {
+                return false;
+            }
+            next = home;
+        }
+        ClusterLink link = links.get(next);
+        if (link == null) {
+            return false;
+        }
+        link.send(frame(DIRECT, senderId, payload(out -> {
+            out.writeUTF(sender);
+            out.writeUTF(target);
+            out.write(text);
+        })));
+        return true;
+    }
+
+    private void onDirect(ClusterLink link, ChatFrame frame) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(frame.payload));
+        String sender = in.readUTF();
+        String target = in.readUTF();
+        byte[] text = in.readAllBytes();
+        if (server.deliverDirect(target, frame.senderId, text)) {
+            return;
+        }
+        if (ownerOf(target) == nodeId) {
+            // 本节点负责接收者的用户名，转交给接收者所在的节点
+            Integer home = directory.get(target);
+            ClusterLink next = home != null && home != nodeId && home != link.peerId ? links.get(home) : null;
+            if (next != null) {
+                next.send(frame(DIRECT, frame.senderId, frame.payload));
+                return;
+            }
+        }
+        int origin = nodeOf(frame.senderId);
+        ClusterLink back = origin == nodeId || origin >= nodes.size() ? null : links.get(origin);
+        if (back != null) {
+            back.send(frame(DIRECT_FAILED, frame.senderId, payload(out -> {
+                out.writeUTF(sender);
+                out.writeUTF(target);
+            })));
+        }
+    }
+
+    private void onDirectFailed(int senderId, byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        String sender = in.readUTF();
+        String target = in.readUTF();
+        server.onDirectFailed(senderId, sender, target);
+    }
+
+    // ---- 查询 ----
+
+    /**
+     * 向所有已连接的节点查询，连同本节点的结果一起交给callback
+     * 超时未回复的节点不计入结果；callback在最后一个回复到达或超时的线程上调用
+     */
+    void query(byte kind, Consumer<List<String>> callback) {
+        List<ClusterLink> targets = new ArrayList<>();
+        for (int i = 0; i < links.length(); i++) {
+            ClusterLink link = links.get(i);
+            if (link != null) {
+                targets.add(link);
+            }
+        }
+        int requestId = nextRequestId();
+        PendingQuery pending = new PendingQuery(targets.size() + 1, callback);
+        pendingQueries.put(requestId, pending);
+        timer.schedule(() -> finishQuery(requestId, null), QUERY_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        byte[] request = frame(QUERY, requestId, new byte[] {kind});
+        for (ClusterLink link : targets) {
+            if (!link.send(request)) {
+                finishQuery(requestId, Collections.emptyList());
+            }
+        }
+        finishQuery(requestId, server.answerQuery(kind));
+    }
+
+    private void onQuery(ClusterLink link, int requestId, byte[] payload) {
+        List<String> lines = payload.length == 1 ? server.answerQuery(payload[0]) : Collections.emptyList();
+        link.send(frame(QUERY_RESULT, requestId, utf8(String.join("\n", lines))));
+    }
+
+    /**
+     * 记录一个节点的回复，全部回复或超时（lines为null）时调用callback
+     */
+    private void finishQuery(int requestId, List<String> lines) {
+        PendingQuery pending = pendingQueries.get(requestId);
+        if (pending == null) {
+            return;
+        }
+        List<String> result;
+        synchronized (pending) {
+            if (pending.done) {
+                return;
+            }
+            if (lines != null) {
+                pending.lines.addAll(lines);
+                pending.remaining--;
+            }
+            if (lines != null && pending.remaining > 0) {
+                return;
+            }
+            pending.done = true;
+            result = pending.lines;
+        }
+        pendingQueries.remove(requestId);
+        pending.callback.accept(result);
+    }
+
+    // ---- 连接管理 ----
+
+    /**
+     * 处理一个收到的帧，在连接的读线程上调用
+     */
+    void onFrame(ClusterLink link, ChatFrame frame) throws IOException {
+        switch (frame.opcode) {
+            case BROADCAST -> onBroadcast(frame.senderId, frame.payload);
+            case CLAIM -> onClaim(link, frame.senderId, frame.text());
+            case CLAIM_RESULT -> onClaimResult(link, frame.senderId, frame.payload);
+            case RELEASE -> directory.remove(frame.text(), link.peerId);
+            case DIRECT -> onDirect(link, frame);
+            case DIRECT_FAILED -> onDirectFailed(frame.senderId, frame.payload);
+            case QUERY -> onQuery(link, frame.senderId, frame.payload);
+            case QUERY_RESULT -> finishQuery(frame.senderId,
+                    frame.payload.length == 0 ? Collections.emptyList() : Arrays.asList(frame.text().split("\n")));
+            default -> throw new IOException("未知的集群操作码: " + frame.opcode);
+        }
+    }
+
+    /**
+     * 连接已关闭：清除登记在该节点上的用户名，等待该节点回复的登记请求立即失败
+     */
+    void onLinkClosed(ClusterLink link) {
+        if (!links.compareAndSet(link.peerId, link, null)) {
+            return;
+        }
+        int peer = link.peerId;
+        directory.values().removeIf(home -> home == peer);
+        pendingClaims.entrySet().removeIf(entry -> {
+            if (entry.getValue().owner != peer) {
+                return false;
+            }
+            entry.getValue().future.completeExceptionally(new IOException("节点 " + peer + " 连接已断开"));
+            return true;
+        });
+        if (isRunning) {
+            System.out.println("与节点 " + peer + " 的连接已断开");
+        }
+    }
+
+    /**
+     * 连接建立：替换旧连接，把对方负责的分区中的本地用户补登记一次
+     */
+    private void onLinkUp(ClusterLink link) {
+        ClusterLink previous = links.getAndSet(link.peerId, link);
+        if (previous != null) {
+            previous.close();
+        }
+        unreachable[link.peerId] = false;
+        link.start();
+        System.out.println("已连接到节点 " + link.peerId + "，集群中已连接 " + connectedCount() + "/" + (nodes.size() - 1)
+                + " 个节点");
+        for (String username : server.localUsernames()) {
+            if (ownerOf(username) == link.peerId) {
+                link.send(frame(CLAIM, 0, utf8(username)));
+            }
+        }
+    }
+
+    /**
+     * 接受编号较大的节点发起的连接
+     */
+    private void acceptLoop() {
+        while (isRunning) {
+            try {
+                Socket socket = listener.accept();
+                try {
+                    DataInputStream input = handshake(socket, false);
+                    ChatFrame hello = readHello(input, socket);
+                    if (hello.senderId <= nodeId || hello.senderId >= nodes.size()) {
+                        throw new IOException("节点编号不合法: " + hello.senderId);
+                    }
+                    sendHello(socket);
+                    socket.setSoTimeout(0);
+                    onLinkUp(new ClusterLink(this, hello.senderId, socket, input, queueCapacity));
+                } catch (IOException e) {
+                    System.err.println("拒绝来自 " + socket.getRemoteSocketAddress() + " 的集群连接: " + e.getMessage());
+                    socket.close();
+                }
+            } catch (IOException e) {
+                if (isRunning) {
+                    System.err.println("接受集群连接时出错: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * 连接编号较小且尚未连接的节点，在定时线程上执行
+     */
+    private void connectMissing() {
+        for (int peer = 0; peer < nodeId && isRunning; peer++) {
+            if (links.get(peer) != null) {
+                continue;
+            }
+            InetSocketAddress address = nodes.get(peer);
+            Socket socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress(address.getHostString(), address.getPort()),
+                        HANDSHAKE_TIMEOUT_MILLIS);
+                DataInputStream input = handshake(socket, true);
+                ChatFrame hello = readHello(input, socket);
+                if (hello.senderId != peer) {
+                    throw new IOException("对方的节点编号为 " + hello.senderId + "，应为 " + peer);
+                }
+                socket.setSoTimeout(0);
+                onLinkUp(new ClusterLink(this, peer, socket, input, queueCapacity));
+            } catch (IOException e) {
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                    // 忽略
+                }
+                if (!unreachable[peer]) {
+                    unreachable[peer] = true;
+                    System.err.println("无法连接到节点 " + peer + "（" + e.getMessage() + "），稍后重试");
+                }
+            }
+        }
+    }
+
+    /**
+     * 设置握手超时，发起方先发送握手帧
+     */
+    private DataInputStream handshake(Socket socket, boolean initiator) throws IOException {
+        socket.setTcpNoDelay(true);
+        socket.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+        if (initiator) {
+            sendHello(socket);
+        }
+        return new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+    }
+
+    private void sendHello(Socket socket) throws IOException {
+        OutputStream out = socket.getOutputStream();
+        out.write(frame(HELLO, nodeId, secret));
+        out.flush();
+    }
+
+    /**
+     * 读取对方的握手帧并核对集群口令
+     */
+    private ChatFrame readHello(DataInputStream input, Socket socket) throws IOException {
+        ChatFrame hello = ClusterLink.readFrame(input);
+        // 按固定时间比较口令，不因匹配的前缀长度泄露信息
+        if (hello.opcode != HELLO || !MessageDigest.isEqual(secret, hello.payload)) {
+            throw new IOException("握手失败，集群口令不一致");
+        }
+        return hello;
+    }
+
+    // ---- 编码 ----
+
+    private interface PayloadWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private static byte[] payload(PayloadWriter writer) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            writer.write(new DataOutputStream(bytes));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte[] payload(String text) {
+        return utf8(text);
+    }
+
+    private static byte[] frame(byte opcode, int id, byte[] payload) {
+        return ChatFrame.encode(opcode, id, payload);
+    }
+
+    private static byte[] utf8(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private int nextRequestId() {
+        // 0保留给补登记
+        return requestIds.updateAndGet(id -> id == Integer.MAX_VALUE ? 1 : id + 1);
+    }
+}
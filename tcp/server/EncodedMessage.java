@@ -0,0 +1,77 @@
+import java.nio.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 编码后的出站消息
+ * 同一条消息可能同时发给文本协议和二进制协议的客户端，
+ * 两种编码都在第一次需要时生成一次，之后所有接收者共享同一个只读缓冲区。
+ */
+public class EncodedMessage {
+    private static final byte[] SUCCESS_PREFIX = "SUCCESS:".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] ERROR_PREFIX = "ERROR:".getBytes(StandardCharsets.UTF_8);
+    
+    private final byte opcode;
+    private final int senderId;
+    private final byte[] text;
+    
+    // 延迟生成的两种编码，并发生成多次也只是重复劳动，结果相同
+    private volatile ByteBuffer line;
+    private volatile ByteBuffer frame;
+    
+    /**
+     * @param text UTF-8编码的消息内容，不含换行符，调用方之后不得修改
+     */
+    public EncodedMessage(byte opcode, int senderId, byte[] text) {
+        this.opcode = opcode;
+        this.senderId = senderId;
+        this.text = text;
+    }
+    
+    public static EncodedMessage of(byte opcode, int senderId, String text) {
+        return new EncodedMessage(opcode, senderId, text.getBytes(StandardCharsets.UTF_8));
+    }
+    
+    /**
+     * 系统消息
+     */
+    public static EncodedMessage system(String text) {
+        return of(ChatFrame.SYSTEM, 0, text);
+    }
+    
+    /**
+     * 错误消息
+     */
+    public static EncodedMessage error(String text) {
+        return of(ChatFrame.ERROR, 0, text);
+    }
+    
+    /**
+     * 文本协议的编码：一行文本，登录成功和错误消息带上SUCCESS:/ERROR:前缀
+     */
+    public ByteBuffer asLine() {
+        ByteBuffer result = line;
+        if (result == null) {
+            byte[] prefix = opcode == ChatFrame.LOGIN ? SUCCESS_PREFIX
+                    : opcode == ChatFrame.ERROR ? ERROR_PREFIX : new byte[0];
+            byte[] data = new byte[prefix.length + text.length + 1];
+            System.arraycopy(prefix, 0, data, 0, prefix.length);
+            System.arraycopy(text, 0, data, prefix.length, text.length);
+            data[data.length - 1] = '\n';
+            result = ByteBuffer.wrap(data).asReadOnlyBuffer();
+            line = result;
+        }
+        return result;
+    }
+    
+    /**
+     * 二进制协议的编码：一个完整的ChatFrame
+     */
+    public ByteBuffer asFrame() {
+        ByteBuffer result = frame;
+        if (result == null) {
+            result = ByteBuffer.wrap(ChatFrame.encode(opcode, senderId, text)).asReadOnlyBuffer();
+            frame = result;
+        }
+        return result;
+    }
+}
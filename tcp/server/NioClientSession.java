@@ -0,0 +1,388 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * NIO模式下的客户端会话
+ * 与ClientHandler处理相同的文本行协议和二进制帧协议，但不占用独立线程：
+ * 读事件由所属的NioEventLoop回调，切分出完整的行或帧后交给服务器处理；
+ * 发送的消息先进入有界的待发送队列，由事件循环线程以非阻塞方式写出。
+ */
+public class NioClientSession implements ChatSession {
+    // 允许缓存的不完整输入上限，超过说明一行或一帧过长
+    private static final int MAX_PENDING_INPUT = 4 + ChatFrame.MAX_FRAME_LENGTH;
+    
+    private final TCPChatServer server;
+    private final NioEventLoop eventLoop;
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final int sessionId;
+    private volatile String username;
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+    private final IdleMonitor.Entry idle;
+    
+    // 未处理完的输入数据（半行或半帧），只在跨越多次读取时才保留
+    private byte[] inputBuffer;
+    private int inputLength = 0;
+    
+    // 是否已协商为二进制帧协议
+    private volatile boolean binary = false;
+    
+    // 集群模式下登录需要等待其他节点确认用户名，期间暂停处理之后的输入，只由事件循环线程访问
+    private boolean loginPending = false;
+    
+    // 待发送的数据，unfinishedWrites是上次聚集写没有写完的部分，只由事件循环线程访问
+    private final OutboundQueue<ByteBuffer> pendingWrites;
+    private ByteBuffer[] unfinishedWrites;
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+    private boolean flushPending = false;
+    
+    public NioClientSession(TCPChatServer server, NioEventLoop eventLoop,
+                            SocketChannel channel, SelectionKey key) {
+        this.server = server;
+        this.eventLoop = eventLoop;
+        this.channel = channel;
+        this.key = key;
+        this.sessionId = server.nextSessionId();
+        this.pendingWrites = server.newOutboundQueue();
+        this.idle = server.watchIdle(this);
+    }
+    
+    /**
+     * 连接建立后发送欢迎消息
+     */
+    void onConnected() {
+        sendMessage("欢迎来到TCP聊天室！请输入您的用户名:");
+    }
+    
+    /**
+     * 处理读事件
+     */
+    void onReadable() {
+        ByteBuffer buffer = eventLoop.readBuffer;
+        buffer.clear();
+        try {
+            int count = channel.read(buffer);
+            if (count < 0) {
+                close();
+                return;
+            }
+            server.getMetrics().onBytesIn(count);
+        } catch (IOException e) {
+            System.err.println("处理客户端 " + username + " 时出错: " + e.getMessage());
+            close();
+            return;
+        }
+        buffer.flip();
+        idle.touch();
+        appendInput(buffer);
+        processInput();
+    }
+    
+    /**
+     * 依次处理输入缓冲区中完整的行或帧，等待登录结果时暂停
+     */
+    private void processInput() {
+        int consumed = 0;
+        while (consumed < inputLength && !closed.get() && !loginPending) {
+            int used = binary ? processFrame(consumed) : processLine(consumed);
+            if (used == 0) {
+                break;
+            }
+            consumed += used;
+        }
+        if (closed.get()) {
+            return;
+        }
+        
+        // 把不完整的数据移到缓冲区开头，等待下次读取
+        inputLength -= consumed;
+        if (inputLength > MAX_PENDING_INPUT) {
+            send(EncodedMessage.error("消息过长"));
+            close();
+        } else if (inputLength == 0) {
+            // 空闲连接不长期持有输入缓冲区
+            inputBuffer = null;
+        } else if (consumed > 0) {
+            System.arraycopy(inputBuffer, consumed, inputBuffer, 0, inputLength);
+        }
+    }
+    
+    /**
+     * 把本次读到的数据追加到输入缓冲区
+     */
+    private void appendInput(ByteBuffer buffer) {
+        int count = buffer.remaining();
+        if (inputBuffer == null) {
+            inputBuffer = new byte[Math.max(256, count)];
+        } else if (inputLength + count > inputBuffer.length) {
+            inputBuffer = Arrays.copyOf(inputBuffer, Math.max(inputLength + count, inputBuffer.length * 2));
+        }
+        buffer.get(inputBuffer, inputLength, count);
+        inputLength += count;
+    }
+    
+    /**
+     * 从from位置开始处理一行文本
+     * @return 消耗的字节数，没有完整的一行时返回0
+     */
+    private int processLine(int from) {
+        int end = -1;
+        for (int i = from; i < inputLength; i++) {
+            if (inputBuffer[i] == '\n') {
+                end = i;
+                break;
+            }
+        }
+        if (end < 0) {
+            return 0;
+        }
+        int length = end - from;
+        if (length > 0 && inputBuffer[end - 1] == '\r') {
+            length--;
+        }
+        String line = new String(inputBuffer, from, length, StandardCharsets.UTF_8);
+        
+        if (username == null) {
+            if (ChatFrame.HANDSHAKE.equals(line)) {
+                // 确认消息仍按文本协议发送，之后的消息都按二进制帧收发
+                sendMessage(ChatFrame.HANDSHAKE_OK);
+                binary = true;
+            } else {
+                // 第一行是用户名，登录失败则断开连接
+                startLogin(line);
+            }
+        } else {
+            server.handleLine(this, line);
+        }
+        return end - from + 1;
+    }
+    
+    /**
+     * 从from位置开始处理一个二进制帧
+     * @return 消耗的字节数，没有完整的帧时返回0
+     */
+    private int processFrame(int from) {
+        if (inputLength - from < 4) {
+            return 0;
+        }
+        int length = ChatFrame.getInt(inputBuffer, from);
+        if (length < ChatFrame.HEADER_LENGTH || length > ChatFrame.MAX_FRAME_LENGTH) {
+            send(EncodedMessage.error("非法的帧长度: " + length));
+            close();
+            return 0;
+        }
+        if (inputLength - from < 4 + length) {
+            return 0;
+        }
+        byte opcode = inputBuffer[from + 4];
+        int senderId = ChatFrame.getInt(inputBuffer, from + 5);
+        byte[] payload = Arrays.copyOfRange(inputBuffer, from + 4 + ChatFrame.HEADER_LENGTH, from + 4 + length);
+        ChatFrame frame = new ChatFrame(opcode, senderId, payload);
+        
+        if (username != null) {
+            server.handleFrame(this, frame);
+        } else if (opcode == ChatFrame.LOGIN) {
+            // 登录失败则断开连接
+            startLogin(frame.text());
+        } else {
+            send(EncodedMessage.error("请先登录"));
+            close();
+        }
+        return 4 + length;
+    }
+    
+    /**
+     * 开始登录，单机模式下立即得到结果；集群模式下在结果返回前不再处理该连接之后的输入
+     */
+    private void startLogin(String inputUsername) {
+        CompletableFuture<String> result = server.loginAsync(this, inputUsername);
+        if (result.isDone()) {
+            onLogin(result.join());
+            return;
+        }
+        loginPending = true;
+        result.thenAccept(name -> eventLoop.execute(() -> {
+            loginPending = false;
+            onLogin(name);
+            if (username != null) {
+                // 继续处理等待期间收到的输入
+                processInput();
+            }
+        }));
+    }
+    
+    /**
+     * 在事件循环线程上记录登录结果
+     */
+    private void onLogin(String name) {
+        if (name == null) {
+            close();
+        } else if (closed.get()) {
+            // 等待确认期间连接已关闭，doClose时还没有用户名，在这里离开聊天室
+            server.removeClient(name, this);
+        } else {
+            username = name;
+        }
+    }
+    
+    /**
+     * 处理写事件，继续写出上次未写完的数据
+     */
+    void onWritable() {
+        flush();
+    }
+    
+    @Override
+    public boolean send(EncodedMessage message) {
+        if (closed.get()) {
+            return false;
+        }
+        ByteBuffer frame = binary ? message.asFrame() : message.asLine();
+        if (!pendingWrites.offer(frame.duplicate())) {
+            // 队列已满且策略为断开连接
+            System.out.println("客户端 " + username + " 接收过慢，断开连接");
+            server.getMetrics().onSendFailure();
+            close();
+            return false;
+        }
+        scheduleFlush();
+        return true;
+    }
+    
+    /**
+     * 安排一次写出：由事件循环在本轮结束时统一写出，其他线程通过提交任务登记
+     */
+    private void scheduleFlush() {
+        if (eventLoop.inEventLoop()) {
+            requestFlush();
+        } else if (flushScheduled.compareAndSet(false, true)) {
+            eventLoop.execute(() -> {
+                flushScheduled.set(false);
+                requestFlush();
+            });
+        }
+    }
+    
+    private void requestFlush() {
+        if (!flushPending) {
+            flushPending = true;
+            eventLoop.markDirty(this);
+        }
+    }
+    
+    /**
+     * 由事件循环在合并窗口到期时调用
+     */
+    void flushNow() {
+        flushPending = false;
+        flush();
+    }
+    
+    /**
+     * 以非阻塞方式写出待发送数据，写不完时关注OP_WRITE事件
+     * 每次从队列中取出多条消息，用一次聚集写交给内核
+     */
+    private void flush() {
+        if (!channel.isOpen()) {
+            return;
+        }
+        ByteBuffer[] batch = eventLoop.writeBatch;
+        int count = 0;
+        try {
+            if (unfinishedWrites != null) {
+                for (ByteBuffer buffer : unfinishedWrites) {
+                    batch[count++] = buffer;
+                }
+                unfinishedWrites = null;
+            }
+            while (true) {
+                ByteBuffer buffer;
+                while (count < batch.length && (buffer = pendingWrites.poll()) != null) {
+                    batch[count++] = buffer;
+                }
+                if (count == 0) {
+                    break;
+                }
+                
+                long written = channel.write(batch, 0, count);
+                int first = 0;
+                while (first < count && !batch[first].hasRemaining()) {
+                    first++;
+                }
+                // 留在unfinishedWrites中的都是没有写完的消息，写完时才计数
+                server.getMetrics().onSent(first, written);
+                if (first < count) {
+                    // 发送缓冲区已满，保留未写完的部分，等待可写事件
+                    unfinishedWrites = Arrays.copyOfRange(batch, first, count);
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+                Arrays.fill(batch, 0, count, null);
+                count = 0;
+            }
+            if (key.isValid() && (key.interestOps() & SelectionKey.OP_WRITE) != 0) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            }
+        } catch (IOException | CancelledKeyException e) {
+            server.getMetrics().onSendFailure();
+            close();
+        } finally {
+            Arrays.fill(batch, 0, count, null);
+        }
+    }
+    
+    @Override
+    public void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        if (eventLoop.inEventLoop()) {
+            doClose();
+        } else {
+            eventLoop.execute(this::doClose);
+        }
+    }
+    
+    private void doClose() {
+        idle.cancel();
+        
+        // 尽量把告别消息等剩余数据写出去
+        pendingWrites.close();
+        flush();
+        key.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.err.println("关闭客户端连接时出错: " + e.getMessage());
+        }
+        unfinishedWrites = null;
+        
+        // 从服务器移除此客户端
+        if (username != null) {
+            server.removeClient(username, this);
+        }
+        System.out.println("客户端 " + username + " 连接已关闭");
+    }
+    
+    /**
+     * 负责该连接读写的事件循环
+     */
+    NioEventLoop getEventLoop() {
+        return eventLoop;
+    }
+    
+    @Override
+    public int getSessionId() {
+        return sessionId;
+    }
+    
+    @Override
+    public String getUsername() {
+        return username;
+    }
+}
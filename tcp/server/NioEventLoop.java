@@ -0,0 +1,206 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * NIO事件循环（子Reactor）
+ * 每个事件循环独占一个线程和一个Selector，负责其名下所有连接的读写。
+ * 其他线程需要操作这些连接时，通过execute提交任务并唤醒Selector。
+ * 一轮事件处理中产生的待发送数据不立即写出，而是在本轮结束（或合并窗口到期）时
+ * 每个连接统一写一次，减少系统调用和小包数量。
+ */
+public class NioEventLoop implements Runnable {
+    private final TCPChatServer server;
+    private final Selector selector;
+    private final Thread thread;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private volatile boolean isRunning = true;
+    
+    // 同一事件循环内所有连接共用的读缓冲区
+    final ByteBuffer readBuffer = ByteBuffer.allocateDirect(64 * 1024);
+    
+    // 聚集写时使用的缓冲区数组，同样由所有连接共用
+    final ByteBuffer[] writeBatch = new ByteBuffer[64];
+    
+    // 有待写出数据的连接及其写出时间，只由事件循环线程访问
+    private final List<NioClientSession> dirtySessions = new ArrayList<>();
+    private final long flushWindowNanos;
+    private long flushDeadline;
+    
+    public NioEventLoop(TCPChatServer server, String name) throws IOException {
+        this.server = server;
+        this.selector = Selector.open();
+        this.thread = new Thread(this, name);
+        this.flushWindowNanos = server.getFlushWindowNanos();
+    }
+    
+    public void start() {
+        thread.start();
+    }
+    
+    /**
+     * 判断当前线程是否为本事件循环线程
+     */
+    public boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+    
+    /**
+     * 提交任务到事件循环线程执行
+     */
+    public void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+    
+    /**
+     * 唤醒阻塞在select上的事件循环线程
+     */
+    public void wakeup() {
+        selector.wakeup();
+    }
+    
+    /**
+     * 注册新接受的连接
+     */
+    public void register(SocketChannel channel) {
+        execute(() -> {
+            try {
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                NioClientSession session = new NioClientSession(server, this, channel, key);
+                key.attach(session);
+                session.onConnected();
+                System.out.println("新客户端连接: " + channel.socket().getInetAddress().getHostAddress());
+            } catch (IOException e) {
+                System.err.println("注册客户端连接时出错: " + e.getMessage());
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+        });
+    }
+    
+    /**
+     * 登记有待写出数据的连接，只能在事件循环线程调用
+     */
+    void markDirty(NioClientSession session) {
+        if (dirtySessions.isEmpty()) {
+            flushDeadline = System.nanoTime() + flushWindowNanos;
+        }
+        dirtySessions.add(session);
+    }
+    
+    @Override
+    public void run() {
+        while (isRunning) {
+            try {
+                if (dirtySessions.isEmpty()) {
+                    if (hasPendingWork()) {
+                        selector.select(1);
+                    } else {
+                        selector.select();
+                    }
+                } else {
+                    // 有等待合并写出的数据，最多等到合并窗口结束
+                    long remaining = flushDeadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        selector.selectNow();
+                    } else {
+                        selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining)));
+                    }
+                }
+                
+                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+                    
+                    NioClientSession session = (NioClientSession) key.attachment();
+                    if (!key.isValid()) {
+                        session.close();
+                        continue;
+                    }
+                    if (key.isReadable()) {
+                        session.onReadable();
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        session.onWritable();
+                    }
+                }
+                
+                runTasks();
+                afterTasks();
+                flushDirtySessions();
+            } catch (ClosedSelectorException e) {
+                break;
+            } catch (IOException e) {
+                System.err.println("事件循环出错: " + e.getMessage());
+            }
+        }
+        closeAll();
+    }
+    
+    /**
+     * 执行其他线程提交的任务
+     */
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                System.err.println("执行事件循环任务时出错: " + e.getMessage());
+            }
+        }
+    }
+    
+    /**
+     * 每轮执行完任务、写出数据之前调用，由子类扩展
+     */
+    protected void afterTasks() {
+    }
+    
+    /**
+     * 是否有需要稍后重试的工作，为true时select最多等待1毫秒
+     */
+    protected boolean hasPendingWork() {
+        return false;
+    }
+    
+    /**
+     * 合并窗口到期后，把本轮积累的数据统一写出
+     */
+    private void flushDirtySessions() {
+        if (dirtySessions.isEmpty() || System.nanoTime() - flushDeadline < 0) {
+            return;
+        }
+        for (int i = 0; i < dirtySessions.size(); i++) {
+            dirtySessions.get(i).flushNow();
+        }
+        dirtySessions.clear();
+    }
+    
+    /**
+     * 关闭事件循环下的所有连接
+     */
+    private void closeAll() {
+        try {
+            for (SelectionKey key : selector.keys()) {
+                ((NioClientSession) key.attachment()).close();
+            }
+            selector.close();
+        } catch (ClosedSelectorException | IOException ignored) {
+        }
+    }
+    
+    /**
+     * 停止事件循环
+     */
+    public void shutdown() {
+        isRunning = false;
+        selector.wakeup();
+    }
+}
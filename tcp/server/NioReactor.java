@@ -0,0 +1,142 @@
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+import java.util.*;
+
+/**
+ * NIO Reactor
+ * 主Reactor（调用start的线程）只负责接受新连接，
+ * 新连接按轮询方式分配给若干个子Reactor（NioEventLoop）处理读写。
+ * 空闲连接只占用一个SelectionKey和少量内存，不再占用线程。
+ * 分片模式下子Reactor为NioShard，广播和私聊经分片之间的信箱转交给接收者所在的分片，
+ * 连接的待发送队列只由所属分片的线程访问。
+ */
+public class NioReactor implements Runnable {
+    private final TCPChatServer server;
+    private final ServerSocketChannel serverChannel;
+    private final Selector acceptSelector;
+    private final NioEventLoop[] eventLoops;
+    // 分片模式下与eventLoops相同，否则为null
+    private final NioShard[] shards;
+    private volatile boolean isRunning = true;
+    private int nextLoop = 0;
+    
+    public NioReactor(TCPChatServer server, int port, int workers) throws IOException {
+        this(server, port, workers, 0);
+    }
+    
+    /**
+     * @param mailboxCapacity 分片之间每个信箱的容量，0表示不分片
+     */
+    public NioReactor(TCPChatServer server, int port, int workers, int mailboxCapacity) throws IOException {
+        this.server = server;
+        
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port), 1024);
+        serverChannel.configureBlocking(false);
+        acceptSelector = Selector.open();
+        serverChannel.register(acceptSelector, SelectionKey.OP_ACCEPT);
+        
+        if (mailboxCapacity > 0) {
+            shards = NioShard.create(server, Math.max(1, workers), mailboxCapacity);
+            eventLoops = shards;
+        } else {
+            shards = null;
+            eventLoops = new NioEventLoop[Math.max(1, workers)];
+            for (int i = 0; i < eventLoops.length; i++) {
+                eventLoops[i] = new NioEventLoop(server, "nio-event-loop-" + i);
+            }
+        }
+    }
+    
+    public boolean isSharded() {
+        return shards != null;
+    }
+    
+    /**
+     * 分片模式下把房间消息投递给所有分片上的成员
+     * 在分片线程上调用时经信箱转交，其他线程（例如集群连接）通过各分片的任务队列转交
+     */
+    void publish(String room, EncodedMessage message) {
+        NioShard current = NioShard.current();
+        if (current != null) {
+            current.publish(room, message);
+            return;
+        }
+        for (NioShard shard : shards) {
+            shard.execute(() -> shard.deliver(room, message));
+        }
+    }
+    
+    /**
+     * 分片模式下发送给一个连接
+     */
+    void sendTo(NioClientSession target, EncodedMessage message) {
+        NioShard current = NioShard.current();
+        if (current != null) {
+            current.sendTo(target, message);
+        } else if (!target.send(message)) {
+            target.close();
+        }
+    }
+    
+    /**
+     * 分片模式下记录连接换了房间，由连接所属的分片更新本地成员表
+     */
+    void onRoomChanged(ChatSession session, String previous, String next) {
+        if (shards == null || !(session instanceof NioClientSession)) {
+            return;
+        }
+        NioClientSession nioSession = (NioClientSession) session;
+        NioShard shard = (NioShard) nioSession.getEventLoop();
+        if (shard.inEventLoop()) {
+            shard.moveLocal(nioSession, previous, next);
+        } else {
+            shard.execute(() -> shard.moveLocal(nioSession, previous, next));
+        }
+    }
+    
+    /**
+     * 运行主Reactor的接受循环
+     */
+    @Override
+    public void run() {
+        for (NioEventLoop loop : eventLoops) {
+            loop.start();
+        }
+        
+        while (isRunning) {
+            try {
+                acceptSelector.select();
+                acceptSelector.selectedKeys().clear();
+                
+                // 一次唤醒尽可能多地接受连接
+                SocketChannel channel;
+                while ((channel = serverChannel.accept()) != null) {
+                    channel.configureBlocking(false);
+                    channel.setOption(StandardSocketOptions.TCP_NODELAY, server.isTcpNoDelay());
+                    eventLoops[nextLoop].register(channel);
+                    nextLoop = (nextLoop + 1) % eventLoops.length;
+                }
+            } catch (ClosedSelectorException e) {
+                break;
+            } catch (IOException e) {
+                if (isRunning) {
+                    System.err.println("接受客户端连接时出错: " + e.getMessage());
+                }
+            }
+        }
+    }
+    
+    /**
+     * 停止接受连接并关闭所有事件循环
+     */
+    public void stop() throws IOException {
+        isRunning = false;
+        acceptSelector.close();
+        serverChannel.close();
+        for (NioEventLoop loop : eventLoops) {
+            loop.shutdown();
+        }
+    }
+}
@@ -0,0 +1,243 @@
+import java.io.*;
+import java.util.*;
+
+/**
+ * 分片模式下的事件循环
+ * 每个分片只处理自己名下的连接，并维护这些连接所在房间的本地成员表，成员表只由分片线程访问。
+ * 广播时发送者所在的分片先投递给本地成员，再给其他每个分片各发一条路由消息（房间名 + 编码好的消息），
+ * 由各分片在自己的线程上放入本地成员的待发送队列；私聊同样只把一条路由消息交给接收者所在的分片。
+ * 每对分片之间有一个有界的单生产者单消费者信箱（见SpscMailbox），跨线程传递的只有路由消息，
+ * 一个连接的待发送队列和写出只由它所在的分片线程访问。
+ */
+public class NioShard extends NioEventLoop {
+    // 当前线程所在的分片，非分片线程为null
+    private static final ThreadLocal<NioShard> CURRENT = new ThreadLocal<>();
+
+    private final TCPChatServer server;
+    private final int index;
+    private NioShard[] shards;
+
+    // inbox[i] 是分片i发给本分片的信箱
+    private SpscMailbox<Route>[] inbox;
+
+    // 对方信箱已满时暂存的路由消息，按目标分片，保持发送顺序
+    private ArrayDeque<Route>[] backlog;
+    private int backlogCount = 0;
+    private int maxBacklog;
+
+    // 本轮事件处理中发送过路由消息、需要唤醒的分片
+    private boolean[] wakeupNeeded;
+
+    // 房间名 → 本分片上的成员，每次变化时替换为新列表，投递时可以直接遍历
+    private final Map<String, List<NioClientSession>> localRooms = new HashMap<>();
+
+    /**
+     * 路由消息，room不为null时投递给该房间的本地成员，否则投递给target
+     */
+    private static final class Route {
+        final String room;
+        final NioClientSession target;
+        final EncodedMessage message;
+
+        Route(String room, NioClientSession target, EncodedMessage message) {
+            this.room = room;
+            this.target = target;
+            this.message = message;
+        }
+    }
+
+    private NioShard(TCPChatServer server, int index) throws IOException {
+        super(server, "nio-shard-" + index);
+        this.server = server;
+        this.index = index;
+    }
+
+    /**
+     * 创建一组分片并连接彼此的信箱
+     * @param mailboxCapacity 每个信箱的容量
+     */
+    static NioShard[] create(TCPChatServer server, int count, int mailboxCapacity) throws IOException {
+        NioShard[] shards = new NioShard[count];
+        for (int i = 0; i < count; i++) {
+            shards[i] = new NioShard(server, i);
+        }
+        for (NioShard shard : shards) {
+            shard.shards = shards;
+            shard.inbox = newMailboxes(count);
+            shard.backlog = newBacklogs(count);
+            shard.wakeupNeeded = new boolean[count];
+            for (int i = 0; i < count; i++) {
+                if (i != shard.index) {
+                    shard.inbox[i] = new SpscMailbox<>(mailboxCapacity);
+                    shard.backlog[i] = new ArrayDeque<>();
+                }
+            }
+            shard.maxBacklog = mailboxCapacity;
+        }
+        return shards;
+    }
+
+    // 不能直接创建泛型数组，元素都在create中放入，只在本类中访问
+    @SuppressWarnings("unchecked")
+    private static SpscMailbox<Route>[] newMailboxes(int count) {
+        return (SpscMailbox<Route>[]) new SpscMailbox<?>[count];
+    }
+    
+    @SuppressWarnings("unchecked")
+    private static ArrayDeque<Route>[] newBacklogs(int count) {
+        return (ArrayDeque<Route>[]) new ArrayDeque<?>[count];
+    }
+    
+    /**
+     * 当前线程所在的分片，不在分片线程上时返回null
+     */
+    static NioShard current() {
+        return CURRENT.get();
+    }
+
+    @Override
+    public void run() {
+        CURRENT.set(this);
+        super.run();
+    }
+
+    // ---- 由本分片线程调用 ----
+
+    /**
+     * 把房间消息投递给本分片的成员，再给其他每个分片各发一条路由消息
+     */
+    void publish(String room, EncodedMessage message) {
+        deliver(room, message);
+        Route route = new Route(room, null, message);
+        for (NioShard shard : shards) {
+            if (shard != this) {
+                post(shard, route);
+            }
+        }
+    }
+
+    /**
+     * 发送给一个连接，在其他分片上时交给所属分片投递
+     */
+    void sendTo(NioClientSession target, EncodedMessage message) {
+        NioEventLoop owner = target.getEventLoop();
+        if (owner == this) {
+            deliver(target, message);
+        } else {
+            post((NioShard) owner, new Route(null, target, message));
+        }
+    }
+
+    /**
+     * 把房间消息放入本分片成员的待发送队列
+     */
+    void deliver(String room, EncodedMessage message) {
+        List<NioClientSession> members = localRooms.get(room);
+        if (members == null) {
+            return;
+        }
+        for (int i = 0; i < members.size(); i++) {
+            deliver(members.get(i), message);
+        }
+    }
+
+    private void deliver(NioClientSession session, EncodedMessage message) {
+        if (!session.send(message)) {
+            server.onSendFailed(session);
+        }
+    }
+
+    /**
+     * 记录本分片上的连接换了房间
+     * @param previous 原来的房间名，没有时为null
+     * @param next 新的房间名，离开聊天室时为null
+     */
+    void moveLocal(NioClientSession session, String previous, String next) {
+        if (previous != null) {
+            List<NioClientSession> members = localRooms.get(previous);
+            if (members != null) {
+                List<NioClientSession> updated = new ArrayList<>(members);
+                updated.remove(session);
+                if (updated.isEmpty()) {
+                    localRooms.remove(previous);
+                } else {
+                    localRooms.put(previous, updated);
+                }
+            }
+        }
+        if (next != null) {
+            List<NioClientSession> members = localRooms.getOrDefault(next, Collections.emptyList());
+            List<NioClientSession> updated = new ArrayList<>(members.size() + 1);
+            updated.addAll(members);
+            updated.add(session);
+            localRooms.put(next, updated);
+        }
+    }
+
+    /**
+     * 放入目标分片的信箱；信箱已满时暂存，保证同一对分片之间的消息顺序
+     */
+    private void post(NioShard target, Route route) {
+        ArrayDeque<Route> pending = backlog[target.index];
+        if (pending.isEmpty() && target.inbox[index].offer(route)) {
+            wakeupNeeded[target.index] = true;
+            return;
+        }
+        if (backlogCount >= maxBacklog) {
+            // 对方长时间处理不过来，丢弃这条消息
+            server.getMetrics().onDropped();
+            return;
+        }
+        pending.add(route);
+        backlogCount++;
+    }
+
+    /**
+     * 每轮事件处理之后：处理收到的路由消息，重试暂存的消息，唤醒收到消息的分片
+     */
+    @Override
+    protected void afterTasks() {
+        for (int i = 0; i < inbox.length; i++) {
+            SpscMailbox<Route> mailbox = inbox[i];
+            if (mailbox == null) {
+                continue;
+            }
+            Route route;
+            while ((route = mailbox.poll()) != null) {
+                if (route.room != null) {
+                    deliver(route.room, route.message);
+                } else {
+                    deliver(route.target, route.message);
+                }
+            }
+        }
+        if (backlogCount > 0) {
+            for (int i = 0; i < backlog.length; i++) {
+                ArrayDeque<Route> pending = backlog[i];
+                if (pending == null) {
+                    continue;
+                }
+                Route route;
+                while ((route = pending.peek()) != null && shards[i].inbox[index].offer(route)) {
+                    pending.poll();
+                    backlogCount--;
+                    wakeupNeeded[i] = true;
+                }
+            }
+        }
+        for (int i = 0; i < wakeupNeeded.length; i++) {
+            if (wakeupNeeded[i]) {
+                wakeupNeeded[i] = false;
+                shards[i].wakeup();
+            }
+        }
+    }
+
+    /**
+     * 有暂存的路由消息时不能无限期等待，需要定期重试
+     */
+    @Override
+    protected boolean hasPendingWork() {
+        return backlogCount > 0;
+    }
+}
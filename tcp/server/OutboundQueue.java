@@ -0,0 +1,189 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * 客户端待发送消息队列
+ * 容量有限，广播线程只负责入队，由该客户端自己的写线程（或NIO事件循环）取出并写出，
+ * 这样一个接收缓慢的客户端只会填满自己的队列，不会拖慢其他客户端。
+ * 队列满时的处理方式由OverflowPolicy决定。
+ * 指定了ServerMetrics时，每次入队记录队列长度，丢弃的消息计入丢弃数。
+ */
+public class OutboundQueue<T> {
+    
+    /**
+     * 队列溢出策略
+     */
+    public enum OverflowPolicy {
+        DROP_OLDEST,   // 丢弃最早的一条消息，保留最新消息
+        DROP_NEWEST,   // 丢弃新到的消息
+        DISCONNECT;    // 断开该客户端
+        
+        /**
+         * 解析命令行参数，例如 drop-oldest
+         */
+        public static OverflowPolicy parse(String value) {
+            try {
+                return valueOf(value.trim().toUpperCase().replace('-', '_'));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("未知的队列溢出策略: " + value);
+            }
+        }
+    }
+    
+    private final ArrayDeque<T> items;
+    private final int capacity;
+    private final OverflowPolicy policy;
+    private final ServerMetrics metrics;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private boolean closed = false;
+    private long dropped = 0;
+    
+    public OutboundQueue(int capacity, OverflowPolicy policy) {
+        this(capacity, policy, null);
+    }
+    
+    /**
+     * @param metrics 记录队列长度和丢弃数，为null时不记录
+     */
+    public OutboundQueue(int capacity, OverflowPolicy policy, ServerMetrics metrics) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("队列容量必须大于0: " + capacity);
+        }
+        this.items = new ArrayDeque<>(Math.min(capacity, 16));
+        this.capacity = capacity;
+        this.policy = policy;
+        this.metrics = metrics;
+    }
+    
+    /**
+     * 消息入队，不会阻塞
+     * @return 队列已关闭，或按DISCONNECT策略需要断开客户端时返回false
+     */
+    public boolean offer(T item) {
+        lock.lock();
+        try {
+            if (closed) {
+                return false;
+            }
+            if (items.size() >= capacity) {
+                switch (policy) {
+                    case DROP_OLDEST:
+                        items.pollFirst();
+                        onDropped();
+                        break;
+                    case DROP_NEWEST:
+                        onDropped();
+                        return true;
+                    case DISCONNECT:
+                        return false;
+                }
+            }
+            items.addLast(item);
+            notEmpty.signal();
+            if (metrics != null) {
+                metrics.onQueueDepth(items.size());
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    private void onDropped() {
+        dropped++;
+        if (metrics != null) {
+            metrics.onDropped();
+        }
+    }
+    
+    /**
+     * 取出一条消息，队列为空时阻塞等待
+     * @return 队列已关闭且没有剩余消息时返回null
+     */
+    public T take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (items.isEmpty()) {
+                if (closed) {
+                    return null;
+                }
+                notEmpty.await();
+            }
+            return items.pollFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * 取出一条消息，不阻塞
+     * @return 队列为空时返回null
+     */
+    public T poll() {
+        lock.lock();
+        try {
+            return items.pollFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * 取出一条消息，队列为空时最多等待指定时间
+     * @return 超时或队列已关闭且没有剩余消息时返回null
+     */
+    public T poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lock();
+        try {
+            while (items.isEmpty()) {
+                if (closed || nanos <= 0) {
+                    return null;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return items.pollFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * 关闭队列，之后的入队都会失败，已入队的消息仍可取出
+     */
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * 当前排队的消息数
+     */
+    public int size() {
+        lock.lock();
+        try {
+            return items.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * 因队列满而丢弃的消息总数
+     */
+    public long getDroppedCount() {
+        lock.lock();
+        try {
+            return dropped;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,110 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+/**
+ * 大房间广播的并行扇出
+ * 接收者不少于threshold人时，把成员快照按chunkSize分块，由工作窃取线程池并行放入各自的待发送队列，
+ * 调用线程自己处理第一块，再等待其余的块完成后返回。
+ * 同一线程先后发出的两次广播，前一次的所有接收者都已入队后才开始下一次，
+ * 所以每个接收者收到消息的顺序与顺序扇出时相同；人数少于threshold时直接在调用线程上顺序投递。
+ */
+public class ParallelFanout {
+    private final ForkJoinPool pool;
+    private final int threshold;
+    private final int chunkSize;
+
+    /**
+     * @param threshold 使用并行扇出的最少接收者人数
+     * @param chunkSize 每块的接收者人数
+     * @param parallelism 线程池的线程数
+     */
+    public ParallelFanout(int threshold, int chunkSize, int parallelism) {
+        if (threshold < 1) {
+            throw new IllegalArgumentException("并行扇出的人数阈值需要大于0: " + threshold);
+        }
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("参数 --fanout-chunk 需要大于0: " + chunkSize);
+        }
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("参数 --fanout-threads 需要大于0: " + parallelism);
+        }
+        this.threshold = threshold;
+        this.chunkSize = chunkSize;
+        this.pool = new ForkJoinPool(parallelism, pool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName("fanout-" + thread.getPoolIndex());
+            return thread;
+        }, null, false);
+    }
+
+    /**
+     * 把消息交给每个接收者，返回后所有接收者都已处理完
+     * @param members 成员快照，扇出期间不会被修改
+     * @param send 发送给一个接收者，失败时返回false；可能在多个线程上同时调用
+     * @return 发送失败的接收者，由调用方在自己的线程上处理
+     */
+    public <T> List<T> deliver(List<T> members, Predicate<T> send) {
+        int size = members.size();
+        if (size < threshold || size <= chunkSize) {
+            List<T> failed = null;
+            for (int i = 0; i < size; i++) {
+                T member = members.get(i);
+                if (!send.test(member)) {
+                    if (failed == null) {
+                        failed = new ArrayList<>();
+                    }
+                    failed.add(member);
+                }
+            }
+            return failed != null ? failed : Collections.emptyList();
+        }
+        Queue<T> failed = new ConcurrentLinkedQueue<>();
+        ForkJoinTask<Void> rest = pool.submit(new Chunk<>(members, chunkSize, size, send, failed));
+        new Chunk<>(members, 0, chunkSize, send, failed).compute();
+        rest.join();
+        return failed.isEmpty() ? Collections.emptyList() : new ArrayList<>(failed);
+    }
+
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    /**
+     * 一段接收者，超过chunkSize时对半拆分，空闲的线程会窃取拆出的另一半
+     */
+    private final class Chunk<T> extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        
+        // 任务只在线程池中执行，不会被序列化
+        private final transient List<T> members;
+        private final int from;
+        private final int to;
+        private final transient Predicate<T> send;
+        private final transient Queue<T> failed;
+
+        Chunk(List<T> members, int from, int to, Predicate<T> send, Queue<T> failed) {
+            this.members = members;
+            this.from = from;
+            this.to = to;
+            this.send = send;
+            this.failed = failed;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > chunkSize) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new Chunk<>(members, from, middle, send, failed),
+                        new Chunk<>(members, middle, to, send, failed));
+                return;
+            }
+            for (int i = from; i < to; i++) {
+                T member = members.get(i);
+                if (!send.test(member)) {
+                    failed.add(member);
+                }
+            }
+        }
+    }
+}
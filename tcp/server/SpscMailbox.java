@@ -0,0 +1,84 @@
+import java.util.concurrent.atomic.*;
+
+/**
+ * 有界的单生产者单消费者队列，用于分片之间传递路由消息
+ * 只允许一个线程调用offer、一个线程调用poll，两端都不加锁也不做CAS：
+ * 生产者只写tail，消费者只写head，各自缓存对方的位置，只在看起来已满或已空时才重新读取。
+ * 两端的位置放在同一个数组中相隔128字节的两处，每个位置和它所属线程缓存的对方位置相邻，
+ * 数组元素连续存放，生产者和消费者写的数据不会落在同一个缓存行上。
+ */
+public class SpscMailbox<T> {
+    // 数组中的下标，两组之间相隔16个long，前后也各留出足够的填充
+    private static final int TAIL = 8;
+    private static final int CACHED_HEAD = TAIL + 1;
+    private static final int HEAD = TAIL + 16;
+    private static final int CACHED_TAIL = HEAD + 1;
+    private static final int POSITIONS_LENGTH = HEAD + 16;
+    
+    private final Object[] buffer;
+    private final int mask;
+    
+    // tail为下一个写入位置，cachedHead为生产者看到的消费位置，只由生产者写；
+    // head为下一个读取位置，cachedTail为消费者看到的写入位置，只由消费者写
+    private final AtomicLongArray positions = new AtomicLongArray(POSITIONS_LENGTH);
+    
+    /**
+     * @param capacity 容量，向上取整为2的幂
+     */
+    public SpscMailbox(int capacity) {
+        if (capacity < 1 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("容量需要在 1 到 " + (1 << 30) + " 之间: " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        this.buffer = new Object[size];
+        this.mask = size - 1;
+    }
+    
+    /**
+     * 放入一条消息，只能由生产者线程调用
+     * @return 队列已满时返回false
+     */
+    public boolean offer(T item) {
+        long t = positions.getPlain(TAIL);
+        long cachedHead = positions.getPlain(CACHED_HEAD);
+        if (t - cachedHead >= buffer.length) {
+            cachedHead = positions.get(HEAD);
+            positions.setPlain(CACHED_HEAD, cachedHead);
+            if (t - cachedHead >= buffer.length) {
+                return false;
+            }
+        }
+        buffer[(int) t & mask] = item;
+        // 有序写：消费者看到新的tail时一定能看到上面写入的元素
+        positions.lazySet(TAIL, t + 1);
+        return true;
+    }
+    
+    /**
+     * 取出一条消息，只能由消费者线程调用
+     * @return 队列为空时返回null
+     */
+    @SuppressWarnings("unchecked")
+    public T poll() {
+        long h = positions.getPlain(HEAD);
+        if (h >= positions.getPlain(CACHED_TAIL)) {
+            long cachedTail = positions.get(TAIL);
+            positions.setPlain(CACHED_TAIL, cachedTail);
+            if (h >= cachedTail) {
+                return null;
+            }
+        }
+        int index = (int) h & mask;
+        T item = (T) buffer[index];
+        buffer[index] = null;
+        positions.lazySet(HEAD, h + 1);
+        return item;
+    }
+    
+    public int capacity() {
+        return buffer.length;
+    }
+}
@@ -1,47 +1,236 @@
 import java.io.*;
 import java.net.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
 /**
  * TCP聊天服务器
  * 功能：
  * 1. 监听客户端连接
  * 2. 处理多客户端同时在线
- * 3. 转发消息给所有客户端
- * 4. 管理客户端列表
+ * 3. 转发消息给同一房间的客户端
+ * 4. 管理客户端列表和聊天房间
+ *
+ * 运行模式：
+ * - pool:    每个客户端一个平台线程（默认）
+ * - virtual: 每个客户端一个虚拟线程，代码仍为阻塞式读写
+ * - nio:     基于Selector的Reactor模式，少量线程处理全部连接
+ * - sharded: 在nio的基础上按分片隔离，每个事件循环线程只访问自己名下连接的房间成员和待发送队列，
+ *            广播和私聊通过分片之间的信箱转交（见NioShard）
+ *
+ * 超过 --idle-timeout-seconds 没有收到任何数据（包括客户端心跳）的连接会被断开，
+ * 半开连接不会让读线程永远阻塞。
+ * 指定 --log-dir 时所有广播的消息都写入磁盘上的消息日志（见MessageLog），重启后从中恢复各房间的历史。
+ * 运行指标（见ServerMetrics）定期输出，也可以通过JMX或管理员的 /stats 命令查看。
+ * 指定 --cluster 时多个服务器进程组成集群（见ClusterNode），用户名在整个集群中唯一，
+ * 房间消息、私聊和 /users、/rooms 跨越所有节点。
  */
 public class TCPChatServer {
-    private static final int PORT = 8888;  // 服务器端口
+    private static final int DEFAULT_PORT = 8888;  // 服务器端口
+    private static final String DEFAULT_ROOM = "大厅";  // 登录后进入的房间
+    private final int port;
+    private final String mode;
     private ServerSocket serverSocket;
-    private boolean isRunning = false;
+    private NioReactor reactor;
+    private volatile boolean isRunning = false;
     
-    // 存储所有连接的客户端
-    public Map<String, ClientHandler> clients = new ConcurrentHashMap<>();
-    private ExecutorService threadPool = Executors.newCachedThreadPool();
+    // 存储所有连接的客户端，按用户名查找，只用于登录和按用户名的命令
+    public Map<String, ChatSession> clients = new ConcurrentHashMap<>();
+    
+    // 聊天房间及其成员，广播只发给发送者所在房间的成员
+    private final RoomIndex<ChatSession> rooms;
+    
+    // 进入房间时重放的最近消息条数
+    private final int historyReplay;
+    
+    // 持久化的消息日志，未指定 --log-dir 时为null
+    private MessageLog messageLog;
+    
+    // 全文检索，--search=false 时为null
+    private final SearchIndex searchIndex;
+    private static final int SEARCH_LIMIT = 20;
+    private ExecutorService threadPool;
+    
+    // 每个客户端待发送队列的容量和溢出策略
+    private final int queueCapacity;
+    private final OutboundQueue.OverflowPolicy overflowPolicy;
+    
+    // 发送模式：latency模式立即写出并关闭Nagle算法，
+    // throughput模式在flushWindowNanos内合并多条消息一次写出，并保留Nagle算法
+    private final boolean tcpNoDelay;
+    private final long flushWindowNanos;
+    
+    // 空闲连接检测，超时为0时不检测
+    private final IdleMonitor idleMonitor;
+    
+    // 会话编号生成器，0保留给服务器自身
+    private final AtomicInteger sessionIdGenerator = new AtomicInteger(1);
+    
+    // 集群，未指定 --cluster 时为null
+    private final ClusterNode cluster;
+    
+    // 大房间广播的并行扇出，--parallel-fanout-threshold=0 时为null
+    private final ParallelFanout parallelFanout;
+    
+    // 运行指标，以及 /stats 命令需要的管理员口令，未指定 --admin-password 时不能使用 /stats
+    private final ServerMetrics metrics;
+    private final byte[] adminPassword;
     
     public TCPChatServer() {
+        this(ServerOptions.parse(new String[0]));
+    }
+    
+    public TCPChatServer(ServerOptions options) {
+        this.port = options.getInt("port", DEFAULT_PORT);
+        this.mode = options.get("mode", "pool");
+        this.queueCapacity = options.getInt("queue-capacity", 1024);
+        this.overflowPolicy = OutboundQueue.OverflowPolicy.parse(options.get("overflow", "drop-oldest"));
+        String sendMode = options.get("send-mode", "latency");
+        if (sendMode.equals("latency")) {
+            this.tcpNoDelay = true;
+            this.flushWindowNanos = TimeUnit.MILLISECONDS.toNanos(options.getInt("flush-window-ms", 0));
+        } else if (sendMode.equals("throughput")) {
+            this.tcpNoDelay = false;
+            this.flushWindowNanos = TimeUnit.MILLISECONDS.toNanos(options.getInt("flush-window-ms", 2));
+        } else {
+            throw new IllegalArgumentException("未知的发送模式: " + sendMode);
+        }
+        long idleTimeoutSeconds = options.getLong("idle-timeout-seconds", 120);
+        this.idleMonitor = idleTimeoutSeconds > 0
+                ? new IdleMonitor("tcp-idle-monitor", idleTimeoutSeconds, TimeUnit.SECONDS)
+                : null;
+        int historySize = options.getInt("history", 100);
+        int historySlotBytes = options.getInt("history-slot-bytes", 1024);
+        boolean historyOffHeap = options.getBoolean("history-off-heap", false);
+        this.historyReplay = Math.min(options.getInt("history-replay", 20), historySize);
+        this.rooms = new RoomIndex<>(DEFAULT_ROOM, historySize > 0
+                ? () -> new MessageRing(historySize, historySlotBytes, historyOffHeap)
+                : null, options.getInt("history-max-rooms", 256));
+        this.searchIndex = SearchIndex.open(options);
+        this.metrics = new ServerMetrics("tcp", port, options.getLong("stats-interval-seconds", 60), clients::size);
+        String password = options.get("admin-password", null);
+        this.adminPassword = password != null ? password.getBytes(StandardCharsets.UTF_8) : null;
+        this.cluster = openCluster(options);
+        int fanoutThreshold = options.getInt("parallel-fanout-threshold", 8192);
+        this.parallelFanout = fanoutThreshold > 0
+                ? new ParallelFanout(fanoutThreshold, options.getInt("fanout-chunk", 1024),
+                        options.getInt("fanout-threads", Runtime.getRuntime().availableProcessors()))
+                : null;
+        
         try {
-            serverSocket = new ServerSocket(PORT);
+            String logDir = options.get("log-dir", null);
+            if (logDir != null) {
+                messageLog = MessageLog.open(Paths.get(logDir), options);
+                if (historySize > 0 || searchIndex != null) {
+                    int restored = messageLog.restoreRecent(options, historySize > 0 ? rooms : null, searchIndex);
+                    System.out.println("从消息日志恢复了 " + restored + " 条历史消息");
+                }
+            }
+            if (mode.equals("nio")) {
+                int workers = options.getInt("workers", Runtime.getRuntime().availableProcessors());
+                reactor = new NioReactor(this, port, workers);
+            } else if (mode.equals("sharded")) {
+                int workers = options.getInt("workers", Runtime.getRuntime().availableProcessors());
+                int mailboxCapacity = options.getInt("shard-mailbox-capacity", 16384);
+                if (mailboxCapacity < 1) {
+                    throw new IllegalArgumentException("参数 --shard-mailbox-capacity 需要大于0: " + mailboxCapacity);
+                }
+                reactor = new NioReactor(this, port, workers, mailboxCapacity);
+            } else if (mode.equals("virtual")) {
+                threadPool = newVirtualThreadExecutor();
+                serverSocket = openServerSocket(port);
+            } else if (mode.equals("pool")) {
+                threadPool = Executors.newCachedThreadPool();
+                serverSocket = openServerSocket(port);
+            } else {
+                throw new IllegalArgumentException("未知的运行模式: " + mode);
+            }
             System.out.println("TCP聊天服务器启动成功！");
             System.out.println("服务器地址: " + InetAddress.getLocalHost().getHostAddress());
-            System.out.println("监听端口: " + PORT);
+            System.out.println("监听端口: " + port);
+            System.out.println("运行模式: " + mode);
+            if (cluster != null) {
+                System.out.println("集群节点: " + cluster.getNodeId() + "/" + cluster.getNodeCount());
+            }
             System.out.println("等待客户端连接...");
         } catch (IOException e) {
             System.err.println("服务器启动失败: " + e.getMessage());
         }
     }
     
+    /**
+     * 创建每个任务一个虚拟线程的线程池
+     * 虚拟线程需要JDK 21，这里通过反射调用，其他运行模式在更早的JDK上也能编译和运行
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalArgumentException("virtual模式需要JDK 21或更高版本，当前Java版本: "
+                    + System.getProperty("java.version"));
+        }
+    }
+    
+    /**
+     * 创建集群节点，未指定 --cluster 时返回null
+     */
+    private ClusterNode openCluster(ServerOptions options) {
+        List<InetSocketAddress> nodes = ClusterNode.parseNodes(options.get("cluster", null));
+        if (nodes == null) {
+            return null;
+        }
+        // 没有口令时任何能连上集群端口的程序都可以加入集群
+        String secret = options.get("cluster-secret", "");
+        if (secret.isEmpty()) {
+            throw new IllegalArgumentException("使用 --cluster 时需要指定非空的 --cluster-secret");
+        }
+        return new ClusterNode(this, options.getInt("node-id", 0), nodes,
+                secret.getBytes(StandardCharsets.UTF_8), options.getInt("cluster-queue-capacity", 65536));
+    }
+    
+    /**
+     * 创建阻塞模式的ServerSocket
+     * 通过ServerSocketChannel创建，接受的Socket带有SocketChannel，写线程可以使用聚集写
+     */
+    private static ServerSocket openServerSocket(int port) throws IOException {
+        return ServerSocketChannel.open().bind(new InetSocketAddress(port)).socket();
+    }
+    
     /**
      * 启动服务器，开始监听客户端连接
      */
     public void start() {
         isRunning = true;
+        if (idleMonitor != null) {
+            idleMonitor.start();
+        }
+        metrics.start();
+        if (cluster != null) {
+            try {
+                cluster.start();
+            } catch (IOException e) {
+                System.err.println("集群端口监听失败: " + e.getMessage());
+                stop();
+                return;
+            }
+        }
+        
+        if (reactor != null) {
+            // NIO模式由Reactor接管连接的接受和读写
+            reactor.run();
+            return;
+        }
         
         while (isRunning) {
             try {
                 // 等待客户端连接
                 Socket clientSocket = serverSocket.accept();
+                clientSocket.setTcpNoDelay(tcpNoDelay);
                 
                 // 为每个客户端创建处理线程
                 ClientHandler clientHandler = new ClientHandler(clientSocket, this);
@@ -57,53 +246,753 @@ public class TCPChatServer {
         }
     }
     
+    /**
+     * 处理客户端登录，阻塞到登录完成
+     * @return 登录成功返回用户名，失败返回null
+     */
+    public String login(ChatSession session, String inputUsername) {
+        return loginAsync(session, inputUsername).join();
+    }
+    
+    /**
+     * 处理客户端登录
+     * 单机模式下返回已完成的结果；集群模式下需要负责该用户名的节点确认，结果在集群连接的线程上完成
+     * @return 登录成功时完成为用户名，失败时完成为null，不会异常完成
+     */
+    public CompletableFuture<String> loginAsync(ChatSession session, String inputUsername) {
+        if (inputUsername == null || inputUsername.trim().isEmpty()) {
+            session.send(EncodedMessage.error("用户名不能为空"));
+            return CompletableFuture.completedFuture(null);
+        }
+        String username = inputUsername.trim();
+        if (username.indexOf('\n') >= 0 || username.indexOf('\r') >= 0) {
+            // 二进制协议的LOGIN帧可以带换行符，用户名会出现在所有人收到的消息中
+            session.send(EncodedMessage.error("用户名不能包含换行符"));
+            return CompletableFuture.completedFuture(null);
+        }
+        
+        if (cluster == null) {
+            return CompletableFuture.completedFuture(completeLogin(session, username));
+        }
+        
+        // 本节点已有同名用户时不必再向其他节点登记
+        if (clients.containsKey(username)) {
+            session.send(EncodedMessage.error("用户名已存在，请重新连接并使用其他用户名"));
+            return CompletableFuture.completedFuture(null);
+        }
+        
+        // 在集群中登记，同一用户名在所有节点中只能登录一次
+        return cluster.claim(username).handle((accepted, error) -> {
+            if (error != null) {
+                session.send(EncodedMessage.error("暂时无法确认用户名，请稍后重试"));
+                return null;
+            }
+            if (!accepted) {
+                session.send(EncodedMessage.error("用户名已存在，请重新连接并使用其他用户名"));
+                return null;
+            }
+            return completeLogin(session, username);
+        });
+    }
+    
+    /**
+     * 用户名已确认可用，完成登录
+     */
+    private String completeLogin(ChatSession session, String username) {
+        // 检查和登记是同一个原子操作，同一用户名并发登录时只有一个成功
+        if (clients.putIfAbsent(username, session) != null) {
+            session.send(EncodedMessage.error("用户名已存在，请重新连接并使用其他用户名"));
+            return null;
+        }
+        
+        // 登录成功
+        session.send(EncodedMessage.of(ChatFrame.LOGIN, session.getSessionId(), "登录成功！欢迎 " + username));
+        joinChat(username, session);
+        
+        // 发送在线用户列表和房间中最近的消息
+        sendOnlineUsers(session);
+        sendHistory(session, historyReplay, false);
+        return username;
+    }
+    
+    /**
+     * 处理已登录客户端发来的一行输入
+     */
+    public void handleLine(ChatSession session, String message) {
+        long start = System.nanoTime();
+        metrics.onMessageIn();
+        // 处理特殊命令
+        if (message.startsWith("/")) {
+            handleCommand(session, message);
+        } else {
+            // 普通聊天消息，广播给同一房间的客户端
+            broadcastChat(session, message.getBytes(StandardCharsets.UTF_8));
+        }
+        metrics.onProcessed(start);
+    }
+    
+    /**
+     * 处理已登录客户端发来的二进制帧
+     * 聊天消息的内容不做解码，直接拼接到转发的消息中
+     */
+    public void handleFrame(ChatSession session, ChatFrame frame) {
+        long start = System.nanoTime();
+        metrics.onMessageIn();
+        if (ChatFrame.containsLineBreak(frame.payload)) {
+            // 转发给文本协议的客户端时换行符会伪造出额外的行
+            session.send(EncodedMessage.error("消息不能包含换行符"));
+        } else if (frame.opcode == ChatFrame.CHAT) {
+            broadcastChat(session, frame.payload);
+        } else if (frame.opcode == ChatFrame.COMMAND) {
+            handleCommand(session, frame.text());
+        } else {
+            session.send(EncodedMessage.error("不支持的操作码: " + frame.opcode));
+        }
+        metrics.onProcessed(start);
+    }
+    
+    /**
+     * 处理客户端命令
+     */
+    public void handleCommand(ChatSession session, String command) {
+        if (command.equals("/quit") || command.equals("/exit")) {
+            // 客户端主动退出
+            session.sendMessage("再见！");
+            session.close();
+        } else if (command.equals("/users")) {
+            // 查看在线用户
+            sendOnlineUsers(session);
+        } else if (command.equals("/help")) {
+            // 显示帮助信息
+            sendHelpMessage(session);
+        } else if (command.equals("/join") || command.startsWith("/join ")) {
+            // 进入房间
+            joinRoom(session, command.substring("/join".length()));
+        } else if (command.equals("/leave")) {
+            // 回到默认房间
+            leaveRoom(session);
+        } else if (command.equals("/rooms")) {
+            // 查看房间列表
+            sendRoomList(session);
+        } else if (command.equals("/history") || command.startsWith("/history ")) {
+            // 查看当前房间最近的消息
+            handleHistory(session, command.substring("/history".length()));
+        } else if (command.equals("/search") || command.startsWith("/search ")) {
+            // 检索历史消息
+            handleSearch(session, command.substring("/search".length()));
+        } else if (command.equals("/msg") || command.startsWith("/msg ")) {
+            // 私聊
+            sendDirectMessage(session, command.substring("/msg".length()));
+        } else if (command.equals("/nodes")) {
+            // 查看集群节点
+            sendNodeList(session);
+        } else if (command.equals("/stats") || command.startsWith("/stats ")) {
+            // 查看运行指标，只有管理员可以使用
+            sendStats(session, command.substring("/stats".length()));
+        } else if (command.equals("/ping")) {
+            // 客户端心跳，收到数据时已经记录了活动时间，不需要回复
+        } else {
+            session.sendMessage("未知命令: " + command + "，输入 /help 查看帮助");
+        }
+    }
+    
+    /**
+     * 发送在线用户列表
+     */
+    private void sendOnlineUsers(ChatSession session) {
+        if (cluster != null) {
+            cluster.query(ClusterNode.QUERY_USERS, users -> {
+                StringBuilder userList = new StringBuilder("当前在线用户 (");
+                userList.append(users.size()).append("人): ");
+                for (String user : users) {
+                    userList.append(user).append(" ");
+                }
+                session.sendMessage("系统消息: " + userList.toString());
+            });
+            return;
+        }
+        StringBuilder userList = new StringBuilder("当前在线用户 (");
+        userList.append(clients.size()).append("人): ");
+        
+        for (String user : clients.keySet()) {
+            userList.append(user).append(" ");
+        }
+        
+        session.sendMessage("系统消息: " + userList.toString());
+    }
+    
+    /**
+     * 发送帮助信息
+     */
+    private void sendHelpMessage(ChatSession session) {
+        session.sendMessage("=== 聊天室命令帮助 ===");
+        session.sendMessage("/users - 查看在线用户列表");
+        session.sendMessage("/rooms - 查看房间列表");
+        session.sendMessage("/join 房间名 - 进入房间，房间不存在时创建");
+        session.sendMessage("/leave - 离开当前房间，回到" + DEFAULT_ROOM);
+        session.sendMessage("/msg 用户名 消息 - 私聊，只有对方能收到");
+        session.sendMessage("/history [条数] - 查看当前房间最近的消息");
+        session.sendMessage("/search 关键词 - 检索所有房间的历史消息");
+        session.sendMessage("/stats 口令 - 查看服务器运行指标（管理员）");
+        if (cluster != null) {
+            session.sendMessage("/nodes - 查看集群节点");
+        }
+        session.sendMessage("/help - 显示此帮助信息");
+        session.sendMessage("/quit 或 /exit - 退出聊天室");
+        session.sendMessage("直接输入文字即可发送聊天消息，只有同一房间的用户能收到");
+    }
+    
+    /**
+     * 进入房间，通知原房间和新房间的成员
+     */
+    private void joinRoom(ChatSession session, String roomName) {
+        String name = RoomIndex.normalizeName(roomName);
+        if (name == null) {
+            session.sendMessage("房间名不能为空、不能包含空白，最长" + RoomIndex.MAX_NAME_LENGTH + "个字符");
+            return;
+        }
+        RoomIndex.Room<ChatSession> current = rooms.roomOf(session);
+        if (current != null && current.getName().equals(name)) {
+            session.sendMessage("您已经在房间 " + name + " 中");
+            return;
+        }
+        changeRoom(session, name);
+    }
+    
+    /**
+     * 离开当前房间，回到默认房间
+     */
+    private void leaveRoom(ChatSession session) {
+        RoomIndex.Room<ChatSession> current = rooms.roomOf(session);
+        if (current == null || current.getName().equals(DEFAULT_ROOM)) {
+            session.sendMessage("您已经在" + DEFAULT_ROOM + "中");
+            return;
+        }
+        changeRoom(session, DEFAULT_ROOM);
+    }
+    
+    private void changeRoom(ChatSession session, String name) {
+        RoomIndex.Room<ChatSession> previous = enterRoom(session, name);
+        if (previous != null) {
+            broadcastMessage(previous, "系统消息", session.getUsername() + " 离开了房间 " + previous.getName());
+        }
+        RoomIndex.Room<ChatSession> room = rooms.roomOf(session);
+        if (room != null) {
+            broadcastMessage(room, "系统消息", session.getUsername() + " 进入了房间 " + name);
+            sendHistory(session, historyReplay, false);
+        }
+    }
+    
+    /**
+     * 处理 /history 命令
+     */
+    private void handleHistory(ChatSession session, String args) {
+        int count = historyReplay > 0 ? historyReplay : 20;
+        String trimmed = args.trim();
+        if (!trimmed.isEmpty()) {
+            try {
+                count = Integer.parseInt(trimmed);
+            } catch (NumberFormatException e) {
+                count = -1;
+            }
+            if (count <= 0) {
+                session.sendMessage("用法: /history [条数]");
+                return;
+            }
+        }
+        sendHistory(session, count, true);
+    }
+    
+    /**
+     * 把当前房间最近的消息发给客户端
+     * 广播时先写入历史再发给成员，进入房间后再读取历史，所以一条消息不会在重放和实时消息中都缺失
+     * @param reportEmpty 没有历史消息时是否告知客户端
+     */
+    private void sendHistory(ChatSession session, int count, boolean reportEmpty) {
+        RoomIndex.Room<ChatSession> room = rooms.roomOf(session);
+        MessageRing history = room != null ? room.getHistory() : null;
+        if (history == null || count <= 0) {
+            if (reportEmpty) {
+                session.sendMessage("当前房间没有保留历史消息");
+            }
+            return;
+        }
+        List<MessageRing.Entry> entries = history.recent(count);
+        if (entries.isEmpty()) {
+            if (reportEmpty) {
+                session.sendMessage("房间 " + room.getName() + " 暂无历史消息");
+            }
+            return;
+        }
+        session.sendMessage("=== 房间 " + room.getName() + " 最近 " + entries.size() + " 条消息 ===");
+        for (MessageRing.Entry entry : entries) {
+            session.send(new EncodedMessage(entry.opcode, entry.senderId, entry.text));
+        }
+        session.sendMessage("=== 以上为历史消息 ===");
+    }
+    
+    /**
+     * 检索历史消息
+     * 查询在检索线程上执行，结果放入客户端的待发送队列，不占用读线程或事件循环
+     */
+    private void handleSearch(ChatSession session, String args) {
+        String query = args.trim();
+        if (searchIndex == null) {
+            session.sendMessage("服务器未开启检索");
+            return;
+        }
+        if (query.isEmpty()) {
+            session.sendMessage("用法: /search 关键词");
+            return;
+        }
+        boolean accepted = searchIndex.search(query, SEARCH_LIMIT, (hits, elapsedNanos) -> {
+            session.sendMessage(String.format("=== 检索 \"%s\"：找到 %d 条，耗时 %.2f 毫秒 ===",
+                    query, hits.size(), elapsedNanos / 1e6));
+            // 结果按从新到旧排列，按时间顺序显示
+            for (int i = hits.size() - 1; i >= 0; i--) {
+                SearchIndex.Hit hit = hits.get(i);
+                session.sendMessage("[" + hit.room + "] " + hit.text);
+            }
+        });
+        if (!accepted) {
+            session.sendMessage("检索繁忙，请稍后再试");
+        }
+    }
+    
+    /**
+     * 发送私聊消息
+     * 按用户名直接找到接收者的会话，只放入它的待发送队列，代价与在线人数无关
+     * @param args 命令参数，格式为 "用户名 消息"
+     */
+    private void sendDirectMessage(ChatSession sender, String args) {
+        String trimmed = args.trim();
+        int space = trimmed.indexOf(' ');
+        if (space < 0) {
+            sender.sendMessage("用法: /msg 用户名 消息");
+            return;
+        }
+        String target = trimmed.substring(0, space);
+        String text = trimmed.substring(space + 1).trim();
+        
+        ChatSession recipient = clients.get(target);
+        if (recipient == null && cluster != null) {
+            // 接收者可能在其他节点上，不在线时由对方节点通知发送者
+            String time = ChatClock.currentTime();
+            byte[] message = ("[" + time + "] " + sender.getUsername() + " 对你说: " + text)
+                    .getBytes(StandardCharsets.UTF_8);
+            if (cluster.sendDirect(sender.getUsername(), sender.getSessionId(), target, message)) {
+                sender.sendMessage("[" + time + "] 你对 " + target + " 说: " + text);
+                return;
+            }
+        }
+        if (recipient == null) {
+            sender.sendMessage("用户 " + target + " 不在线");
+            return;
+        }
+        if (recipient == sender) {
+            sender.sendMessage("不能给自己发送私聊消息");
+            return;
+        }
+        
+        String time = ChatClock.currentTime();
+        EncodedMessage message = EncodedMessage.of(ChatFrame.CHAT, sender.getSessionId(),
+                "[" + time + "] " + sender.getUsername() + " 对你说: " + text);
+        if (reactor != null && reactor.isSharded()) {
+            // 接收者在其他分片上时只转交一条路由消息，由它所在的分片写入队列
+            reactor.sendTo((NioClientSession) recipient, message);
+        } else if (!recipient.send(message)) {
+            recipient.close();
+            sender.sendMessage("用户 " + target + " 已断开连接，消息未送达");
+            return;
+        }
+        sender.sendMessage("[" + time + "] 你对 " + target + " 说: " + text);
+    }
+    
+    /**
+     * 把运行指标发给管理员
+     * @param args 命令参数，为启动时指定的 --admin-password
+     */
+    private void sendStats(ChatSession session, String args) {
+        byte[] password = args.trim().getBytes(StandardCharsets.UTF_8);
+        // 按固定时间比较口令，不因匹配的前缀长度泄露信息
+        if (adminPassword == null || !MessageDigest.isEqual(adminPassword, password)) {
+            session.sendMessage("只有管理员可以查看运行指标");
+            return;
+        }
+        for (String line : metrics.report()) {
+            session.sendMessage(line);
+        }
+    }
+    
+    /**
+     * 发送集群节点的连接状态
+     */
+    private void sendNodeList(ChatSession session) {
+        if (cluster == null) {
+            session.sendMessage("服务器未组成集群");
+            return;
+        }
+        for (String line : cluster.describeNodes()) {
+            session.sendMessage(line);
+        }
+    }
+    
+    /**
+     * 发送房间列表，集群模式下合并各节点上同名房间的人数
+     */
+    private void sendRoomList(ChatSession session) {
+        if (cluster == null) {
+            sendRoomList(session, answerQuery(ClusterNode.QUERY_ROOMS));
+        } else {
+            cluster.query(ClusterNode.QUERY_ROOMS, lines -> sendRoomList(session, lines));
+        }
+    }
+    
+    /**
+     * @param lines 每行为 "房间名 人数"
+     */
+    private void sendRoomList(ChatSession session, List<String> lines) {
+        Map<String, Integer> counts = new LinkedHashMap<>();
+        for (String line : lines) {
+            int space = line.lastIndexOf(' ');
+            if (space > 0) {
+                counts.merge(line.substring(0, space), Integer.parseInt(line.substring(space + 1)), Integer::sum);
+            }
+        }
+        StringBuilder roomList = new StringBuilder("当前房间 (");
+        roomList.append(counts.size()).append("个): ");
+        
+        for (Map.Entry<String, Integer> room : counts.entrySet()) {
+            roomList.append(room.getKey()).append('(').append(room.getValue()).append(") ");
+        }
+        
+        RoomIndex.Room<ChatSession> current = rooms.roomOf(session);
+        if (current != null) {
+            roomList.setLength(roomList.length() - 1);
+            roomList.append("，您在 ").append(current.getName());
+        }
+        session.sendMessage("系统消息: " + roomList.toString());
+    }
+    
     /**
      * 添加客户端到在线列表
+     * @return 用户名已被占用时返回false
+     */
+    public boolean addClient(String username, ChatSession session) {
+        if (clients.putIfAbsent(username, session) != null) {
+            return false;
+        }
+        joinChat(username, session);
+        return true;
+    }
+    
+    /**
+     * 已登记的客户端进入默认房间
      */
-    public synchronized void addClient(String username, ClientHandler handler) {
-        clients.put(username, handler);
+    private void joinChat(String username, ChatSession session) {
+        enterRoom(session, DEFAULT_ROOM);
         System.out.println("用户 " + username + " 加入聊天室，当前在线人数: " + clients.size());
         
-        // 通知所有客户端有新用户加入
-        broadcastMessage("系统消息", username + " 加入了聊天室");
+        // 通知默认房间的客户端有新用户加入
+        broadcastMessage(rooms.find(DEFAULT_ROOM), "系统消息", username + " 加入了聊天室");
     }
     
     /**
      * 从在线列表移除客户端
+     * 只有当该用户名仍对应此会话时才移除，避免重复通知
      */
-    public synchronized void removeClient(String username) {
-        clients.remove(username);
+    public void removeClient(String username, ChatSession session) {
+        if (!clients.remove(username, session)) {
+            return;
+        }
+        if (cluster != null) {
+            cluster.release(username);
+        }
+        RoomIndex.Room<ChatSession> room = exitRoom(session);
         System.out.println("用户 " + username + " 离开聊天室，当前在线人数: " + clients.size());
         
-        // 通知所有客户端有用户离开
-        broadcastMessage("系统消息", username + " 离开了聊天室");
+        // 通知同一房间的客户端有用户离开
+        if (room != null) {
+            broadcastMessage(room, "系统消息", username + " 离开了聊天室");
+        }
     }
     
     /**
-     * 广播消息给所有在线客户端
+     * 广播消息给房间中的所有客户端
+     * 只把消息放入各客户端的待发送队列，不在调用线程上做网络写，也不持有全局锁
      */
-    public synchronized void broadcastMessage(String sender, String message) {
-        String fullMessage = "[" + getCurrentTime() + "] " + sender + ": " + message;
-        
-        // 遍历所有客户端，发送消息
-        Iterator<Map.Entry<String, ClientHandler>> iterator = clients.entrySet().iterator();
-        while (iterator.hasNext()) {
-            Map.Entry<String, ClientHandler> entry = iterator.next();
-            ClientHandler handler = entry.getValue();
-            
-            if (!handler.sendMessage(fullMessage)) {
-                // 如果发送失败，移除该客户端
-                iterator.remove();
-                System.out.println("移除断开连接的客户端: " + entry.getKey());
+    public void broadcastMessage(RoomIndex.Room<ChatSession> room, String sender, String message) {
+        String fullMessage = "[" + ChatClock.currentTime() + "] " + sender + ": " + message;
+        EncodedMessage encoded = EncodedMessage.system(fullMessage);
+        byte[] text = messageLog != null || cluster != null ? fullMessage.getBytes(StandardCharsets.UTF_8) : null;
+        if (messageLog != null) {
+            messageLog.append(System.currentTimeMillis(), ChatFrame.SYSTEM, 0, room.getNameBytes(),
+                    text, 0, text.length);
+        }
+        broadcast(room, encoded);
+        if (cluster != null) {
+            cluster.forward(room.getNameBytes(), ChatFrame.SYSTEM, 0, text);
+        }
+    }
+    
+    /**
+     * 广播一条用户聊天消息给发送者所在房间的客户端
+     * @param message UTF-8编码的消息内容
+     */
+    public void broadcastChat(ChatSession sender, byte[] message) {
+        RoomIndex.Room<ChatSession> room = rooms.roomOf(sender);
+        if (room == null) {
+            return;
+        }
+        byte[] prefix = ("[" + ChatClock.currentTime() + "] " + sender.getUsername() + ": ")
+                .getBytes(StandardCharsets.UTF_8);
+        byte[] text = Arrays.copyOf(prefix, prefix.length + message.length);
+        System.arraycopy(message, 0, text, prefix.length, message.length);
+        MessageRing history = rooms.historyFor(room);
+        if (history != null) {
+            history.append(ChatFrame.CHAT, sender.getSessionId(), text, 0, text.length);
+        }
+        if (messageLog != null) {
+            // 只是复制到映射内存，由日志的刷盘线程统一写回磁盘
+            messageLog.append(System.currentTimeMillis(), ChatFrame.CHAT, sender.getSessionId(),
+                    room.getNameBytes(), text, 0, text.length);
+        }
+        if (searchIndex != null) {
+            // 只放入检索线程的队列，队列满时这条消息不被索引
+            searchIndex.add(room.getName(), text);
+        }
+        broadcast(room, new EncodedMessage(ChatFrame.CHAT, sender.getSessionId(), text));
+        if (cluster != null) {
+            // 每个其他节点只转发一次，由对方投递给它自己的成员
+            cluster.forward(room.getNameBytes(), ChatFrame.CHAT, sender.getSessionId(), text);
+        }
+    }
+    
+    /**
+     * 投递其他节点转发来的房间消息
+     * 本节点没有人在该房间时不创建房间，只写入消息日志和检索索引
+     * @param text 已加上时间和发送者的完整消息
+     */
+    void deliverRemote(String roomName, byte opcode, int senderId, byte[] text) {
+        RoomIndex.Room<ChatSession> room = rooms.find(roomName);
+        if (room != null) {
+            MessageRing history = opcode == ChatFrame.CHAT ? rooms.historyFor(room) : null;
+            if (history != null) {
+                history.append(opcode, senderId, text, 0, text.length);
+            }
+            broadcast(room, new EncodedMessage(opcode, senderId, text));
+        }
+        if (messageLog != null) {
+            messageLog.append(System.currentTimeMillis(), opcode, senderId,
+                    roomName.getBytes(StandardCharsets.UTF_8), text, 0, text.length);
+        }
+        if (opcode == ChatFrame.CHAT && searchIndex != null) {
+            searchIndex.add(roomName, text);
+        }
+    }
+    
+    /**
+     * 投递其他节点转发来的私聊消息
+     * @return 接收者不在本节点时返回false
+     */
+    boolean deliverDirect(String target, int senderId, byte[] text) {
+        ChatSession recipient = clients.get(target);
+        if (recipient == null) {
+            return false;
+        }
+        if (!recipient.send(new EncodedMessage(ChatFrame.CHAT, senderId, text))) {
+            recipient.close();
+        }
+        return true;
+    }
+    
+    /**
+     * 发往其他节点的私聊没有找到接收者，通知发送者
+     */
+    void onDirectFailed(int senderId, String sender, String target) {
+        ChatSession session = clients.get(sender);
+        // 发送者已下线、同名用户重新登录时不通知新会话
+        if (session != null && session.getSessionId() == senderId) {
+            session.sendMessage("用户 " + target + " 不在线，消息未送达");
+        }
+    }
+    
+    /**
+     * 重新连接后发现用户名已在其他节点登录，断开本节点的连接
+     */
+    void onClusterConflict(String username) {
+        ChatSession session = clients.get(username);
+        if (session != null) {
+            System.out.println("用户名 " + username + " 已在集群的其他节点登录，断开本节点的连接");
+            session.send(EncodedMessage.error("用户名 " + username + " 已在其他节点登录，连接断开"));
+            // 线程池模式下关闭连接会等待写线程，不占用集群连接的读线程
+            if (threadPool != null) {
+                threadPool.execute(session::close);
+            } else {
+                session.close();
+            }
+        }
+    }
+    
+    /**
+     * 本节点的在线用户名
+     */
+    List<String> localUsernames() {
+        return new ArrayList<>(clients.keySet());
+    }
+    
+    /**
+     * 回答其他节点的查询：在线用户为每行一个用户名，房间为每行 "房间名 人数"
+     */
+    List<String> answerQuery(byte kind) {
+        if (kind == ClusterNode.QUERY_USERS) {
+            return localUsernames();
+        }
+        List<String> lines = new ArrayList<>();
+        if (kind == ClusterNode.QUERY_ROOMS) {
+            for (RoomIndex.Room<ChatSession> room : rooms.rooms()) {
+                lines.add(room.getName() + " " + room.size());
             }
         }
+        return lines;
+    }
+    
+    /**
+     * 把编码好的消息发给房间中的所有客户端，代价只与房间人数有关
+     * 每种协议的编码只生成一次，所有客户端共享同一个只读缓冲区
+     */
+    private void broadcast(RoomIndex.Room<ChatSession> room, EncodedMessage encoded) {
+        long start = System.nanoTime();
+        if (reactor != null && reactor.isSharded()) {
+            // 不遍历共享的成员列表，各分片投递给自己名下的成员
+            reactor.publish(room.getName(), encoded);
+            metrics.onBroadcast(start, room.size());
+            return;
+        }
+        // 遍历成员快照，发送消息
+        List<ChatSession> members = room.members();
+        if (parallelFanout != null) {
+            // 人数超过阈值时分块并行入队，返回时所有成员都已处理，发送失败的在本线程上移除
+            List<ChatSession> failed = parallelFanout.deliver(members, session -> session.send(encoded));
+            for (int i = 0; i < failed.size(); i++) {
+                onSendFailed(failed.get(i));
+            }
+        } else {
+            for (int i = 0; i < members.size(); i++) {
+                ChatSession session = members.get(i);
+                
+                if (!session.send(encoded)) {
+                    onSendFailed(session);
+                }
+            }
+        }
+        metrics.onBroadcast(start, members.size());
+    }
+    
+    /**
+     * 广播时发送失败，关闭并移除该客户端
+     */
+    void onSendFailed(ChatSession session) {
+        System.out.println("移除断开连接的客户端: " + session.getUsername());
+        session.close();
+        // 关闭时已离开房间，这里再确认一次，避免断开过程中又加入了房间
+        exitRoom(session);
+    }
+    
+    /**
+     * 进入房间，分片模式下同时更新所属分片的本地成员表
+     * @return 原来所在的房间，没有时返回null
+     */
+    private RoomIndex.Room<ChatSession> enterRoom(ChatSession session, String name) {
+        RoomIndex.Room<ChatSession> previous = rooms.join(session, name);
+        if (reactor != null) {
+            reactor.onRoomChanged(session, previous != null ? previous.getName() : null, name);
+        }
+        return previous;
+    }
+    
+    /**
+     * 离开所在的房间
+     * @return 原来所在的房间，没有时返回null
+     */
+    private RoomIndex.Room<ChatSession> exitRoom(ChatSession session) {
+        RoomIndex.Room<ChatSession> previous = rooms.leave(session);
+        if (reactor != null && previous != null) {
+            reactor.onRoomChanged(session, previous.getName(), null);
+        }
+        return previous;
+    }
+    
+    /**
+     * 会话当前所在的房间，不在任何房间时返回null
+     */
+    RoomIndex.Room<ChatSession> roomOf(ChatSession session) {
+        return rooms.roomOf(session);
+    }
+
+    /**
+     * 运行指标，会话在读写时记录字节数和发送失败
+     */
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+    
+    /**
+     * 分配新的会话编号
+     */
+    public int nextSessionId() {
+        if (cluster != null) {
+            // 高7位为节点编号，各节点分配的编号不重复
+            return cluster.getNodeId() << 24 | sessionIdGenerator.getAndIncrement() & 0xFFFFFF;
+        }
+        return sessionIdGenerator.getAndIncrement();
     }
     
     /**
-     * 获取当前时间字符串
+     * 开始监视会话的空闲时间，超时后断开连接
+     * 会话每次收到数据时应调用返回的Entry的touch()，关闭时调用cancel()
      */
-    private String getCurrentTime() {
-        return new java.text.SimpleDateFormat("HH:mm:ss").format(new Date());
+    public IdleMonitor.Entry watchIdle(ChatSession session) {
+        if (idleMonitor == null) {
+            return IdleMonitor.unwatched();
+        }
+        return idleMonitor.register(() -> {
+            System.out.println("客户端 " + session.getUsername() + " 长时间无活动，断开连接");
+            // 线程池模式下关闭连接会等待写线程，不占用监视线程
+            if (threadPool != null) {
+                threadPool.execute(session::close);
+            } else {
+                session.close();
+            }
+        });
+    }
+    
+    /**
+     * 为客户端创建待发送队列
+     */
+    public <T> OutboundQueue<T> newOutboundQueue() {
+        return new OutboundQueue<>(queueCapacity, overflowPolicy, metrics);
+    }
+    
+    /**
+     * 新连接是否关闭Nagle算法
+     */
+    public boolean isTcpNoDelay() {
+        return tcpNoDelay;
+    }
+    
+    /**
+     * 合并写出的时间窗口，0表示有消息就立即写出
+     */
+    public long getFlushWindowNanos() {
+        return flushWindowNanos;
+    }
+    
+    /**
+     * 启动客户端的写线程，与读线程使用同一个线程池
+     */
+    public void executeWriter(Runnable writer) {
+        threadPool.execute(writer);
     }
     
     /**
@@ -115,17 +1004,75 @@ public class TCPChatServer {
             if (serverSocket != null && !serverSocket.isClosed()) {
                 serverSocket.close();
             }
-            threadPool.shutdown();
+            if (reactor != null) {
+                reactor.stop();
+            }
+            if (cluster != null) {
+                cluster.stop();
+            }
+            if (parallelFanout != null) {
+                parallelFanout.shutdown();
+            }
+            if (threadPool != null) {
+                threadPool.shutdown();
+            }
+            if (idleMonitor != null) {
+                idleMonitor.stop();
+            }
+            if (messageLog != null) {
+                messageLog.close();
+            }
+            if (searchIndex != null) {
+                searchIndex.stop();
+            }
+            metrics.stop();
         } catch (IOException e) {
             System.err.println("关闭服务器时出错: " + e.getMessage());
         }
     }
     
+    /**
+     * 显示使用帮助
+     */
+    private static void showUsage() {
+        System.out.println("TCP聊天服务器使用说明:");
+        System.out.println("java TCPChatServer [--port=端口号] [--mode=pool|virtual|nio|sharded] [--workers=线程数]");
+        System.out.println("                   [--shard-mailbox-capacity=条数] [--parallel-fanout-threshold=人数]");
+        System.out.println("                   [--fanout-chunk=人数] [--fanout-threads=线程数]");
+        System.out.println("                   [--queue-capacity=条数] [--overflow=drop-oldest|drop-newest|disconnect]");
+        System.out.println("                   [--send-mode=latency|throughput] [--flush-window-ms=毫秒]");
+        System.out.println("                   [--idle-timeout-seconds=秒] [--history=条数] [--history-replay=条数]");
+        System.out.println("                   [--history-slot-bytes=字节数] [--history-off-heap=true|false]");
+        System.out.println("                   [--history-max-rooms=房间数]");
+        System.out.println("                   [--log-dir=目录] [--log-segment-mb=MB] [--log-flush-ms=毫秒]");
+        System.out.println("                   [--log-retention-mb=MB] [--log-retention-hours=小时]");
+        System.out.println("                   [--log-load-hours=小时] [--log-load-max=条数]");
+        System.out.println("                   [--search=true|false] [--search-max-docs=条数] [--search-queue=条数]");
+        System.out.println("                   [--stats-interval-seconds=秒] [--admin-password=口令]");
+        System.out.println("                   [--cluster=地址:端口,地址:端口,...] [--node-id=编号]");
+        System.out.println("                   [--cluster-secret=口令] [--cluster-queue-capacity=条数]");
+        System.out.println("例如:");
+        System.out.println("  java TCPChatServer                        # 线程池模式，监听8888端口");
+        System.out.println("  java TCPChatServer --mode=virtual         # 虚拟线程模式，需要JDK 21或更高版本");
+        System.out.println("  java TCPChatServer --mode=nio             # NIO Reactor模式");
+        System.out.println("  java TCPChatServer --mode=nio --workers=4 # NIO模式，4个事件循环线程");
+        System.out.println("  java TCPChatServer --mode=sharded         # 每个CPU核心一个分片");
+        System.out.println("  java TCPChatServer --port=8881 --cluster=127.0.0.1:9881,127.0.0.1:9882 --node-id=0 --cluster-secret=口令");
+        System.out.println("                                            # 两个节点的集群中的节点0");
+    }
+    
     /**
      * 主方法
      */
     public static void main(String[] args) {
-        TCPChatServer server = new TCPChatServer();
+        TCPChatServer server;
+        try {
+            server = new TCPChatServer(ServerOptions.parse(args));
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            showUsage();
+            return;
+        }
         
         // 添加关闭钩子，确保服务器正常关闭
         Runtime.getRuntime().addShutdownHook(new Thread(server::stop));
@@ -1,6 +1,10 @@
 import java.io.*;
 import java.net.*;
-import java.util.Scanner;
+import java.nio.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
 /**
  * UDP聊天客户端
@@ -9,22 +13,72 @@ import java.util.Scanner;
  * 2. 发送和接收UDP数据报
  * 3. 支持聊天室命令
  * 4. 多线程处理消息接收和发送
+ * 5. 可选使用可靠传输（--reliable），消息丢失时自动重传
+ * 6. 超过MTU的消息拆成分片发送，收到的分片重组后再显示
+ * 7. 服务器打包发送的多条消息拆开后逐条显示
+ * 8. 定期发送心跳，避免空闲时被服务器当作已离线的客户端移除
+ * 9. 可选通过组播接收房间消息（--multicast），服务器确认能收到组播后不再单播房间消息，
+ *    收不到组播时继续使用单播
  */
 public class UDPChatClient {
     private static final String DEFAULT_HOST = "localhost";
     private static final int DEFAULT_PORT = 8889;
     
+    // 使用可靠传输时接收线程检查重传的间隔
+    private static final int RETRANSMIT_TICK_MILLIS = 10;
+    
+    // 心跳间隔，需要明显小于服务器的空闲超时时间
+    private static final long HEARTBEAT_INTERVAL_SECONDS = 30;
+    
+    // 接收缓冲区足够容纳任意UDP数据报，不会截断
+    private static final int RECEIVE_BUFFER_SIZE = 65536;
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+    
     private DatagramSocket socket;
     private InetAddress serverAddress;
     private int serverPort;
     private Scanner scanner;
-    private boolean isConnected = false;
+    private volatile boolean isConnected = false;
     private String username;
     
+    // 可靠传输链路，未启用时为null
+    private final boolean reliable;
+    private ReliableLink link;
+    
+    // 分片的发送和重组
+    private final AtomicInteger nextFragmentId = new AtomicInteger();
+    private final FragmentAssembler assembler = new FragmentAssembler(16, 1024 * 1024, 5, TimeUnit.SECONDS);
+    
+    // 组播接收，协议见UdpMulticast
+    // 是否请求使用组播、加入组播组的网卡（为null时由系统选择）和组播套接字
+    private final boolean multicast;
+    private final String multicastInterface;
+    private volatile MulticastSocket multicastSocket;
+    private final FragmentAssembler multicastAssembler = new FragmentAssembler(16, 1024 * 1024, 5, TimeUnit.SECONDS);
+    // 服务器在组播中告知的当前房间，只显示这个房间的组播消息；收到之前为null
+    private volatile String multicastRoom;
+    private final CountDownLatch multicastConfirmed = new CountDownLatch(1);
+    private static final int MULTICAST_ATTEMPTS = 3;
+    
     // 消息接收线程
     private Thread messageReceiver;
     
     public UDPChatClient() {
+        this(false);
+    }
+    
+    public UDPChatClient(boolean reliable) {
+        this(reliable, false, null);
+    }
+    
+    /**
+     * @param multicast 是否请求通过组播接收房间消息
+     * @param multicastInterface 加入组播组的网卡名，为null时由系统选择
+     */
+    public UDPChatClient(boolean reliable, boolean multicast, String multicastInterface) {
+        this.reliable = reliable;
+        this.multicast = multicast;
+        this.multicastInterface = multicastInterface;
         scanner = new Scanner(System.in);
     }
     
@@ -39,6 +93,10 @@ public class UDPChatClient {
             socket = new DatagramSocket();
             serverAddress = InetAddress.getByName(host);
             serverPort = port;
+            if (reliable) {
+                link = new ReliableLink(new InetSocketAddress(serverAddress, serverPort), this::transmit);
+                socket.setSoTimeout(RETRANSMIT_TICK_MILLIS);
+            }
             
             isConnected = true;
             System.out.println("UDP Socket创建成功！");
@@ -63,8 +121,12 @@ public class UDPChatClient {
             // 发送注册请求到服务器
             sendToServer("REGISTER:" + username);
             
-            // 启动消息接收线程
+            // 启动消息接收线程和心跳线程
             startMessageReceiver();
+            startHeartbeat();
+            if (multicast) {
+                sendToServer(UdpMulticast.PREFIX + "JOIN");
+            }
             
             // 等待服务器响应
             Thread.sleep(1000);
@@ -102,20 +164,32 @@ public class UDPChatClient {
     private void startMessageReceiver() {
         messageReceiver = new Thread(() -> {
             try {
-                byte[] buffer = new byte[1024];
+                byte[] buffer = new byte[RECEIVE_BUFFER_SIZE];
                 
                 while (isConnected) {
                     DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-                    socket.receive(packet);
-                    
-                    String message = new String(packet.getData(), 0, packet.getLength(), "UTF-8");
+                    try {
+                        socket.receive(packet);
+                    } catch (SocketTimeoutException e) {
+                        // 可靠传输模式下定时醒来检查重传
+                        checkRetransmits();
+                        continue;
+                    }
                     
-                    // 处理服务器响应
-                    if (message.startsWith("SUCCESS:") || message.startsWith("ERROR:")) {
-                        System.out.println(message);
+                    ByteBuffer data = ByteBuffer.wrap(packet.getData(), 0, packet.getLength());
+                    if (UdpFragments.isFragment(data)) {
+                        // 分片收齐之后再处理
+                        data = assembler.add(packet.getSocketAddress(), data, System.nanoTime());
+                        if (data == null) {
+                            continue;
+                        }
+                    }
+                    if (link != null && ReliableLink.isReliable(data)) {
+                        // 去重和排序后按顺序显示
+                        link.receive(data, (l, payload) -> deliver(payload));
+                        checkRetransmits();
                     } else {
-                        // 显示聊天消息
-                        System.out.println(message);
+                        deliver(data);
                     }
                 }
             } catch (Exception e) {
@@ -129,6 +203,190 @@ public class UDPChatClient {
         messageReceiver.start();
     }
     
+    /**
+     * 启动心跳线程
+     */
+    private void startHeartbeat() {
+        Thread heartbeat = new Thread(() -> {
+            try {
+                while (isConnected) {
+                    TimeUnit.SECONDS.sleep(HEARTBEAT_INTERVAL_SECONDS);
+                    if (isConnected) {
+                        sendToServer("HEARTBEAT:");
+                    }
+                }
+            } catch (InterruptedException e) {
+                // 客户端退出
+            }
+        });
+        heartbeat.setDaemon(true);
+        heartbeat.start();
+    }
+    
+    /**
+     * 处理服务器发来的一个完整数据报，打包的数据报拆开后逐条显示
+     */
+    private void deliver(ByteBuffer data) {
+        if (UdpBatch.isBatch(data)) {
+            UdpBatch.unpack(data, this::showMessage);
+        } else {
+            showMessage(data);
+        }
+    }
+    
+    /**
+     * 显示服务器发来的消息
+     */
+    private void showMessage(ByteBuffer data) {
+        String message = StandardCharsets.UTF_8.decode(data).toString();
+        
+        if (message.startsWith(UdpMulticast.PREFIX)) {
+            handleMulticastReply(message.substring(UdpMulticast.PREFIX.length()));
+            return;
+        }
+        
+        // 处理服务器响应
+        if (message.startsWith("SUCCESS:") || message.startsWith("ERROR:")) {
+            System.out.println(message);
+        } else {
+            // 显示聊天消息
+            System.out.println(message);
+        }
+    }
+    
+    /**
+     * 处理服务器单播的组播协商回复
+     */
+    private void handleMulticastReply(String reply) {
+        if (reply.startsWith("GROUP ")) {
+            String[] parts = reply.split(" ");
+            if (parts.length == 3 && multicastSocket == null) {
+                // 加入组播组后要等待服务器的探测，不阻塞接收线程
+                Thread joiner = new Thread(() -> joinMulticast(parts[1], Integer.parseInt(parts[2])));
+                joiner.setDaemon(true);
+                joiner.start();
+            }
+        } else if (reply.startsWith("ACTIVE ")) {
+            System.out.println("系统消息: 已改为通过组播接收房间消息，当前房间 " + reply.substring("ACTIVE ".length()));
+        } else if (reply.startsWith("UNAVAILABLE ")) {
+            System.out.println("系统消息: 无法使用组播（" + reply.substring("UNAVAILABLE ".length()) + "），继续使用单播接收");
+        }
+    }
+    
+    /**
+     * 加入组播组并通知服务器，直到服务器确认收到探测的回复
+     * 多次尝试都没有确认时退出组播组，继续使用单播
+     */
+    private void joinMulticast(String groupAddress, int groupPort) {
+        try {
+            MulticastSocket socket = new MulticastSocket(groupPort);
+            NetworkInterface networkInterface = null;
+            if (multicastInterface != null) {
+                networkInterface = NetworkInterface.getByName(multicastInterface);
+                if (networkInterface == null) {
+                    socket.close();
+                    throw new IOException("找不到网卡 " + multicastInterface);
+                }
+            }
+            socket.joinGroup(new InetSocketAddress(InetAddress.getByName(groupAddress), 0), networkInterface);
+            multicastSocket = socket;
+            startMulticastReceiver(socket);
+            
+            for (int attempt = 0; attempt < MULTICAST_ATTEMPTS && isConnected; attempt++) {
+                sendToServer(UdpMulticast.PREFIX + "READY");
+                if (multicastConfirmed.await(1, TimeUnit.SECONDS)) {
+                    return;
+                }
+            }
+            System.out.println("系统消息: 收不到服务器的组播消息，继续使用单播接收");
+            sendToServer(UdpMulticast.PREFIX + "LEAVE");
+            multicastSocket = null;
+            socket.close();
+        } catch (IOException e) {
+            System.err.println("加入组播组失败: " + e.getMessage() + "，继续使用单播接收");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    /**
+     * 启动组播接收线程
+     * 只接受服务器地址发出的组播数据报，房间消息只显示当前房间的
+     */
+    private void startMulticastReceiver(MulticastSocket socket) {
+        Thread receiver = new Thread(() -> {
+            byte[] buffer = new byte[RECEIVE_BUFFER_SIZE];
+            try {
+                while (isConnected) {
+                    DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                    socket.receive(packet);
+                    if (!packet.getAddress().equals(serverAddress) || packet.getPort() != serverPort) {
+                        continue;
+                    }
+                    ByteBuffer data = ByteBuffer.wrap(packet.getData(), 0, packet.getLength());
+                    if (UdpFragments.isFragment(data)) {
+                        data = multicastAssembler.add(packet.getSocketAddress(), data, System.nanoTime());
+                        if (data == null) {
+                            continue;
+                        }
+                    }
+                    if (!UdpMulticast.isMulticast(data)) {
+                        continue;
+                    }
+                    String room = UdpMulticast.readRoom(data);
+                    if (room == null) {
+                        continue;
+                    }
+                    if (room.isEmpty()) {
+                        handleMulticastControl(StandardCharsets.UTF_8.decode(data).toString());
+                    } else if (room.equals(multicastRoom)) {
+                        deliver(data);
+                    }
+                }
+            } catch (IOException e) {
+                if (isConnected && !socket.isClosed()) {
+                    System.err.println("接收组播消息时出错: " + e.getMessage());
+                }
+            }
+        });
+        receiver.setDaemon(true);
+        receiver.start();
+    }
+    
+    /**
+     * 处理组播中的控制消息，只处理发给自己的
+     * 格式为 "MULTICAST:类型 用户名 参数"，用户名可能包含空格，参数不包含
+     */
+    private void handleMulticastControl(String message) {
+        if (!message.startsWith(UdpMulticast.PREFIX)) {
+            return;
+        }
+        String control = message.substring(UdpMulticast.PREFIX.length());
+        int first = control.indexOf(' ');
+        int last = control.lastIndexOf(' ');
+        if (first < 0 || last <= first || !control.substring(first + 1, last).equals(username)) {
+            return;
+        }
+        String type = control.substring(0, first);
+        String argument = control.substring(last + 1);
+        if (type.equals("PROBE")) {
+            sendToServer(UdpMulticast.PREFIX + "ACK " + argument);
+        } else if (type.equals("ROOM")) {
+            multicastRoom = argument;
+            multicastConfirmed.countDown();
+        }
+    }
+    
+    /**
+     * 重传超时未确认的消息
+     */
+    private void checkRetransmits() {
+        if (link != null && !link.onTimer(System.nanoTime())) {
+            System.err.println("服务器长时间未确认消息，连接已中断");
+            isConnected = false;
+        }
+    }
+    
     /**
      * 处理用户输入
      */
@@ -163,14 +421,47 @@ public class UDPChatClient {
     private void sendToServer(String message) {
         try {
             byte[] data = message.getBytes("UTF-8");
-            DatagramPacket packet = new DatagramPacket(
-                data, data.length, serverAddress, serverPort);
-            socket.send(packet);
+            if (data.length + ReliableLink.DATA_HEADER_LENGTH > UdpFragments.MAX_MESSAGE_SIZE) {
+                System.err.println("消息过长，最多 " + (UdpFragments.MAX_MESSAGE_SIZE - ReliableLink.DATA_HEADER_LENGTH)
+                    + " 字节");
+                return;
+            }
+            if (link != null) {
+                // 由可靠链路分配序号并负责重传
+                if (!link.send(ByteBuffer.wrap(data))) {
+                    System.err.println("发送消息失败: 待确认的消息过多或连接已中断");
+                }
+                return;
+            }
+            sendDatagram(EMPTY, ByteBuffer.wrap(data));
         } catch (IOException e) {
             System.err.println("发送消息失败: " + e.getMessage());
         }
     }
     
+    /**
+     * 发送可靠链路组装的数据报
+     */
+    private void transmit(ReliableLink link, ByteBuffer header, ByteBuffer payload) throws IOException {
+        sendDatagram(header, payload);
+    }
+    
+    /**
+     * 把head和body组成一个数据报发给服务器，超过MTU时拆成分片发送
+     */
+    private void sendDatagram(ByteBuffer head, ByteBuffer body) throws IOException {
+        int length = head.remaining() + body.remaining();
+        if (length > UdpFragments.DEFAULT_MTU) {
+            ByteBuffer scratch = ByteBuffer.allocate(UdpFragments.DEFAULT_MTU);
+            UdpFragments.split(head, body, nextFragmentId.getAndIncrement(), UdpFragments.DEFAULT_MTU, scratch,
+                fragment -> socket.send(new DatagramPacket(fragment.array(), fragment.limit(), serverAddress, serverPort)));
+            return;
+        }
+        byte[] data = new byte[length];
+        ByteBuffer.wrap(data).put(head).put(body);
+        socket.send(new DatagramPacket(data, data.length, serverAddress, serverPort));
+    }
+    
     /**
      * 断开连接
      */
@@ -181,9 +472,21 @@ public class UDPChatClient {
             // 发送注销消息
             if (socket != null && !socket.isClosed()) {
                 sendToServer("UNREGISTER:" + username);
-                Thread.sleep(100); // 等待消息发送
+                if (link != null) {
+                    // 接收线程已停止，在这里等待注销消息被确认，最多1秒
+                    long deadline = System.currentTimeMillis() + 1000;
+                    while (link.hasUnacked() && System.currentTimeMillis() < deadline) {
+                        awaitAck();
+                    }
+                } else {
+                    Thread.sleep(100); // 等待消息发送
+                }
                 socket.close();
             }
+            MulticastSocket group = multicastSocket;
+            if (group != null) {
+                group.close();
+            }
             
             System.out.println("已断开连接，再见！");
             
@@ -192,16 +495,36 @@ public class UDPChatClient {
         }
     }
     
+    /**
+     * 等待一个确认数据报，超时则检查重传
+     */
+    private void awaitAck() throws IOException {
+        byte[] buffer = new byte[ReliableLink.ACK_LENGTH];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        try {
+            socket.receive(packet);
+            ByteBuffer data = ByteBuffer.wrap(packet.getData(), 0, packet.getLength());
+            if (ReliableLink.isReliable(data)) {
+                link.receive(data, (l, payload) -> { });
+            }
+        } catch (SocketTimeoutException e) {
+            // 没有收到确认
+        }
+        link.onTimer(System.nanoTime());
+    }
+    
     /**
      * 显示使用帮助
      */
     private static void showUsage() {
         System.out.println("UDP聊天客户端使用说明:");
-        System.out.println("java UDPChatClient [服务器地址] [端口号]");
+        System.out.println("java UDPChatClient [服务器地址] [端口号] [--reliable] [--multicast[=网卡名]]");
         System.out.println("例如:");
         System.out.println("  java UDPChatClient                    # 连接到 localhost:8889");
         System.out.println("  java UDPChatClient 192.168.1.100      # 连接到 192.168.1.100:8889");
         System.out.println("  java UDPChatClient 192.168.1.100 9999 # 连接到 192.168.1.100:9999");
+        System.out.println("  java UDPChatClient --reliable         # 使用可靠传输连接到 localhost:8889");
+        System.out.println("  java UDPChatClient --multicast=lo     # 在本机回环网卡上通过组播接收房间消息");
     }
     
     /**
@@ -211,6 +534,23 @@ public class UDPChatClient {
         String host = DEFAULT_HOST;
         int port = DEFAULT_PORT;
         
+        // 取出传输选项，其余为位置参数
+        List<String> argList = new ArrayList<>(Arrays.asList(args));
+        boolean reliable = argList.remove("--reliable");
+        boolean multicast = false;
+        String multicastInterface = null;
+        for (Iterator<String> it = argList.iterator(); it.hasNext(); ) {
+            String arg = it.next();
+            if (arg.equals("--multicast") || arg.startsWith("--multicast=")) {
+                multicast = true;
+                if (arg.startsWith("--multicast=")) {
+                    multicastInterface = arg.substring("--multicast=".length());
+                }
+                it.remove();
+            }
+        }
+        args = argList.toArray(new String[0]);
+        
         // 解析命令行参数
         if (args.length >= 1) {
             host = args[0];
@@ -231,7 +571,7 @@ public class UDPChatClient {
         }
         
         // 创建并启动客户端
-        UDPChatClient client = new UDPChatClient();
+        UDPChatClient client = new UDPChatClient(reliable, multicast, multicastInterface);
         
         // 添加关闭钩子
         Runtime.getRuntime().addShutdownHook(new Thread(client::disconnect));
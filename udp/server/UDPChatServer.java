@@ -1,5 +1,10 @@
 import java.io.*;
 import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.*;
 import java.util.*;
 import java.util.concurrent.*;
 
@@ -8,183 +13,785 @@ import java.util.concurrent.*;
  * 功能：
  * 1. 接收客户端UDP数据报
  * 2. 管理客户端地址列表
- * 3. 转发消息给所有注册客户端
+ * 3. 转发消息给同一房间的注册客户端
  * 4. 处理客户端注册和注销
+ *
+ * 接收循环基于DatagramChannel和复用的直接缓冲区，聊天消息的转发全程在字节层面完成，
+ * 稳定状态下每个数据报几乎不产生新对象。
+ * 可以用 --shards=N 在同一端口上打开N个SO_REUSEPORT套接字，每个套接字一个接收线程。
+ * 客户端可以选择使用可靠传输（见ReliableLink），服务器对这类客户端的收发都经过序号、确认和重传。
+ * 超过 --idle-timeout-seconds 没有发来任何数据（包括心跳）的客户端会被移除。
+ * 指定 --log-dir 时所有广播的消息都写入磁盘上的消息日志（见MessageLog），重启后从中恢复各房间的历史。
+ * 运行指标（见ServerMetrics）定期输出，也可以通过JMX或管理员的 /stats 命令查看。
+ * 指定 --multicast 时房间消息只向组播组发送一次（见UdpMulticast），由确认能收到组播的客户端
+ * 自己按房间过滤；其余客户端和所有控制消息、命令回复仍然单播。
  */
 public class UDPChatServer {
-    private static final int PORT = 8889;  // UDP服务器端口
-    private DatagramSocket socket;
-    private boolean isRunning = false;
+    private static final int DEFAULT_PORT = 8889;  // UDP服务器端口
+    private static final String DEFAULT_ROOM = "大厅";  // 注册后进入的房间
     
-    // 存储所有注册的客户端地址和用户名
-    private Map<String, InetSocketAddress> clients = new ConcurrentHashMap<>();
-    private Map<InetSocketAddress, String> addressToUsername = new ConcurrentHashMap<>();
+    // 协议前缀
+    private static final byte[] REGISTER = ascii("REGISTER:");
+    private static final byte[] UNREGISTER = ascii("UNREGISTER:");
+    private static final byte[] MESSAGE = ascii("MESSAGE:");
+    private static final byte[] COMMAND = ascii("COMMAND:");
+    private static final byte[] HEARTBEAT = ascii("HEARTBEAT:");
+    private static final byte[] MULTICAST = ascii(UdpMulticast.PREFIX);
+    
+    // 组播控制消息的房间名为空
+    private static final byte[] NO_ROOM = new byte[0];
+    
+    private final int port;
+    
+    // 打包发送：是否把发给同一客户端的多条消息打包成一个数据报，以及等待更多消息的时间窗口
+    private final boolean packing;
+    private final long flushWindowNanos;
+    
+    // 空闲客户端检测，超时为0时不检测
+    private final IdleMonitor idleMonitor;
+    private UdpShard[] shards = new UdpShard[0];
+    private volatile boolean isRunning = false;
+    
+    // 存储所有注册的客户端，按用户名和按地址各索引一份，所有分片共享
+    private Map<String, UdpPeer> clients = new ConcurrentHashMap<>();
+    private Map<InetSocketAddress, UdpPeer> addressToPeer = new ConcurrentHashMap<>();
+    
+    // 聊天房间及其成员，广播只发给发送者所在房间的成员
+    private final RoomIndex<UdpPeer> rooms;
+    
+    // 进入房间时重放的最近消息条数
+    private final int historyReplay;
+    
+    // 持久化的消息日志，未指定 --log-dir 时为null
+    private MessageLog messageLog;
+    
+    // 全文检索，--search=false 时为null
+    private final SearchIndex searchIndex;
+    private static final int SEARCH_LIMIT = 20;
+    
+    // 运行指标，以及 /stats 命令需要的管理员口令，未指定 --admin-password 时不能使用 /stats
+    private final ServerMetrics metrics;
+    private final byte[] adminPassword;
+    
+    // 组播组及发送组播使用的网卡和TTL，未指定 --multicast 时组为null
+    private final InetSocketAddress multicastGroup;
+    private final NetworkInterface multicastInterface;
+    private final int multicastTtl;
     
     public UDPChatServer() {
+        this(ServerOptions.parse(new String[0]));
+    }
+    
+    public UDPChatServer(ServerOptions options) {
+        this.port = options.getInt("port", DEFAULT_PORT);
+        long allocStatsIntervalMillis = options.getLong("alloc-stats-seconds", 0) * 1000;
+        int shardCount = Math.max(1, options.getInt("shards", 1));
+        this.packing = options.getBoolean("pack", true);
+        this.flushWindowNanos = TimeUnit.MILLISECONDS.toNanos(options.getInt("flush-window-ms", 0));
+        long idleTimeoutSeconds = options.getLong("idle-timeout-seconds", 120);
+        this.idleMonitor = idleTimeoutSeconds > 0
+            ? new IdleMonitor("udp-idle-monitor", idleTimeoutSeconds, TimeUnit.SECONDS)
+            : null;
+        int historySize = options.getInt("history", 100);
+        int historySlotBytes = options.getInt("history-slot-bytes", 1024);
+        boolean historyOffHeap = options.getBoolean("history-off-heap", false);
+        this.historyReplay = Math.min(options.getInt("history-replay", 20), historySize);
+        this.rooms = new RoomIndex<>(DEFAULT_ROOM, historySize > 0
+            ? () -> new MessageRing(historySize, historySlotBytes, historyOffHeap)
+            : null, options.getInt("history-max-rooms", 256));
+        this.searchIndex = SearchIndex.open(options);
+        this.metrics = new ServerMetrics("udp", port, options.getLong("stats-interval-seconds", 60), clients::size);
+        String password = options.get("admin-password", null);
+        this.adminPassword = password != null ? password.getBytes(StandardCharsets.UTF_8) : null;
+        int mtu = options.getInt("mtu", UdpFragments.DEFAULT_MTU);
+        if (mtu < UdpFragments.MIN_MTU || mtu > UdpShard.MAX_DATAGRAM_SIZE) {
+            throw new IllegalArgumentException("参数 --mtu 需要在 " + UdpFragments.MIN_MTU
+                + " 到 " + UdpShard.MAX_DATAGRAM_SIZE + " 之间: " + mtu);
+        }
+        this.multicastGroup = parseMulticastGroup(options.get("multicast", null));
+        this.multicastInterface = findInterface(options.get("multicast-interface", null));
+        this.multicastTtl = options.getInt("multicast-ttl", 1);
+        if (multicastTtl < 0 || multicastTtl > 255) {
+            throw new IllegalArgumentException("参数 --multicast-ttl 需要在 0 到 255 之间: " + multicastTtl);
+        }
         try {
-            socket = new DatagramSocket(PORT);
+            String logDir = options.get("log-dir", null);
+            if (logDir != null) {
+                messageLog = MessageLog.open(Paths.get(logDir), options);
+                if (historySize > 0 || searchIndex != null) {
+                    int restored = messageLog.restoreRecent(options, historySize > 0 ? rooms : null, searchIndex);
+                    System.out.println("从消息日志恢复了 " + restored + " 条历史消息");
+                }
+            }
+            if (shardCount > 1 && !supportsReusePort()) {
+                System.err.println("当前系统不支持SO_REUSEPORT，只使用一个接收线程");
+                shardCount = 1;
+            }
+            UdpShard[] opened = new UdpShard[shardCount];
+            for (int i = 0; i < shardCount; i++) {
+                opened[i] = new UdpShard(this, i, port, shardCount > 1, mtu, allocStatsIntervalMillis);
+            }
+            shards = opened;
             System.out.println("UDP聊天服务器启动成功！");
             System.out.println("服务器地址: " + InetAddress.getLocalHost().getHostAddress());
-            System.out.println("监听端口: " + PORT);
+            System.out.println("监听端口: " + port);
+            System.out.println("接收线程数: " + shardCount);
+            if (multicastGroup != null) {
+                System.out.println("组播组: " + multicastGroup.getAddress().getHostAddress() + ":" + multicastGroup.getPort()
+                    + (multicastInterface != null ? "，网卡 " + multicastInterface.getName() : ""));
+            }
             System.out.println("等待客户端连接...");
         } catch (Exception e) {
             System.err.println("服务器启动失败: " + e.getMessage());
         }
     }
     
+    /**
+     * 解析 --multicast=地址:端口，只支持IPv4组播地址
+     */
+    private static InetSocketAddress parseMulticastGroup(String value) {
+        if (value == null) {
+            return null;
+        }
+        int colon = value.lastIndexOf(':');
+        try {
+            if (colon < 0) {
+                throw new IllegalArgumentException();
+            }
+            InetAddress address = InetAddress.getByName(value.substring(0, colon));
+            int groupPort = Integer.parseInt(value.substring(colon + 1));
+            if (!(address instanceof Inet4Address) || !address.isMulticastAddress()
+                    || groupPort <= 0 || groupPort > 65535) {
+                throw new IllegalArgumentException();
+            }
+            return new InetSocketAddress(address, groupPort);
+        } catch (IOException | IllegalArgumentException e) {
+            throw new IllegalArgumentException("参数 --multicast 需要是IPv4组播地址和端口，例如 239.255.0.1:8890: " + value);
+        }
+    }
+    
+    /**
+     * 按名称查找网卡，未指定时返回null，由系统选择
+     */
+    private static NetworkInterface findInterface(String name) {
+        if (name == null) {
+            return null;
+        }
+        try {
+            NetworkInterface networkInterface = NetworkInterface.getByName(name);
+            if (networkInterface != null) {
+                return networkInterface;
+            }
+        } catch (SocketException e) {
+            // 按找不到处理
+        }
+        throw new IllegalArgumentException("找不到网卡: " + name);
+    }
+    
+    private static boolean supportsReusePort() {
+        try (DatagramChannel probe = DatagramChannel.open()) {
+            return probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+    
     /**
      * 启动服务器，开始监听UDP数据报
      */
     public void start() {
         isRunning = true;
+        if (idleMonitor != null) {
+            idleMonitor.start();
+        }
+        metrics.start();
         
-        while (isRunning) {
-            try {
-                // 接收数据报
-                byte[] buffer = new byte[1024];
-                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-                socket.receive(packet);
-                
-                // 处理接收到的消息
-                String message = new String(packet.getData(), 0, packet.getLength(), "UTF-8");
-                InetSocketAddress clientAddress = new InetSocketAddress(
-                    packet.getAddress(), packet.getPort());
-                
-                handleMessage(message, clientAddress);
-                
-            } catch (IOException e) {
-                if (isRunning) {
-                    System.err.println("接收数据报时出错: " + e.getMessage());
-                }
+        for (UdpShard shard : shards) {
+            shard.start();
+        }
+        try {
+            for (UdpShard shard : shards) {
+                shard.join();
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
     
     /**
-     * 处理客户端消息
+     * 处理客户端消息，在收到该数据报的分片线程上执行
      */
-    private void handleMessage(String message, InetSocketAddress clientAddress) {
+    void handleMessage(UdpShard shard, ByteBuffer data, InetSocketAddress clientAddress) {
+        long start = System.nanoTime();
+        metrics.onMessageIn();
         try {
-            if (message.startsWith("REGISTER:")) {
+            // 已注册的客户端发来任何数据都算作活动
+            UdpPeer peer = addressToPeer.get(clientAddress);
+            if (peer != null) {
+                peer.idle.touch();
+            }
+            
+            if (startsWith(data, MESSAGE)) {
+                // 聊天消息，最常见的情况，不解码直接转发
+                data.position(data.position() + MESSAGE.length);
+                handleChatMessage(shard, peer, data);
+            } else if (startsWith(data, HEARTBEAT)) {
+                // 心跳，只用于记录活动时间
+            } else if (startsWith(data, REGISTER)) {
                 // 客户端注册
-                String username = message.substring(9);
-                handleClientRegister(username, clientAddress);
-            } else if (message.startsWith("UNREGISTER:")) {
+                String username = decode(data, REGISTER.length);
+                handleClientRegister(shard, username, clientAddress);
+            } else if (startsWith(data, UNREGISTER)) {
                 // 客户端注销
-                handleClientUnregister(clientAddress);
-            } else if (message.startsWith("MESSAGE:")) {
-                // 聊天消息
-                String chatMessage = message.substring(8);
-                handleChatMessage(chatMessage, clientAddress);
-            } else if (message.startsWith("COMMAND:")) {
+                handleClientUnregister(shard, clientAddress);
+            } else if (startsWith(data, COMMAND)) {
                 // 命令处理
-                String command = message.substring(8);
-                handleCommand(command, clientAddress);
+                String command = decode(data, COMMAND.length);
+                handleCommand(shard, command, clientAddress);
+            } else if (startsWith(data, MULTICAST)) {
+                // 组播协商
+                String request = decode(data, MULTICAST.length);
+                handleMulticast(shard, peer, request);
             }
         } catch (Exception e) {
             System.err.println("处理消息时出错: " + e.getMessage());
         }
+        metrics.onProcessed(start);
     }
     
     /**
      * 处理客户端注册
      */
-    private void handleClientRegister(String username, InetSocketAddress clientAddress) {
-        // 检查用户名是否已存在
-        if (clients.containsKey(username)) {
-            sendToClient("ERROR:用户名已存在", clientAddress);
+    private void handleClientRegister(UdpShard shard, String username, InetSocketAddress clientAddress) {
+        // 同一地址只能注册一个用户，否则原来的用户会留在注册表和房间中无法移除
+        UdpPeer bound = addressToPeer.get(clientAddress);
+        if (bound != null) {
+            sendToClient(shard, "ERROR:该地址已注册为用户 " + bound.username + "，请先注销", clientAddress);
+            return;
+        }
+        
+        // 检查并占用用户名，多个分片同时注册同一用户名时只有一个成功
+        UdpPeer peer = new UdpPeer(username, clientAddress, shard);
+        if (clients.putIfAbsent(username, peer) != null) {
+            sendToClient(shard, "ERROR:用户名已存在", clientAddress);
             return;
         }
         
-        // 注册客户端
-        clients.put(username, clientAddress);
-        addressToUsername.put(clientAddress, username);
+        // 注册客户端，占用成功后才开始空闲检测并关联可靠传输链路
+        peer.link = shard.linkFor(clientAddress);
+        peer.idle = watchIdle(peer);
+        addressToPeer.put(clientAddress, peer);
+        shard.peers.add(peer);
+        rooms.join(peer, DEFAULT_ROOM);
         
         System.out.println("用户 " + username + " 注册成功，地址: " + clientAddress);
         System.out.println("当前在线人数: " + clients.size());
         
-        // 发送注册成功消息
-        sendToClient("SUCCESS:注册成功！欢迎 " + username, clientAddress);
+        // 发送注册成功消息和房间中最近的消息
+        sendToClient(shard, "SUCCESS:注册成功！欢迎 " + username, clientAddress);
+        sendHistory(shard, peer, historyReplay, false);
         
-        // 通知所有客户端有新用户加入
-        broadcastMessage("系统消息", username + " 加入了聊天室");
+        // 通知默认房间的客户端有新用户加入
+        broadcastMessage(shard, rooms.find(DEFAULT_ROOM), "系统消息", username + " 加入了聊天室");
     }
     
     /**
      * 处理客户端注销
      */
-    private void handleClientUnregister(InetSocketAddress clientAddress) {
-        String username = addressToUsername.get(clientAddress);
-        if (username != null) {
-            clients.remove(username);
-            addressToUsername.remove(clientAddress);
-            
-            System.out.println("用户 " + username + " 注销，当前在线人数: " + clients.size());
+    void handleClientUnregister(UdpShard shard, InetSocketAddress clientAddress) {
+        UdpPeer peer = findPeer(clientAddress);
+        if (peer == null) {
+            return;
+        }
+        RoomIndex.Room<UdpPeer> room = rooms.roomOf(peer);
+        if (removePeer(clientAddress) == peer) {
+            System.out.println("用户 " + peer.username + " 注销，当前在线人数: " + clients.size());
             
-            // 通知所有客户端有用户离开
-            broadcastMessage("系统消息", username + " 离开了聊天室");
+            // 通知同一房间的客户端有用户离开
+            if (room != null) {
+                broadcastMessage(shard, room, "系统消息", peer.username + " 离开了聊天室");
+            }
+        }
+    }
+    
+    /**
+     * 处理客户端的组播协商请求，协议见UdpMulticast
+     * 客户端先加入组播组，再由服务器向组播组发送只有它知道口令的探测消息，
+     * 客户端回复了口令才改为通过组播接收，收不到组播的客户端继续使用单播
+     */
+    private void handleMulticast(UdpShard shard, UdpPeer peer, String request) {
+        if (peer == null) {
+            return;
+        }
+        if (multicastGroup == null || peer.link != null) {
+            // 可靠传输的客户端需要逐条确认，组播无法提供，只使用单播
+            sendToClient(shard, UdpMulticast.PREFIX + "UNAVAILABLE "
+                + (multicastGroup == null ? "服务器未开启组播" : "使用可靠传输时只能单播接收"), peer.address);
+            return;
+        }
+        if (request.equals("JOIN")) {
+            sendToClient(shard, UdpMulticast.PREFIX + "GROUP " + multicastGroup.getAddress().getHostAddress()
+                + " " + multicastGroup.getPort(), peer.address);
+        } else if (request.equals("READY")) {
+            if (peer.multicastToken == 0) {
+                peer.multicastToken = ThreadLocalRandom.current().nextLong(1, Long.MAX_VALUE);
+            }
+            shard.sendMulticast(NO_ROOM, ByteBuffer.wrap((UdpMulticast.PREFIX + "PROBE " + peer.username + " "
+                + peer.multicastToken).getBytes(StandardCharsets.UTF_8)));
+        } else if (request.startsWith("ACK ")) {
+            if (peer.multicast || peer.multicastToken == 0
+                    || !request.substring("ACK ".length()).equals(Long.toString(peer.multicastToken))) {
+                return;
+            }
+            RoomIndex.Room<UdpPeer> room = rooms.roomOf(peer);
+            String roomName = room != null ? room.getName() : DEFAULT_ROOM;
+            // 先在组播中告知客户端所在的房间，之后的房间消息才会被客户端显示
+            sendRoomNotice(shard, peer, roomName);
+            peer.multicast = true;
+            sendToClient(shard, UdpMulticast.PREFIX + "ACTIVE " + roomName, peer.address);
+            System.out.println("用户 " + peer.username + " 改为通过组播接收房间消息");
+        } else if (request.equals("LEAVE")) {
+            peer.multicast = false;
+            peer.multicastToken = 0;
+        }
+    }
+    
+    /**
+     * 在组播中通知客户端它现在所在的房间
+     * 与房间消息走同一个套接字和同一条路径，客户端总是先收到房间变化再收到新房间的消息
+     */
+    private void sendRoomNotice(UdpShard shard, UdpPeer peer, String roomName) {
+        shard.sendMulticast(NO_ROOM, ByteBuffer.wrap((UdpMulticast.PREFIX + "ROOM " + peer.username + " " + roomName)
+            .getBytes(StandardCharsets.UTF_8)));
+    }
+    
+    /**
+     * 开始监视客户端的空闲时间，超时后在客户端所属的分片线程上移除它
+     */
+    private IdleMonitor.Entry watchIdle(UdpPeer peer) {
+        if (idleMonitor == null) {
+            return IdleMonitor.unwatched();
+        }
+        return idleMonitor.register(() -> peer.shard.execute(() -> {
+            // 同一地址的数据报总是落在同一个分片，这里的判断和移除之间不会有其他线程插入
+            if (addressToPeer.get(peer.address) != peer) {
+                return;
+            }
+            RoomIndex.Room<UdpPeer> room = rooms.roomOf(peer);
+            if (removePeer(peer.address) == peer) {
+                System.out.println("用户 " + peer.username + " 长时间无活动，已移除，当前在线人数: " + clients.size());
+                if (room != null) {
+                    broadcastMessage(peer.shard, room, "系统消息", peer.username + " 长时间无响应，离开了聊天室");
+                }
+            }
+        }));
+    }
+    
+    /**
+     * 按地址查找已注册的客户端
+     */
+    UdpPeer findPeer(InetSocketAddress clientAddress) {
+        return addressToPeer.get(clientAddress);
+    }
+    
+    /**
+     * 运行指标，分片在收发数据报时记录
+     */
+    ServerMetrics getMetrics() {
+        return metrics;
+    }
+    
+    /**
+     * 组播组，未开启组播时为null
+     */
+    InetSocketAddress getMulticastGroup() {
+        return multicastGroup;
+    }
+    
+    /**
+     * 发送组播使用的网卡，为null时由系统选择
+     */
+    NetworkInterface getMulticastInterface() {
+        return multicastInterface;
+    }
+    
+    int getMulticastTtl() {
+        return multicastTtl;
+    }
+    
+    /**
+     * 是否打包发送
+     */
+    boolean isPacking() {
+        return packing;
+    }
+    
+    /**
+     * 打包发送的合并窗口，0表示每轮事件循环结束时发出
+     */
+    long getFlushWindowNanos() {
+        return flushWindowNanos;
+    }
+    
+    /**
+     * 从注册表、所在房间和所属分片中移除客户端
+     * @return 被移除的客户端，不存在时返回null
+     */
+    UdpPeer removePeer(InetSocketAddress clientAddress) {
+        UdpPeer peer = addressToPeer.remove(clientAddress);
+        if (peer != null) {
+            clients.remove(peer.username, peer);
+            rooms.leave(peer);
+            peer.idle.cancel();
+            peer.shard.peers.remove(peer);
+            peer.shard.removeLink(clientAddress);
         }
+        return peer;
     }
     
     /**
      * 处理聊天消息
+     * @param message 消息内容，position处开始为UTF-8编码的文本
      */
-    private void handleChatMessage(String message, InetSocketAddress clientAddress) {
-        String username = addressToUsername.get(clientAddress);
-        if (username != null) {
-            broadcastMessage(username, message);
+    private void handleChatMessage(UdpShard shard, UdpPeer peer, ByteBuffer message) {
+        RoomIndex.Room<UdpPeer> room = peer != null ? rooms.roomOf(peer) : null;
+        if (room != null) {
+            // 在发送缓冲区中直接拼出 "[时间] 用户名: 消息"
+            ByteBuffer sendBuffer = shard.sendBuffer;
+            sendBuffer.clear();
+            sendBuffer.put((byte) '[').put(ChatClock.currentTimeBytes()).put((byte) ']').put((byte) ' ');
+            sendBuffer.put(peer.usernameBytes).put((byte) ':').put((byte) ' ');
+            if (message.remaining() > sendBuffer.remaining()) {
+                // 加上前缀后超出数据报上限的部分截掉，截断点落在多字节字符中间时退到该字符之前
+                int end = message.position() + sendBuffer.remaining();
+                while (end > message.position() && (message.get(end) & 0xC0) == 0x80) {
+                    end--;
+                }
+                message.limit(end);
+            }
+            sendBuffer.put(message);
+            sendBuffer.flip();
+            MessageRing history = rooms.historyFor(room);
+            if (history != null) {
+                history.append(ChatFrame.CHAT, 0, sendBuffer);
+            }
+            if (messageLog != null) {
+                // 只是复制到映射内存，由日志的刷盘线程统一写回磁盘
+                messageLog.append(System.currentTimeMillis(), ChatFrame.CHAT, 0, room.getNameBytes(), sendBuffer);
+            }
+            if (searchIndex != null) {
+                // 发送缓冲区会被复用，复制一份放入检索线程的队列
+                searchIndex.add(room.getName(), sendBuffer);
+            }
+            broadcastBuffer(shard, room, sendBuffer);
         }
     }
     
     /**
      * 处理客户端命令
      */
-    private void handleCommand(String command, InetSocketAddress clientAddress) {
+    private void handleCommand(UdpShard shard, String command, InetSocketAddress clientAddress) {
         if (command.equals("/users")) {
-            sendOnlineUsers(clientAddress);
+            sendOnlineUsers(shard, clientAddress);
         } else if (command.equals("/help")) {
-            sendHelpMessage(clientAddress);
+            sendHelpMessage(shard, clientAddress);
+        } else if (command.equals("/rooms")) {
+            sendRoomList(shard, clientAddress);
+        } else if (command.equals("/join") || command.startsWith("/join ")) {
+            joinRoom(shard, command.substring("/join".length()), clientAddress);
+        } else if (command.equals("/leave")) {
+            leaveRoom(shard, clientAddress);
+        } else if (command.equals("/history") || command.startsWith("/history ")) {
+            handleHistory(shard, command.substring("/history".length()), clientAddress);
+        } else if (command.equals("/search") || command.startsWith("/search ")) {
+            handleSearch(shard, command.substring("/search".length()), clientAddress);
+        } else if (command.equals("/msg") || command.startsWith("/msg ")) {
+            sendDirectMessage(shard, command.substring("/msg".length()), clientAddress);
+        } else if (command.equals("/stats") || command.startsWith("/stats ")) {
+            sendStats(shard, command.substring("/stats".length()), clientAddress);
         } else {
-            sendToClient("未知命令: " + command, clientAddress);
+            sendToClient(shard, "未知命令: " + command, clientAddress);
         }
     }
     
     /**
-     * 广播消息给所有客户端
+     * 进入房间，通知原房间和新房间的成员
      */
-    private void broadcastMessage(String sender, String message) {
-        String fullMessage = "[" + getCurrentTime() + "] " + sender + ": " + message;
+    private void joinRoom(UdpShard shard, String roomName, InetSocketAddress clientAddress) {
+        UdpPeer peer = findPeer(clientAddress);
+        if (peer == null) {
+            return;
+        }
+        String name = RoomIndex.normalizeName(roomName);
+        if (name == null) {
+            sendToClient(shard, "房间名不能为空、不能包含空白，最长" + RoomIndex.MAX_NAME_LENGTH + "个字符", clientAddress);
+            return;
+        }
+        RoomIndex.Room<UdpPeer> current = rooms.roomOf(peer);
+        if (current != null && current.getName().equals(name)) {
+            sendToClient(shard, "您已经在房间 " + name + " 中", clientAddress);
+            return;
+        }
+        changeRoom(shard, peer, name);
+    }
+    
+    /**
+     * 离开当前房间，回到默认房间
+     */
+    private void leaveRoom(UdpShard shard, InetSocketAddress clientAddress) {
+        UdpPeer peer = findPeer(clientAddress);
+        if (peer == null) {
+            return;
+        }
+        RoomIndex.Room<UdpPeer> current = rooms.roomOf(peer);
+        if (current == null || current.getName().equals(DEFAULT_ROOM)) {
+            sendToClient(shard, "您已经在" + DEFAULT_ROOM + "中", clientAddress);
+            return;
+        }
+        changeRoom(shard, peer, DEFAULT_ROOM);
+    }
+    
+    private void changeRoom(UdpShard shard, UdpPeer peer, String name) {
+        RoomIndex.Room<UdpPeer> previous = rooms.join(peer, name);
+        if (peer.multicast) {
+            sendRoomNotice(shard, peer, name);
+        }
+        if (previous != null) {
+            broadcastMessage(shard, previous, "系统消息", peer.username + " 离开了房间 " + previous.getName());
+        }
+        RoomIndex.Room<UdpPeer> room = rooms.roomOf(peer);
+        if (room != null) {
+            broadcastMessage(shard, room, "系统消息", peer.username + " 进入了房间 " + name);
+            sendHistory(shard, peer, historyReplay, false);
+        }
+    }
+    
+    /**
+     * 处理 /history 命令
+     */
+    private void handleHistory(UdpShard shard, String args, InetSocketAddress clientAddress) {
+        UdpPeer peer = findPeer(clientAddress);
+        if (peer == null) {
+            return;
+        }
+        int count = historyReplay > 0 ? historyReplay : 20;
+        String trimmed = args.trim();
+        if (!trimmed.isEmpty()) {
+            try {
+                count = Integer.parseInt(trimmed);
+            } catch (NumberFormatException e) {
+                count = -1;
+            }
+            if (count <= 0) {
+                sendToClient(shard, "用法: /history [条数]", clientAddress);
+                return;
+            }
+        }
+        sendHistory(shard, peer, count, true);
+    }
+    
+    /**
+     * 把当前房间最近的消息发给客户端，打包发送时会合并成少数几个数据报
+     * 广播时先写入历史再发给成员，进入房间后再读取历史，所以一条消息不会在重放和实时消息中都缺失
+     * @param reportEmpty 没有历史消息时是否告知客户端
+     */
+    private void sendHistory(UdpShard shard, UdpPeer peer, int count, boolean reportEmpty) {
+        RoomIndex.Room<UdpPeer> room = rooms.roomOf(peer);
+        MessageRing history = room != null ? room.getHistory() : null;
+        if (history == null || count <= 0) {
+            if (reportEmpty) {
+                sendToClient(shard, "当前房间没有保留历史消息", peer.address);
+            }
+            return;
+        }
+        List<MessageRing.Entry> entries = history.recent(count);
+        if (entries.isEmpty()) {
+            if (reportEmpty) {
+                sendToClient(shard, "房间 " + room.getName() + " 暂无历史消息", peer.address);
+            }
+            return;
+        }
+        sendToClient(shard, "=== 房间 " + room.getName() + " 最近 " + entries.size() + " 条消息 ===", peer.address);
+        for (MessageRing.Entry entry : entries) {
+            shard.send(ByteBuffer.wrap(entry.text), peer.address);
+        }
+        sendToClient(shard, "=== 以上为历史消息 ===", peer.address);
+    }
+    
+    /**
+     * 检索历史消息
+     * 查询在检索线程上执行，结果交回当前分片线程发送，不阻塞分片的接收循环
+     */
+    private void handleSearch(UdpShard shard, String args, InetSocketAddress clientAddress) {
+        String query = args.trim();
+        if (searchIndex == null) {
+            sendToClient(shard, "服务器未开启检索", clientAddress);
+            return;
+        }
+        if (query.isEmpty()) {
+            sendToClient(shard, "用法: /search 关键词", clientAddress);
+            return;
+        }
+        boolean accepted = searchIndex.search(query, SEARCH_LIMIT, (hits, elapsedNanos) -> shard.execute(() -> {
+            sendToClient(shard, String.format("=== 检索 \"%s\"：找到 %d 条，耗时 %.2f 毫秒 ===",
+                query, hits.size(), elapsedNanos / 1e6), clientAddress);
+            // 结果按从新到旧排列，按时间顺序显示
+            for (int i = hits.size() - 1; i >= 0; i--) {
+                SearchIndex.Hit hit = hits.get(i);
+                sendToClient(shard, "[" + hit.room + "] " + hit.text, clientAddress);
+            }
+        }));
+        if (!accepted) {
+            sendToClient(shard, "检索繁忙，请稍后再试", clientAddress);
+        }
+    }
+    
+    /**
+     * 发送私聊消息
+     * 按用户名直接找到接收者，只给它发送一个数据报，代价与在线人数无关；
+     * 接收者属于其他分片时交给该分片线程发送，可靠链路和打包缓冲区只由所属分片访问
+     * @param args 命令参数，格式为 "用户名 消息"
+     */
+    private void sendDirectMessage(UdpShard shard, String args, InetSocketAddress clientAddress) {
+        UdpPeer sender = findPeer(clientAddress);
+        if (sender == null) {
+            return;
+        }
+        String trimmed = args.trim();
+        int space = trimmed.indexOf(' ');
+        if (space < 0) {
+            sendToClient(shard, "用法: /msg 用户名 消息", clientAddress);
+            return;
+        }
+        String target = trimmed.substring(0, space);
+        String text = trimmed.substring(space + 1).trim();
         
-        // 遍历所有客户端，发送消息
-        for (InetSocketAddress clientAddress : clients.values()) {
-            sendToClient(fullMessage, clientAddress);
+        UdpPeer recipient = clients.get(target);
+        if (recipient == null) {
+            sendToClient(shard, "用户 " + target + " 不在线", clientAddress);
+            return;
         }
+        if (recipient == sender) {
+            sendToClient(shard, "不能给自己发送私聊消息", clientAddress);
+            return;
+        }
+        
+        String time = ChatClock.currentTime();
+        ByteBuffer message = ByteBuffer.wrap(("[" + time + "] " + sender.username + " 对你说: " + text)
+            .getBytes(StandardCharsets.UTF_8));
+        if (recipient.shard == shard) {
+            shard.send(message, recipient.address);
+        } else {
+            recipient.shard.execute(() -> recipient.shard.send(message, recipient.address));
+        }
+        sendToClient(shard, "[" + time + "] 你对 " + target + " 说: " + text, clientAddress);
     }
     
     /**
-     * 发送消息给指定客户端
+     * 把运行指标发给管理员
+     * @param args 命令参数，为启动时指定的 --admin-password
      */
-    private void sendToClient(String message, InetSocketAddress clientAddress) {
-        try {
-            byte[] data = message.getBytes("UTF-8");
-            DatagramPacket packet = new DatagramPacket(
-                data, data.length, clientAddress.getAddress(), clientAddress.getPort());
-            socket.send(packet);
-        } catch (IOException e) {
-            System.err.println("发送消息失败: " + e.getMessage());
-            // 移除无法到达的客户端
-            String username = addressToUsername.get(clientAddress);
-            if (username != null) {
-                clients.remove(username);
-                addressToUsername.remove(clientAddress);
+    private void sendStats(UdpShard shard, String args, InetSocketAddress clientAddress) {
+        byte[] password = args.trim().getBytes(StandardCharsets.UTF_8);
+        // 按固定时间比较口令，不因匹配的前缀长度泄露信息
+        if (adminPassword == null || !MessageDigest.isEqual(adminPassword, password)) {
+            sendToClient(shard, "只有管理员可以查看运行指标", clientAddress);
+            return;
+        }
+        for (String line : metrics.report()) {
+            sendToClient(shard, line, clientAddress);
+        }
+    }
+    
+    /**
+     * 发送房间列表
+     */
+    private void sendRoomList(UdpShard shard, InetSocketAddress clientAddress) {
+        List<RoomIndex.Room<UdpPeer>> all = rooms.rooms();
+        StringBuilder roomList = new StringBuilder("当前房间 (");
+        roomList.append(all.size()).append("个): ");
+        
+        for (RoomIndex.Room<UdpPeer> room : all) {
+            roomList.append(room.getName()).append('(').append(room.size()).append(") ");
+        }
+        
+        UdpPeer peer = findPeer(clientAddress);
+        RoomIndex.Room<UdpPeer> current = peer != null ? rooms.roomOf(peer) : null;
+        if (current != null) {
+            roomList.setLength(roomList.length() - 1);
+            roomList.append("，您在 ").append(current.getName());
+        }
+        sendToClient(shard, "系统消息: " + roomList.toString(), clientAddress);
+    }
+    
+    /**
+     * 广播消息给房间中的所有客户端
+     */
+    private void broadcastMessage(UdpShard shard, RoomIndex.Room<UdpPeer> room, String sender, String message) {
+        String fullMessage = "[" + ChatClock.currentTime() + "] " + sender + ": " + message;
+        
+        // 只编码一次，所有客户端共用同一个缓冲区
+        ByteBuffer data = ByteBuffer.wrap(fullMessage.getBytes(StandardCharsets.UTF_8));
+        if (messageLog != null) {
+            messageLog.append(System.currentTimeMillis(), ChatFrame.SYSTEM, 0, room.getNameBytes(), data);
+        }
+        broadcastBuffer(shard, room, data);
+    }
+    
+    /**
+     * 把缓冲区中的数据报发给房间中的所有客户端，代价只与房间人数有关
+     * 房间中有通过组播接收的客户端时，当前分片向组播组发送一次；
+     * 其余客户端单播：当前分片直接给自己的客户端发送，房间中有单播成员的其他分片
+     * 各收到一份共享的只读副本和同一份成员快照，在各自线程上并行给自己的客户端发送
+     */
+    private void broadcastBuffer(UdpShard current, RoomIndex.Room<UdpPeer> room, ByteBuffer data) {
+        long start = System.nanoTime();
+        List<UdpPeer> members = room.members();
+        boolean[] involved = shards.length > 1 ? new boolean[shards.length] : null;
+        boolean multicast = false;
+        if (involved != null || multicastGroup != null) {
+            for (int i = 0; i < members.size(); i++) {
+                UdpPeer peer = members.get(i);
+                if (peer.multicast) {
+                    multicast = true;
+                } else if (involved != null) {
+                    involved[peer.shard.index] = true;
+                }
             }
         }
+        if (multicast) {
+            current.sendMulticast(room.getNameBytes(), data.duplicate());
+        }
+        if (involved != null) {
+            ByteBuffer readOnly = null;
+            for (UdpShard shard : shards) {
+                if (shard != current && involved[shard.index]) {
+                    if (readOnly == null) {
+                        ByteBuffer shared = ByteBuffer.allocate(data.remaining());
+                        shared.put(data.duplicate()).flip();
+                        readOnly = shared.asReadOnlyBuffer();
+                    }
+                    ByteBuffer copy = readOnly;
+                    shard.execute(() -> shard.sendToMembers(members, copy.duplicate()));
+                }
+            }
+        }
+        current.sendToMembers(members, data);
+        // 其他分片的发送在各自线程上进行，这里只计入当前分片的部分
+        metrics.onBroadcast(start, members.size());
+    }
+    
+    /**
+     * 发送消息给指定客户端
+     */
+    private void sendToClient(UdpShard shard, String message, InetSocketAddress clientAddress) {
+        shard.send(ByteBuffer.wrap(message.getBytes(StandardCharsets.UTF_8)), clientAddress);
     }
     
     /**
      * 发送在线用户列表
      */
-    private void sendOnlineUsers(InetSocketAddress clientAddress) {
+    private void sendOnlineUsers(UdpShard shard, InetSocketAddress clientAddress) {
         StringBuilder userList = new StringBuilder("当前在线用户 (");
         userList.append(clients.size()).append("人): ");
         
@@ -192,25 +799,53 @@ public class UDPChatServer {
             userList.append(user).append(" ");
         }
         
-        sendToClient("系统消息: " + userList.toString(), clientAddress);
+        sendToClient(shard, "系统消息: " + userList.toString(), clientAddress);
     }
     
     /**
      * 发送帮助信息
      */
-    private void sendHelpMessage(InetSocketAddress clientAddress) {
-        sendToClient("=== UDP聊天室命令帮助 ===", clientAddress);
-        sendToClient("/users - 查看在线用户列表", clientAddress);
-        sendToClient("/help - 显示此帮助信息", clientAddress);
-        sendToClient("/quit - 退出聊天室", clientAddress);
-        sendToClient("直接输入文字即可发送聊天消息", clientAddress);
+    private void sendHelpMessage(UdpShard shard, InetSocketAddress clientAddress) {
+        sendToClient(shard, "=== UDP聊天室命令帮助 ===", clientAddress);
+        sendToClient(shard, "/users - 查看在线用户列表", clientAddress);
+        sendToClient(shard, "/rooms - 查看房间列表", clientAddress);
+        sendToClient(shard, "/join 房间名 - 进入房间，房间不存在时创建", clientAddress);
+        sendToClient(shard, "/leave - 离开当前房间，回到" + DEFAULT_ROOM, clientAddress);
+        sendToClient(shard, "/msg 用户名 消息 - 私聊，只有对方能收到", clientAddress);
+        sendToClient(shard, "/history [条数] - 查看当前房间最近的消息", clientAddress);
+        sendToClient(shard, "/search 关键词 - 检索所有房间的历史消息", clientAddress);
+        sendToClient(shard, "/stats 口令 - 查看服务器运行指标（管理员）", clientAddress);
+        sendToClient(shard, "/help - 显示此帮助信息", clientAddress);
+        sendToClient(shard, "/quit - 退出聊天室", clientAddress);
+        sendToClient(shard, "直接输入文字即可发送聊天消息，只有同一房间的用户能收到", clientAddress);
+    }
+    
+    /**
+     * 判断缓冲区是否以指定前缀开头
+     */
+    private static boolean startsWith(ByteBuffer data, byte[] prefix) {
+        if (data.remaining() < prefix.length) {
+            return false;
+        }
+        int start = data.position();
+        for (int i = 0; i < prefix.length; i++) {
+            if (data.get(start + i) != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
     }
     
     /**
-     * 获取当前时间字符串
+     * 跳过前缀后把剩余数据解码为字符串
      */
-    private String getCurrentTime() {
-        return new java.text.SimpleDateFormat("HH:mm:ss").format(new Date());
+    private static String decode(ByteBuffer data, int prefixLength) {
+        data.position(data.position() + prefixLength);
+        return StandardCharsets.UTF_8.decode(data).toString();
+    }
+    
+    private static byte[] ascii(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
     }
     
     /**
@@ -218,16 +853,56 @@ public class UDPChatServer {
      */
     public void stop() {
         isRunning = false;
-        if (socket != null && !socket.isClosed()) {
-            socket.close();
+        if (idleMonitor != null) {
+            idleMonitor.stop();
+        }
+        for (UdpShard shard : shards) {
+            shard.stop();
+        }
+        if (messageLog != null) {
+            messageLog.close();
+        }
+        if (searchIndex != null) {
+            searchIndex.stop();
         }
+        metrics.stop();
+    }
+    
+    /**
+     * 显示使用帮助
+     */
+    private static void showUsage() {
+        System.out.println("UDP聊天服务器使用说明:");
+        System.out.println("java UDPChatServer [--port=端口号] [--shards=接收线程数] [--mtu=字节数]");
+        System.out.println("                  [--pack=true|false] [--flush-window-ms=毫秒]");
+        System.out.println("                  [--idle-timeout-seconds=秒] [--alloc-stats-seconds=秒]");
+        System.out.println("                  [--history=条数] [--history-replay=条数] [--history-slot-bytes=字节数]");
+        System.out.println("                  [--history-off-heap=true|false] [--history-max-rooms=房间数]");
+        System.out.println("                  [--log-dir=目录] [--log-segment-mb=MB] [--log-flush-ms=毫秒]");
+        System.out.println("                  [--log-retention-mb=MB] [--log-retention-hours=小时]");
+        System.out.println("                  [--log-load-hours=小时] [--log-load-max=条数]");
+        System.out.println("                  [--search=true|false] [--search-max-docs=条数] [--search-queue=条数]");
+        System.out.println("                  [--stats-interval-seconds=秒] [--admin-password=口令]");
+        System.out.println("                  [--multicast=组播地址:端口] [--multicast-interface=网卡名] [--multicast-ttl=跳数]");
+        System.out.println("例如:");
+        System.out.println("  java UDPChatServer                          # 监听8889端口");
+        System.out.println("  java UDPChatServer --shards=4               # 4个SO_REUSEPORT套接字并行接收（Linux）");
+        System.out.println("  java UDPChatServer --alloc-stats-seconds=10 # 每10秒输出接收线程的内存分配统计");
+        System.out.println("  java UDPChatServer --multicast=239.255.0.1:8890 --multicast-interface=lo  # 本机回环组播");
     }
     
     /**
      * 主方法
      */
     public static void main(String[] args) {
-        UDPChatServer server = new UDPChatServer();
+        UDPChatServer server;
+        try {
+            server = new UDPChatServer(ServerOptions.parse(args));
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            showUsage();
+            return;
+        }
         
         // 添加关闭钩子
         Runtime.getRuntime().addShutdownHook(new Thread(server::stop));
@@ -0,0 +1,40 @@
+import java.net.*;
+import java.nio.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * UDP客户端信息
+ * 以客户端地址为键缓存在服务器中，收到数据报时直接按地址查到，
+ * 不需要为每个数据报重新解析用户名或创建地址对象。
+ */
+public class UdpPeer {
+    final String username;
+    final InetSocketAddress address;
+    final byte[] usernameBytes;
+    
+    // 收到该客户端注册请求的分片，广播时由它负责给该客户端发送
+    final UdpShard shard;
+    
+    // 可靠传输链路，客户端未使用可靠传输时为null；用户名占用成功后设置
+    ReliableLink link;
+    
+    // 空闲检测，用户名占用成功后设置
+    IdleMonitor.Entry idle;
+    
+    // 是否已确认能收到组播，为true时房间消息不再单播给它；广播时其他分片也会读取
+    volatile boolean multicast;
+    // 组播探测的口令，只由所属分片线程访问
+    long multicastToken;
+    
+    // 打包发送的缓冲区和其中的消息条数，只由所属分片线程访问
+    ByteBuffer pack;
+    int packCount;
+    boolean dirty;
+    
+    public UdpPeer(String username, InetSocketAddress address, UdpShard shard) {
+        this.username = username;
+        this.address = address;
+        this.shard = shard;
+        this.usernameBytes = username.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,535 @@
+import java.io.*;
+import java.lang.management.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * UDP接收分片
+ * 每个分片拥有一个绑定到服务器端口的DatagramChannel（多个分片时使用SO_REUSEPORT，
+ * 由内核按客户端地址把数据报分配到各个分片）、一个线程和一组复用的缓冲区。
+ * 客户端归属于收到其注册请求的分片，广播时每个分片只负责给自己的客户端发送。
+ * 使用可靠传输的客户端在分片中各有一个ReliableLink，收发和重传都在分片线程上完成。
+ * 超过MTU的数据报拆成分片发送，收到的分片由本分片的FragmentAssembler重组。
+ * 发给同一客户端的多条消息先放入该客户端的打包缓冲区，在本轮事件循环结束
+ * （或合并窗口到期）时打包成一个数据报发出。
+ * 服务器开启组播时，房间消息由发起广播的分片向组播组发送一次，只单播给未使用组播的客户端。
+ */
+public class UdpShard implements Runnable, ReliableLink.Transport, ReliableLink.Receiver {
+    static final int MAX_DATAGRAM_SIZE = 65507;  // IPv4下UDP数据报的最大长度
+    
+    // 有可靠链路时检查重传的间隔
+    private static final long RETRANSMIT_TICK_MILLIS = 10;
+    
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+    
+    // 分片重组的内存上限和超时时间
+    private static final int MAX_PENDING_FRAGMENTED = 256;
+    private static final long MAX_PENDING_FRAGMENT_BYTES = 16 * 1024 * 1024;
+    private static final long FRAGMENT_TIMEOUT_SECONDS = 5;
+    
+    final int index;
+    private final UDPChatServer server;
+    final DatagramChannel channel;
+    private final Selector selector;
+    private final Thread thread;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private volatile boolean isRunning = true;
+    
+    // 归属于本分片的客户端
+    final Set<UdpPeer> peers = ConcurrentHashMap.newKeySet();
+    
+    // 使用可靠传输的远端地址及其链路，客户端的数据报总是落在同一个分片，所以只由本分片线程访问
+    private final Map<InetSocketAddress, ReliableLink> links = new ConcurrentHashMap<>();
+    private long nextRetransmitCheck = 0;
+    
+    // 接收和组装消息使用的复用缓冲区，只由本分片线程访问
+    final ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(MAX_DATAGRAM_SIZE);
+    final ByteBuffer sendBuffer = ByteBuffer.allocateDirect(MAX_DATAGRAM_SIZE);
+    private final ByteBuffer reliableBuffer = ByteBuffer.allocateDirect(MAX_DATAGRAM_SIZE);
+    
+    // 分片发送和重组，只由本分片线程访问
+    private final int mtu;
+    private final ByteBuffer fragmentBuffer;
+    private final FragmentAssembler assembler = new FragmentAssembler(
+        MAX_PENDING_FRAGMENTED, MAX_PENDING_FRAGMENT_BYTES, FRAGMENT_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    private int nextFragmentId;
+    
+    // 打包发送：有待发送消息的客户端及最早一条消息的发出期限，只由本分片线程访问
+    private final boolean packing;
+    private final int packBudget;
+    private final long flushWindowNanos;
+    private final List<UdpPeer> dirtyPeers = new ArrayList<>();
+    private long flushDeadline;
+    
+    // 内存分配统计间隔，0表示不统计
+    private final long allocStatsIntervalMillis;
+    
+    private final ServerMetrics metrics;
+    
+    // 组播组和组装组播数据报的缓冲区，未开启组播时为null
+    private final InetSocketAddress multicastGroup;
+    private final ByteBuffer multicastBuffer;
+    
+    public UdpShard(UDPChatServer server, int index, int port, boolean reusePort, int mtu,
+                    long allocStatsIntervalMillis) throws IOException {
+        this.server = server;
+        this.index = index;
+        this.mtu = mtu;
+        this.fragmentBuffer = ByteBuffer.allocateDirect(mtu);
+        this.packing = server.isPacking();
+        // 打包后的数据报可能还要加上可靠传输的头部，留出空间避免被分片
+        this.packBudget = mtu - ReliableLink.DATA_HEADER_LENGTH;
+        this.flushWindowNanos = server.getFlushWindowNanos();
+        this.allocStatsIntervalMillis = allocStatsIntervalMillis;
+        this.metrics = server.getMetrics();
+        // 所有分片从同一个地址发出组播，客户端按来源地址重组分片，各分片的消息编号从不同的区间开始
+        this.nextFragmentId = index << 24;
+        this.multicastGroup = server.getMulticastGroup();
+        this.multicastBuffer = multicastGroup != null ? ByteBuffer.allocateDirect(mtu) : null;
+        
+        channel = DatagramChannel.open(StandardProtocolFamily.INET);
+        if (reusePort) {
+            channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        }
+        if (multicastGroup != null) {
+            // 同一台主机上的客户端也要能收到，打开回环
+            if (server.getMulticastInterface() != null) {
+                channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, server.getMulticastInterface());
+            }
+            channel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, server.getMulticastTtl());
+            channel.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, true);
+        }
+        channel.bind(new InetSocketAddress(port));
+        channel.configureBlocking(false);
+        selector = Selector.open();
+        channel.register(selector, SelectionKey.OP_READ);
+        thread = new Thread(this, "udp-shard-" + index);
+    }
+    
+    public void start() {
+        thread.start();
+    }
+    
+    public void join() throws InterruptedException {
+        thread.join();
+    }
+    
+    /**
+     * 判断当前线程是否为本分片线程
+     */
+    public boolean inShard() {
+        return Thread.currentThread() == thread;
+    }
+    
+    /**
+     * 提交任务到本分片线程执行
+     */
+    public void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+    
+    @Override
+    public void run() {
+        AllocationStats stats = allocStatsIntervalMillis > 0 ? new AllocationStats() : null;
+        
+        while (isRunning) {
+            try {
+                selector.select(selectTimeout());
+                selector.selectedKeys().clear();
+                
+                // 一次唤醒尽可能多地接收数据报，缓冲区和发送方地址对象都会被复用
+                while (true) {
+                    receiveBuffer.clear();
+                    InetSocketAddress clientAddress = (InetSocketAddress) channel.receive(receiveBuffer);
+                    if (clientAddress == null) {
+                        break;
+                    }
+                    receiveBuffer.flip();
+                    metrics.onBytesIn(receiveBuffer.remaining());
+                    
+                    // 分片先重组，收齐后再按完整的数据报处理
+                    ByteBuffer datagram = receiveBuffer;
+                    if (UdpFragments.isFragment(receiveBuffer)) {
+                        datagram = assembler.add(clientAddress, receiveBuffer, System.nanoTime());
+                    }
+                    if (datagram != null) {
+                        dispatch(datagram, clientAddress);
+                    }
+                    
+                    if (stats != null) {
+                        stats.onPacket();
+                    }
+                }
+                
+                runTasks();
+                checkRetransmits();
+                assembler.expire(System.nanoTime());
+                
+                // 合并窗口为0时每轮循环结束都发出，否则等到窗口到期
+                if (!dirtyPeers.isEmpty() && (flushWindowNanos == 0 || System.nanoTime() - flushDeadline >= 0)) {
+                    flushDirtyPeers();
+                }
+            } catch (ClosedSelectorException | ClosedChannelException e) {
+                break;
+            } catch (IOException e) {
+                if (isRunning) {
+                    System.err.println("接收数据报时出错: " + e.getMessage());
+                }
+            }
+        }
+    }
+    
+    /**
+     * 计算select的超时时间（毫秒，0表示一直等待）
+     * 有可靠链路时需要定期检查重传，有待发送的打包消息时需要在合并窗口到期时醒来
+     */
+    private long selectTimeout() {
+        long timeout = links.isEmpty() ? 0 : RETRANSMIT_TICK_MILLIS;
+        if (!dirtyPeers.isEmpty()) {
+            long wait = Math.max(1, TimeUnit.NANOSECONDS.toMillis(flushDeadline - System.nanoTime()));
+            timeout = timeout == 0 ? wait : Math.min(timeout, wait);
+        }
+        return timeout;
+    }
+    
+    /**
+     * 处理一个完整的数据报，可靠传输的数据报先经过链路去重和排序
+     * 只有会话的第一条消息才会为新地址创建链路，交付之后该地址仍未注册时链路随即移除，
+     * 未注册或伪造的地址不会让链路表无限增长。
+     */
+    private void dispatch(ByteBuffer datagram, InetSocketAddress clientAddress) {
+        if (ReliableLink.isReliable(datagram)) {
+            ReliableLink link = links.get(clientAddress);
+            if (link != null && link.isRestart(datagram)) {
+                // 客户端重启后从新会话重新开始，旧链路的序号已不再适用，相当于原来的用户先注销
+                server.handleClientUnregister(this, clientAddress);
+                links.remove(clientAddress);
+                link = null;
+            }
+            if (link != null) {
+                link.receive(datagram, this);
+                return;
+            }
+            if (!ReliableLink.opensSession(datagram)) {
+                return;
+            }
+            link = new ReliableLink(clientAddress, this);
+            links.put(clientAddress, link);
+            link.receive(datagram, this);
+            if (server.findPeer(clientAddress) == null) {
+                links.remove(clientAddress, link);
+            }
+        } else {
+            server.handleMessage(this, datagram, clientAddress);
+        }
+    }
+    
+    /**
+     * 执行其他分片提交的任务
+     */
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                System.err.println("执行分片任务时出错: " + e.getMessage());
+            }
+        }
+    }
+    
+    /**
+     * 按顺序交付可靠链路上收到的消息
+     */
+    @Override
+    public void onDelivered(ReliableLink link, ByteBuffer payload) {
+        server.handleMessage(this, payload, link.getRemote());
+    }
+    
+    /**
+     * 发送可靠链路组装的数据报
+     */
+    @Override
+    public void transmit(ReliableLink link, ByteBuffer header, ByteBuffer payload) throws IOException {
+        if (header.remaining() + payload.remaining() > mtu) {
+            sendFragments(header, payload, link.getRemote());
+            return;
+        }
+        reliableBuffer.clear();
+        reliableBuffer.put(header);
+        reliableBuffer.put(payload);
+        reliableBuffer.flip();
+        sendDatagram(reliableBuffer, link.getRemote());
+    }
+    
+    /**
+     * 查找客户端的可靠链路
+     * @return 客户端未使用可靠传输时返回null
+     */
+    ReliableLink linkFor(InetSocketAddress clientAddress) {
+        return links.get(clientAddress);
+    }
+    
+    /**
+     * 移除客户端的可靠链路
+     */
+    void removeLink(InetSocketAddress clientAddress) {
+        links.remove(clientAddress);
+    }
+    
+    /**
+     * 重传各可靠链路上超时未确认的消息，长时间收不到确认的客户端会被移除
+     */
+    private void checkRetransmits() {
+        if (links.isEmpty()) {
+            return;
+        }
+        long now = System.nanoTime();
+        if (now - nextRetransmitCheck < 0) {
+            return;
+        }
+        nextRetransmitCheck = now + TimeUnit.MILLISECONDS.toNanos(RETRANSMIT_TICK_MILLIS);
+        for (ReliableLink link : links.values()) {
+            if (!link.onTimer(now)) {
+                System.out.println("客户端 " + link.getRemote() + " 长时间未确认消息，已移除");
+                links.remove(link.getRemote());
+                server.removePeer(link.getRemote());
+            }
+        }
+    }
+    
+    /**
+     * 把数据报发给成员列表中归属于本分片的客户端，每次发送前重置position
+     * 使用可靠传输的客户端共享同一份副本，副本在全部确认之前一直保留
+     */
+    void sendToMembers(List<UdpPeer> members, ByteBuffer data) {
+        int start = data.position();
+        ByteBuffer retained = null;
+        
+        // 遍历成员，只发送给本分片的客户端
+        for (int i = 0; i < members.size(); i++) {
+            UdpPeer peer = members.get(i);
+            if (peer.shard != this || peer.multicast) {
+                continue;
+            }
+            data.position(start);
+            if (packing) {
+                enqueue(peer, data);
+                continue;
+            }
+            if (peer.link == null) {
+                sendPacket(data, peer.address);
+                continue;
+            }
+            if (retained == null) {
+                retained = data.isReadOnly() ? data.duplicate() : copyOf(data);
+            }
+            peer.link.send(retained.duplicate());
+        }
+    }
+    
+    /**
+     * 把数据报发送给指定客户端
+     * 客户端使用可靠传输时data会被保留到确认为止，调用方之后不能再修改其内容
+     */
+    void send(ByteBuffer data, InetSocketAddress clientAddress) {
+        if (packing) {
+            UdpPeer peer = server.findPeer(clientAddress);
+            if (peer != null && peer.shard == this) {
+                enqueue(peer, data);
+                return;
+            }
+        }
+        ReliableLink link = links.get(clientAddress);
+        if (link != null) {
+            link.send(data);
+        } else {
+            sendPacket(data, clientAddress);
+        }
+    }
+    
+    /**
+     * 把一条消息放入客户端的打包缓冲区
+     * 缓冲区放不下时先把已有的消息发出；消息本身放不进一个打包数据报时直接发送
+     */
+    private void enqueue(UdpPeer peer, ByteBuffer message) {
+        if (peer.pack == null) {
+            peer.pack = ByteBuffer.allocate(packBudget);
+            UdpBatch.begin(peer.pack);
+        }
+        int length = message.remaining();
+        if (UdpBatch.HEADER_LENGTH + UdpBatch.RECORD_HEADER_LENGTH + length > packBudget) {
+            flushPeer(peer);
+            sendNow(peer, message);
+            return;
+        }
+        if (!UdpBatch.fits(peer.pack, length)) {
+            flushPeer(peer);
+        }
+        UdpBatch.append(peer.pack, message);
+        peer.packCount++;
+        metrics.onQueueDepth(peer.packCount);
+        
+        if (!peer.dirty) {
+            peer.dirty = true;
+            if (dirtyPeers.isEmpty()) {
+                flushDeadline = System.nanoTime() + flushWindowNanos;
+            }
+            dirtyPeers.add(peer);
+        }
+    }
+    
+    /**
+     * 发出所有客户端打包缓冲区中的消息
+     */
+    private void flushDirtyPeers() {
+        for (int i = 0; i < dirtyPeers.size(); i++) {
+            UdpPeer peer = dirtyPeers.get(i);
+            peer.dirty = false;
+            flushPeer(peer);
+        }
+        dirtyPeers.clear();
+    }
+    
+    /**
+     * 发出客户端打包缓冲区中的消息，只有一条时按原来的格式发送，不加打包头
+     */
+    private void flushPeer(UdpPeer peer) {
+        if (peer.packCount == 0) {
+            return;
+        }
+        ByteBuffer pack = peer.pack;
+        pack.flip();
+        if (peer.packCount == 1) {
+            pack.position(UdpBatch.HEADER_LENGTH + UdpBatch.RECORD_HEADER_LENGTH);
+        }
+        sendNow(peer, pack);
+        UdpBatch.begin(pack);
+        peer.packCount = 0;
+    }
+    
+    /**
+     * 立即发送给客户端，可靠传输时保留一份副本用于重传
+     */
+    private void sendNow(UdpPeer peer, ByteBuffer data) {
+        if (peer.link != null) {
+            peer.link.send(copyOf(data));
+        } else {
+            sendPacket(data, peer.address);
+        }
+    }
+    
+    private static ByteBuffer copyOf(ByteBuffer data) {
+        ByteBuffer copy = ByteBuffer.allocate(data.remaining());
+        copy.put(data.duplicate()).flip();
+        return copy.asReadOnlyBuffer();
+    }
+    
+    /**
+     * 直接发送一个数据报
+     */
+    private void sendPacket(ByteBuffer data, InetSocketAddress clientAddress) {
+        try {
+            if (data.remaining() > mtu) {
+                sendFragments(EMPTY, data, clientAddress);
+            } else {
+                sendDatagram(data, clientAddress);
+            }
+        } catch (IOException e) {
+            System.err.println("发送消息失败: " + e.getMessage());
+            metrics.onSendFailure();
+            // 移除无法到达的客户端
+            server.removePeer(clientAddress);
+        }
+    }
+    
+    /**
+     * 向组播组发送一个数据报，加上房间名头部，超过MTU时拆成分片
+     * data的position不会改变
+     * @param room UTF-8编码的房间名，控制消息为空数组
+     */
+    void sendMulticast(byte[] room, ByteBuffer data) {
+        try {
+            int headerLength = UdpMulticast.headerLength(room);
+            if (headerLength + data.remaining() > mtu) {
+                ByteBuffer head = ByteBuffer.allocate(headerLength);
+                UdpMulticast.putHeader(head, room);
+                sendFragments(head.flip(), data, multicastGroup);
+                return;
+            }
+            multicastBuffer.clear();
+            UdpMulticast.putHeader(multicastBuffer, room);
+            multicastBuffer.put(data.duplicate());
+            multicastBuffer.flip();
+            sendDatagram(multicastBuffer, multicastGroup);
+        } catch (IOException e) {
+            System.err.println("发送组播消息失败: " + e.getMessage());
+            metrics.onSendFailure();
+        }
+    }
+    
+    /**
+     * 把超过MTU的数据报拆成分片发出
+     */
+    private void sendFragments(ByteBuffer head, ByteBuffer body, InetSocketAddress target) throws IOException {
+        UdpFragments.split(head, body, nextFragmentId++, mtu, fragmentBuffer,
+            fragment -> sendDatagram(fragment, target));
+    }
+    
+    /**
+     * 发出一个数据报并计数，非阻塞通道的发送缓冲区已满时数据报被丢弃
+     */
+    private void sendDatagram(ByteBuffer data, InetSocketAddress target) throws IOException {
+        int sent = channel.send(data, target);
+        if (sent == 0) {
+            metrics.onDropped();
+        } else {
+            metrics.onSent(1, sent);
+        }
+    }
+    
+    /**
+     * 停止分片
+     */
+    public void stop() {
+        isRunning = false;
+        try {
+            selector.close();
+            channel.close();
+        } catch (IOException e) {
+            System.err.println("关闭服务器时出错: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * 分片线程的内存分配统计
+     * 定期输出平均每个数据报在分片线程上分配的字节数，用于确认接收循环没有产生垃圾
+     */
+    private class AllocationStats {
+        private final com.sun.management.ThreadMXBean threadBean =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        private long packets = 0;
+        private long baselineBytes = threadBean.getCurrentThreadAllocatedBytes();
+        private long lastReport = System.currentTimeMillis();
+        
+        void onPacket() {
+            packets++;
+            long now = System.currentTimeMillis();
+            if (now - lastReport < allocStatsIntervalMillis) {
+                return;
+            }
+            long allocated = threadBean.getCurrentThreadAllocatedBytes() - baselineBytes;
+            System.out.println("分片 " + index + " 统计: " + packets + " 个数据报，平均每个分配 "
+                + (allocated / packets) + " 字节");
+                
+            // 输出本身产生的分配不计入下一个统计周期
+            packets = 0;
+            lastReport = now;
+            baselineBytes = threadBean.getCurrentThreadAllocatedBytes();
+        }
+    }
+}